@@ -3,9 +3,17 @@ LOCAL_PATH := $(call my-dir)
 include $(CLEAR_VARS)
  
 LOCAL_MODULE    := decoder
-LOCAL_SRC_FILES := decoder.c
+LOCAL_SRC_FILES := decoder.c decoder_core.c convert.c
+LOCAL_CFLAGS := -O3
 LOCAL_LDLIBS := -llog -ljnigraphics -lz -landroid
 LOCAL_STATIC_LIBRARIES := libavformat-55 libavcodec-55 libswscale-2 libavutil-52
+ifeq ($(TARGET_ARCH_ABI),armeabi-v7a)
+    # NEON isn't guaranteed at armv7, convert.c chooses this variant at runtime.
+    LOCAL_SRC_FILES += convert_neon.c.neon
+    LOCAL_CFLAGS += -DCONVERT_HAVE_NEON_VARIANT
+    LOCAL_STATIC_LIBRARIES += cpufeatures
+endif
  
 include $(BUILD_SHARED_LIBRARY)
-$(call import-module,ffmpeg/android/armv7)
\ No newline at end of file
+$(call import-module,ffmpeg/android/armv7)
+$(call import-module,android/cpufeatures)
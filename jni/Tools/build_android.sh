@@ -23,6 +23,7 @@ function build_one
 \
 --disable-everything \
 --enable-decoder=mpeg4 \
+--enable-encoder=mpeg4 \
 --enable-decoder=mpeg4_vdpau \
 --enable-decoder=h264 \
 --enable-decoder=h264_vda \
@@ -31,7 +32,9 @@ function build_one
 --enable-hwaccel=h264_vda \
 --enable-hwaccel=h264_vdpau \
 --enable-demuxer=h264 \
+--enable-demuxer=mov \
 --enable-demuxer=rtp \
+--enable-muxer=mp4 \
 --enable-parser=h264 \
 --enable-parser=mpeg4video \
 --enable-protocol=file \
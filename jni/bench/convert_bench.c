@@ -0,0 +1,213 @@
+/*
+ * Microbenchmark of the YUV -> RGB conversion stage (../convert.c).
+ *
+ * Converts synthetic 4:2:0 frames of typical animation sizes at 1:1 and 2:1 into RGBA and RGB565, checks the result
+ * against a floating point reference and prints the time per frame. Optionally (-DWITH_SWSCALE) converts the same
+ * frames with swscale using the flags the decoder used before, for comparison.
+ *
+ * Runs on any Linux host and on Android devices, see the Makefile:
+ *   make && ./convert_bench                   - x86-64 or arm64 Linux host
+ *   make CC=<ndk>/aarch64-linux-android21-clang && adb push convert_bench /data/local/tmp/
+ */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+
+#include "convert.h"
+
+#if defined(WITH_SWSCALE)
+#include <libswscale/swscale.h>
+#endif
+
+#define MIN_RUN_NANOS 300000000LL
+#define MAX_ALLOWED_ERROR 3
+/* RGB565 truncates red and blue to 5 bits */
+#define RGB565_QUANTIZATION_ERROR 8
+
+typedef struct tsize {
+    int width;
+    int height;
+} Size;
+
+static const Size sizes[] = {
+    { 320, 240 },
+    { 480, 480 },
+    { 640, 360 },
+    { 1280, 720 },
+};
+
+static long long nowNanos()
+{
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec * 1000000000LL + ts.tv_nsec;
+}
+
+static int clamp(double v)
+{
+    int i = (int)(v + 0.5);
+    return i < 0 ? 0 : (i > 255 ? 255 : i);
+}
+
+/*
+ * Fills the frame with gradients and noise, so every kernel path (including clamping) is exercised.
+ */
+static void fillFrame(YuvPlanes* p)
+{
+    int x, y;
+    unsigned seed = 12345;
+    for (y = 0; y < p->height; y++) {
+        for (x = 0; x < p->width; x++) {
+            seed = seed * 1103515245 + 12345;
+            ((uint8_t*)p->y)[y * p->yStride + x] = (uint8_t)((x * 255 / p->width + (seed >> 24) % 32) & 0xff);
+        }
+    }
+    for (y = 0; y < (p->height + 1) / 2; y++) {
+        for (x = 0; x < (p->width + 1) / 2; x++) {
+            ((uint8_t*)p->u)[y * p->uStride + x] = (uint8_t)(x * 511 / p->width);
+            ((uint8_t*)p->v)[y * p->vStride + x] = (uint8_t)(y * 511 / p->height);
+        }
+    }
+}
+
+static void referencePixel(const YuvPlanes* p, int dstX, int dstY, int half, int* r, int* g, int* b)
+{
+    double luma;
+    int cx = half ? dstX : dstX / 2;
+    int cy = half ? dstY : dstY / 2;
+    if (half) {
+        const uint8_t* y0 = p->y + 2 * dstY * p->yStride + 2 * dstX;
+        luma = (y0[0] + y0[1] + y0[p->yStride] + y0[p->yStride + 1]) / 4.0;
+    } else {
+        luma = p->y[dstY * p->yStride + dstX];
+    }
+    double u = p->u[cy * p->uStride + cx] - 128.0;
+    double v = p->v[cy * p->vStride + cx] - 128.0;
+    double yy = 1.164 * (luma - 16);
+    *r = clamp(yy + 1.596 * v);
+    *g = clamp(yy - 0.391 * u - 0.813 * v);
+    *b = clamp(yy + 2.018 * u);
+}
+
+static int maxError(const YuvPlanes* p, const uint8_t* dst, int stride, int width, int height, ConvertFormat format)
+{
+    int half = width != p->width;
+    int result = 0;
+    int x, y;
+    for (y = 0; y < height; y++) {
+        for (x = 0; x < width; x++) {
+            int r, g, b, ar, ag, ab;
+            referencePixel(p, x, y, half, &r, &g, &b);
+            if (format == CONVERT_RGB565) {
+                uint16_t px = ((const uint16_t*)(dst + y * stride))[x];
+                ar = (px >> 11) << 3;
+                ag = ((px >> 5) & 0x3f) << 2;
+                ab = (px & 0x1f) << 3;
+            } else {
+                const uint8_t* px = dst + y * stride + 4 * x;
+                ar = px[0]; ag = px[1]; ab = px[2];
+            }
+            int e = abs(r - ar);
+            if (abs(g - ag) > e) e = abs(g - ag);
+            if (abs(b - ab) > e) e = abs(b - ab);
+            if (e > result) result = e;
+        }
+    }
+    return result;
+}
+
+#if defined(WITH_SWSCALE)
+static double benchSwscale(const YuvPlanes* p, uint8_t* dst, int stride, int width, int height, ConvertFormat format)
+{
+    struct SwsContext* ctx = sws_getContext(p->width, p->height, AV_PIX_FMT_YUV420P, width, height,
+                                            format == CONVERT_RGB565 ? AV_PIX_FMT_RGB565 : AV_PIX_FMT_RGBA,
+                                            SWS_BICUBIC, 0, 0, 0);
+    const uint8_t* const srcData[3] = { p->y, p->u, p->v };
+    const int srcStrides[3] = { p->yStride, p->uStride, p->vStride };
+    uint8_t* const dstData[1] = { dst };
+    const int dstStrides[1] = { stride };
+    long long iterations = 0;
+    long long start = nowNanos();
+    long long elapsed;
+    do {
+        sws_scale(ctx, srcData, srcStrides, 0, p->height, dstData, dstStrides);
+        iterations++;
+        elapsed = nowNanos() - start;
+    } while (elapsed < MIN_RUN_NANOS);
+    sws_freeContext(ctx);
+    return elapsed / 1000.0 / iterations;
+}
+#endif
+
+static double benchConvert(const YuvPlanes* p, uint8_t* dst, int stride, int width, int height, ConvertFormat format)
+{
+    long long iterations = 0;
+    long long start = nowNanos();
+    long long elapsed;
+    do {
+        convertYuv420(p, dst, stride, width, height, format);
+        iterations++;
+        elapsed = nowNanos() - start;
+    } while (elapsed < MIN_RUN_NANOS);
+    return elapsed / 1000.0 / iterations;
+}
+
+int main(int argc, char** argv)
+{
+    int failures = 0;
+    size_t i;
+    printf("kernels: %s\n", getConvertKernelName());
+    printf("%-10s %-6s %-7s %12s %10s %7s", "source", "scale", "format", "us/frame", "Mpix/s", "error");
+#if defined(WITH_SWSCALE)
+    printf(" %16s %8s", "bicubic us/frame", "speedup");
+#endif
+    printf("\n");
+    for (i = 0; i < sizeof(sizes) / sizeof(sizes[0]); i++) {
+        YuvPlanes p;
+        p.width = sizes[i].width;
+        p.height = sizes[i].height;
+        // Strides are padded the same way FFmpeg pads them.
+        p.yStride = (p.width + 31) & ~31;
+        p.uStride = p.vStride = ((p.width + 1) / 2 + 31) & ~31;
+        uint8_t* y = malloc(p.yStride * p.height);
+        uint8_t* u = malloc(p.uStride * ((p.height + 1) / 2));
+        uint8_t* v = malloc(p.vStride * ((p.height + 1) / 2));
+        p.y = y;
+        p.u = u;
+        p.v = v;
+        fillFrame(&p);
+        int half;
+        for (half = 0; half <= 1; half++) {
+            int width = half ? p.width / 2 : p.width;
+            int height = half ? p.height / 2 : p.height;
+            int format;
+            for (format = CONVERT_RGBA; format <= CONVERT_RGB565; format++) {
+                int stride = width * (format == CONVERT_RGB565 ? 2 : 4);
+                uint8_t* dst = malloc(stride * height);
+                memset(dst, 0, stride * height);
+                double micros = benchConvert(&p, dst, stride, width, height, (ConvertFormat)format);
+                int error = maxError(&p, dst, stride, width, height, (ConvertFormat)format);
+                int allowedError = MAX_ALLOWED_ERROR + (format == CONVERT_RGB565 ? RGB565_QUANTIZATION_ERROR : 0);
+                if (error > allowedError) {
+                    failures++;
+                }
+                char source[16];
+                snprintf(source, sizeof(source), "%dx%d", p.width, p.height);
+                printf("%-10s %-6s %-7s %12.1f %10.1f %7d", source, half ? "2:1" : "1:1",
+                       format == CONVERT_RGB565 ? "rgb565" : "rgba", micros, width * height / micros, error);
+#if defined(WITH_SWSCALE)
+                double swsMicros = benchSwscale(&p, dst, stride, width, height, (ConvertFormat)format);
+                printf(" %16.1f %7.1fx", swsMicros, swsMicros / micros);
+#endif
+                printf("%s\n", error > allowedError ? "  FAILED" : "");
+                free(dst);
+            }
+        }
+        free(y);
+        free(u);
+        free(v);
+    }
+    return failures == 0 ? 0 : 1;
+}
@@ -0,0 +1,249 @@
+/*
+ * Benchmark of the decoder core (../decoder_core.c) at a Linux host.
+ *
+ * Decodes every given animation (or every .mp4 file of the given directories) from the beginning to the end into a memory
+ * pixel sink, the same way AnimationDecoder does at devices, and reports per-stage timings, frames per second and memory:
+ *
+ *   decoder_bench [-q full|reduced|low] [-f rgba|rgb565] [-s half] [-r repeats] <file or directory>...
+ *
+ * Needs the FFmpeg release the Android library is built with (see ../Tools/build_android.sh), built for the host, see
+ * the Makefile.
+ */
+
+#include <dirent.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/resource.h>
+#include <sys/stat.h>
+#include <time.h>
+
+#include "decoder_core.h"
+
+#define MAX_PATH_LENGTH 4096
+
+typedef struct tmemorysink {
+    uint8_t* pixels;
+    int width;
+    int height;
+    int stride;
+    ConvertFormat format;
+} MemorySink;
+
+typedef struct toptions {
+    DecodeQuality quality;
+    ConvertFormat format;
+    int half;
+    int repeats;
+} Options;
+
+typedef struct ttotals {
+    int files;
+    int failures;
+    int64_t frames;
+    int64_t openNanos;
+    int64_t wallNanos;
+    DecoderStats stats;
+} Totals;
+
+static int64_t nowNanos()
+{
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return (int64_t)ts.tv_sec * 1000000000LL + ts.tv_nsec;
+}
+
+static int lockMemorySink(void* opaque, PixelBuffer* buffer)
+{
+    MemorySink* sink = (MemorySink*)opaque;
+    buffer->pixels = sink->pixels;
+    buffer->width = sink->width;
+    buffer->height = sink->height;
+    buffer->stride = sink->stride;
+    buffer->format = sink->format;
+    return 0;
+}
+
+static void unlockMemorySink(void* opaque)
+{
+}
+
+static double perFrameMicros(int64_t nanos, int64_t frames)
+{
+    return frames > 0 ? nanos / 1000.0 / frames : 0;
+}
+
+static void addStats(DecoderStats* total, const DecoderStats* stats)
+{
+    total->demuxNanos += stats->demuxNanos;
+    total->decodeNanos += stats->decodeNanos;
+    total->convertNanos += stats->convertNanos;
+    total->packets += stats->packets;
+    total->convertedFrames += stats->convertedFrames;
+    total->skippedFrames += stats->skippedFrames;
+}
+
+static void printRow(const char* name, int64_t frames, double openMillis, const DecoderStats* stats, int64_t wallNanos,
+                     int64_t memory)
+{
+    printf("%-40.40s %7lld %8.2f %9.1f %9.1f %9.1f %8.1f %9lld\n",
+           name,
+           (long long)frames,
+           openMillis,
+           perFrameMicros(stats->demuxNanos, frames),
+           perFrameMicros(stats->decodeNanos, frames),
+           perFrameMicros(stats->convertNanos, frames),
+           wallNanos > 0 ? frames * 1e9 / wallNanos : 0,
+           (long long)(memory / 1024));
+}
+
+static void benchFile(const char* path, const Options* options, Totals* totals)
+{
+    const char* name = strrchr(path, '/') != 0 ? strrchr(path, '/') + 1 : path;
+    int repeat;
+    for (repeat = 0; repeat < options->repeats; repeat++) {
+        int64_t start = nowNanos();
+        DecoderHandle* h = 0;
+        int error = decoderOpenFile(path, 0, 0, &h);
+        if (error != 0) {
+            fprintf(stderr, "%s: can't open, error %d\n", path, error);
+            totals->failures++;
+            return;
+        }
+        decoderSetQuality(h, options->quality);
+        int64_t openNanos = nowNanos() - start;
+
+        MemorySink memorySink;
+        decoderGetDimensions(h, &memorySink.width, &memorySink.height);
+        if (options->half) {
+            memorySink.width /= 2;
+            memorySink.height /= 2;
+        }
+        memorySink.format = options->format;
+        memorySink.stride = memorySink.width * (options->format == CONVERT_RGB565 ? 2 : 4);
+        memorySink.pixels = malloc((size_t)memorySink.stride * memorySink.height);
+        PixelSink sink = {lockMemorySink, unlockMemorySink, &memorySink};
+
+        int64_t frames = 0;
+        int64_t decodeStart = nowNanos();
+        while (decoderNextFrame(h, &sink) >= 0) {
+            frames++;
+        }
+        int64_t wallNanos = nowNanos() - decodeStart;
+        int64_t memory = decoderGetMemoryUsage(h) + (int64_t)memorySink.stride * memorySink.height;
+
+        if (repeat == options->repeats - 1) {
+            printRow(name, frames, openNanos / 1e6, &h->stats, wallNanos, memory);
+        }
+        totals->frames += frames;
+        totals->openNanos += openNanos;
+        totals->wallNanos += wallNanos;
+        addStats(&totals->stats, &h->stats);
+        decoderRelease(h);
+        free(memorySink.pixels);
+    }
+    totals->files++;
+}
+
+static int endsWith(const char* s, const char* suffix)
+{
+    size_t length = strlen(s);
+    size_t suffixLength = strlen(suffix);
+    return length >= suffixLength && strcmp(s + length - suffixLength, suffix) == 0;
+}
+
+static int compareNames(const void* a, const void* b)
+{
+    return strcmp(*(const char* const*)a, *(const char* const*)b);
+}
+
+static void benchPath(const char* path, const Options* options, Totals* totals)
+{
+    struct stat pathStat;
+    if (stat(path, &pathStat) != 0) {
+        fprintf(stderr, "%s: not found\n", path);
+        totals->failures++;
+        return;
+    }
+    if (!S_ISDIR(pathStat.st_mode)) {
+        benchFile(path, options, totals);
+        return;
+    }
+    DIR* dir = opendir(path);
+    if (dir == 0) {
+        fprintf(stderr, "%s: can't list\n", path);
+        totals->failures++;
+        return;
+    }
+    // Sorted, so runs are comparable line by line.
+    char** names = 0;
+    int count = 0;
+    struct dirent* entry;
+    while ((entry = readdir(dir)) != 0) {
+        if (endsWith(entry->d_name, ".mp4")) {
+            names = realloc(names, (count + 1) * sizeof(char*));
+            names[count++] = strdup(entry->d_name);
+        }
+    }
+    closedir(dir);
+    qsort(names, count, sizeof(char*), compareNames);
+    int i;
+    for (i = 0; i < count; i++) {
+        char file[MAX_PATH_LENGTH];
+        snprintf(file, sizeof(file), "%s/%s", path, names[i]);
+        benchFile(file, options, totals);
+        free(names[i]);
+    }
+    free(names);
+}
+
+static void usage()
+{
+    fprintf(stderr, "usage: decoder_bench [-q full|reduced|low] [-f rgba|rgb565] [-s half] [-r repeats] <file or directory>...\n");
+    exit(2);
+}
+
+int main(int argc, char** argv)
+{
+    Options options = {QUALITY_FULL, CONVERT_RGBA, 0, 1};
+    Totals totals;
+    memset(&totals, 0, sizeof(totals));
+    int i = 1;
+    for (; i < argc && argv[i][0] == '-'; i += 2) {
+        if (i + 1 >= argc) {
+            usage();
+        }
+        const char* value = argv[i + 1];
+        if (strcmp(argv[i], "-q") == 0) {
+            options.quality = strcmp(value, "low") == 0 ? QUALITY_LOW : (strcmp(value, "reduced") == 0 ? QUALITY_REDUCED : QUALITY_FULL);
+        } else if (strcmp(argv[i], "-f") == 0) {
+            options.format = strcmp(value, "rgb565") == 0 ? CONVERT_RGB565 : CONVERT_RGBA;
+        } else if (strcmp(argv[i], "-s") == 0) {
+            options.half = strcmp(value, "half") == 0;
+        } else if (strcmp(argv[i], "-r") == 0) {
+            options.repeats = atoi(value) > 0 ? atoi(value) : 1;
+        } else {
+            usage();
+        }
+    }
+    if (i >= argc) {
+        usage();
+    }
+
+    av_register_all();
+    printf("kernels: %s, quality %d, format %s%s, repeats %d\n", getConvertKernelName(), options.quality,
+           options.format == CONVERT_RGB565 ? "rgb565" : "rgba", options.half ? ", half size" : "", options.repeats);
+    printf("%-40s %7s %8s %9s %9s %9s %8s %9s\n", "file", "frames", "open ms", "demux us", "decode us", "conv us", "fps",
+           "mem KB");
+    for (; i < argc; i++) {
+        benchPath(argv[i], &options, &totals);
+    }
+
+    // Totals are averaged over all repeats.
+    printRow("total", totals.frames, totals.files > 0 ? totals.openNanos / 1e6 / (totals.files * options.repeats) : 0,
+             &totals.stats, totals.wallNanos, 0);
+    struct rusage usage;
+    getrusage(RUSAGE_SELF, &usage);
+    printf("files: %d, failures: %d, peak RSS: %ld KB\n", totals.files, totals.failures, usage.ru_maxrss);
+    return totals.failures == 0 ? 0 : 1;
+}
@@ -0,0 +1,115 @@
+#include "convert.h"
+
+#define KERNEL(name) name##C
+#include "convert_rows.h"
+#undef KERNEL
+
+/*
+ * armeabi-v7a doesn't guarantee NEON (the bundled FFmpeg is built for VFP only), so the NEON variant of the kernels
+ * (convert_neon.c) is compiled separately and chosen at runtime. Other ABIs either always have SIMD (arm64-v8a, x86_64)
+ * and vectorize the plain variant, or don't have a separate one.
+ */
+#if defined(CONVERT_HAVE_NEON_VARIANT)
+#include <cpu-features.h>
+
+void yuvToRgbaRowNeon(const uint8_t* y, const uint8_t* u, const uint8_t* v, uint32_t* dst, int width);
+void yuvToRgb565RowNeon(const uint8_t* y, const uint8_t* u, const uint8_t* v, uint16_t* dst, int width);
+void halfYuvToRgbaRowNeon(const uint8_t* y0, const uint8_t* y1, const uint8_t* u, const uint8_t* v, uint32_t* dst, int width);
+void halfYuvToRgb565RowNeon(const uint8_t* y0, const uint8_t* y1, const uint8_t* u, const uint8_t* v, uint16_t* dst, int width);
+#endif
+
+typedef struct tkernels {
+    const char* name;
+    void (*rgbaRow)(const uint8_t* y, const uint8_t* u, const uint8_t* v, uint32_t* dst, int width);
+    void (*rgb565Row)(const uint8_t* y, const uint8_t* u, const uint8_t* v, uint16_t* dst, int width);
+    void (*halfRgbaRow)(const uint8_t* y0, const uint8_t* y1, const uint8_t* u, const uint8_t* v, uint32_t* dst, int width);
+    void (*halfRgb565Row)(const uint8_t* y0, const uint8_t* y1, const uint8_t* u, const uint8_t* v, uint16_t* dst, int width);
+} Kernels;
+
+static const Kernels plainKernels = {
+#if defined(__ARM_NEON__) || defined(__aarch64__)
+    "neon",
+#elif defined(__SSE2__)
+    "sse2",
+#else
+    "c",
+#endif
+    yuvToRgbaRowC, yuvToRgb565RowC, halfYuvToRgbaRowC, halfYuvToRgb565RowC
+};
+
+#if defined(CONVERT_HAVE_NEON_VARIANT)
+static const Kernels neonKernels = {
+    "neon", yuvToRgbaRowNeon, yuvToRgb565RowNeon, halfYuvToRgbaRowNeon, halfYuvToRgb565RowNeon
+};
+#endif
+
+/* Chosen once, a racy initialization is harmless since every thread chooses the same variant */
+static const Kernels* kernels = 0;
+
+static const Kernels* getKernels()
+{
+    if (kernels == 0) {
+#if defined(CONVERT_HAVE_NEON_VARIANT)
+        if (android_getCpuFamily() == ANDROID_CPU_FAMILY_ARM && (android_getCpuFeatures() & ANDROID_CPU_ARM_FEATURE_NEON) != 0) {
+            kernels = &neonKernels;
+        } else {
+            kernels = &plainKernels;
+        }
+#else
+        kernels = &plainKernels;
+#endif
+    }
+    return kernels;
+}
+
+const char* getConvertKernelName()
+{
+    return getKernels()->name;
+}
+
+int canConvertYuv420(int srcWidth, int srcHeight, int dstWidth, int dstHeight)
+{
+    if (dstWidth <= 0 || dstHeight <= 0) {
+        return 0;
+    }
+    int same = srcWidth == dstWidth && srcHeight == dstHeight;
+    int half = srcWidth / 2 == dstWidth && srcHeight / 2 == dstHeight;
+    return same || half;
+}
+
+int convertYuv420(const YuvPlanes* src, uint8_t* dst, int dstStride, int dstWidth, int dstHeight, ConvertFormat format)
+{
+    const Kernels* k = getKernels();
+    int row;
+    if (src->width == dstWidth && src->height == dstHeight) {
+        for (row = 0; row < dstHeight; row++) {
+            const uint8_t* y = src->y + row * src->yStride;
+            const uint8_t* u = src->u + (row >> 1) * src->uStride;
+            const uint8_t* v = src->v + (row >> 1) * src->vStride;
+            uint8_t* out = dst + row * dstStride;
+            if (format == CONVERT_RGB565) {
+                k->rgb565Row(y, u, v, (uint16_t*)out, dstWidth);
+            } else {
+                k->rgbaRow(y, u, v, (uint32_t*)out, dstWidth);
+            }
+        }
+        return 0;
+    }
+    if (src->width / 2 == dstWidth && src->height / 2 == dstHeight) {
+        // Odd trailing column and row of the source are dropped.
+        for (row = 0; row < dstHeight; row++) {
+            const uint8_t* y0 = src->y + 2 * row * src->yStride;
+            const uint8_t* y1 = y0 + src->yStride;
+            const uint8_t* u = src->u + row * src->uStride;
+            const uint8_t* v = src->v + row * src->vStride;
+            uint8_t* out = dst + row * dstStride;
+            if (format == CONVERT_RGB565) {
+                k->halfRgb565Row(y0, y1, u, v, (uint16_t*)out, dstWidth);
+            } else {
+                k->halfRgbaRow(y0, y1, u, v, (uint32_t*)out, dstWidth);
+            }
+        }
+        return 0;
+    }
+    return -1;
+}
@@ -0,0 +1,48 @@
+#ifndef CONVERT_H
+#define CONVERT_H
+
+#include <stdint.h>
+
+/*
+ * YUV -> RGB conversion stage for the common cases: a 4:2:0 frame converted into a bitmap of the same size or of exactly
+ * half of its size. Other cases (different pixel formats, arbitrary scales) are left to swscale.
+ *
+ * The stage doesn't depend on FFmpeg or Android, so it's built into the host benchmark as is (see bench/).
+ */
+
+/*
+ * Destination pixel formats, both are native-endian just like Android bitmaps.
+ */
+typedef enum {
+    CONVERT_RGBA = 0,
+    CONVERT_RGB565,
+} ConvertFormat;
+
+typedef struct tyuvplanes {
+    const uint8_t* y;
+    const uint8_t* u;
+    const uint8_t* v;
+    int yStride;
+    int uStride;
+    int vStride;
+    int width;
+    int height;
+} YuvPlanes;
+
+/*
+ * Returns non-zero if a frame of the given size can be converted into a bitmap of the given size by this stage.
+ */
+int canConvertYuv420(int srcWidth, int srcHeight, int dstWidth, int dstHeight);
+
+/*
+ * Converts a BT.601 limited range YUV 4:2:0 frame. Returns 0 on success and -1 if the sizes are not supported, see
+ * canConvertYuv420().
+ */
+int convertYuv420(const YuvPlanes* src, uint8_t* dst, int dstStride, int dstWidth, int dstHeight, ConvertFormat format);
+
+/*
+ * Returns the name of the row kernels variant chosen for the current CPU, e.g. "neon".
+ */
+const char* getConvertKernelName();
+
+#endif
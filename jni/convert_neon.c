@@ -0,0 +1,8 @@
+/*
+ * NEON variant of the conversion row kernels for armeabi-v7a, built with NEON enabled (see Android.mk) and chosen
+ * by convert.c only if the CPU supports it.
+ */
+
+#define KERNEL(name) name##Neon
+#include "convert_rows.h"
+#undef KERNEL
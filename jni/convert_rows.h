@@ -0,0 +1,149 @@
+/*
+ * Row kernels of the YUV -> RGB conversion stage, see convert.c.
+ *
+ * The file is included by several translation units which define KERNEL(name) differently and are compiled with
+ * different instruction sets (e.g. convert_neon.c is built with NEON enabled), the best variant is chosen at runtime.
+ * The kernels are plain C written to be vectorized by the compiler: no branches besides the loop ones, 32-bit fixed
+ * point arithmetic, clamping via min/max and unit-stride (or interleaved) memory access. An odd trailing pixel is
+ * converted by scalar tail code.
+ *
+ * BT.601 limited range coefficients with 6 fractional bits, the same ones libyuv uses:
+ *   R = 1.164 * (Y - 16) + 1.596 * (V - 128)
+ *   G = 1.164 * (Y - 16) - 0.391 * (U - 128) - 0.813 * (V - 128)
+ *   B = 1.164 * (Y - 16) + 2.018 * (U - 128)
+ */
+
+#ifndef KERNEL
+#error "KERNEL(name) must be defined before including convert_rows.h"
+#endif
+
+#include <stdint.h>
+
+#define YG 74
+#define VR 102
+#define UG 25
+#define VG 52
+#define UB 129
+#define ROUND 32
+
+#define CLAMP255(v) ((v) < 0 ? 0 : ((v) > 255 ? 255 : (v)))
+#define PACK565(r, g, b) ((uint16_t)((((r) >> 3) << 11) | (((g) >> 2) << 5) | ((b) >> 3)))
+/* R, G, B, A bytes in memory; all Android ABIs are little-endian. Whole pixel stores vectorize much better than byte ones. */
+#define PACK_RGBA(r, g, b) ((uint32_t)(r) | ((uint32_t)(g) << 8) | ((uint32_t)(b) << 16) | 0xff000000u)
+
+/*
+ * Converts a row with full horizontal resolution, two neighbouring pixels share a chroma sample.
+ */
+void KERNEL(yuvToRgbaRow)(const uint8_t* __restrict y, const uint8_t* __restrict u, const uint8_t* __restrict v,
+                          uint32_t* __restrict dst, int width)
+{
+    int pairs = width >> 1;
+    int i;
+    for (i = 0; i < pairs; i++) {
+        int cu = u[i] - 128;
+        int cv = v[i] - 128;
+        int dr = VR * cv + ROUND;
+        int dg = ROUND - UG * cu - VG * cv;
+        int db = UB * cu + ROUND;
+        int y0 = (y[2 * i] - 16) * YG;
+        int y1 = (y[2 * i + 1] - 16) * YG;
+        int r0 = (y0 + dr) >> 6, g0 = (y0 + dg) >> 6, b0 = (y0 + db) >> 6;
+        int r1 = (y1 + dr) >> 6, g1 = (y1 + dg) >> 6, b1 = (y1 + db) >> 6;
+        r0 = CLAMP255(r0); g0 = CLAMP255(g0); b0 = CLAMP255(b0);
+        r1 = CLAMP255(r1); g1 = CLAMP255(g1); b1 = CLAMP255(b1);
+        dst[2 * i]     = PACK_RGBA(r0, g0, b0);
+        dst[2 * i + 1] = PACK_RGBA(r1, g1, b1);
+    }
+    if (width & 1) {
+        int cu = u[pairs] - 128;
+        int cv = v[pairs] - 128;
+        int y0 = (y[width - 1] - 16) * YG;
+        int r = (y0 + VR * cv + ROUND) >> 6;
+        int g = (y0 - UG * cu - VG * cv + ROUND) >> 6;
+        int b = (y0 + UB * cu + ROUND) >> 6;
+        r = CLAMP255(r); g = CLAMP255(g); b = CLAMP255(b);
+        dst[width - 1] = PACK_RGBA(r, g, b);
+    }
+}
+
+void KERNEL(yuvToRgb565Row)(const uint8_t* __restrict y, const uint8_t* __restrict u, const uint8_t* __restrict v,
+                            uint16_t* __restrict dst, int width)
+{
+    int pairs = width >> 1;
+    int i;
+    for (i = 0; i < pairs; i++) {
+        int cu = u[i] - 128;
+        int cv = v[i] - 128;
+        int dr = VR * cv + ROUND;
+        int dg = ROUND - UG * cu - VG * cv;
+        int db = UB * cu + ROUND;
+        int y0 = (y[2 * i] - 16) * YG;
+        int y1 = (y[2 * i + 1] - 16) * YG;
+        int r0 = (y0 + dr) >> 6, g0 = (y0 + dg) >> 6, b0 = (y0 + db) >> 6;
+        int r1 = (y1 + dr) >> 6, g1 = (y1 + dg) >> 6, b1 = (y1 + db) >> 6;
+        r0 = CLAMP255(r0); g0 = CLAMP255(g0); b0 = CLAMP255(b0);
+        r1 = CLAMP255(r1); g1 = CLAMP255(g1); b1 = CLAMP255(b1);
+        dst[2 * i]     = PACK565(r0, g0, b0);
+        dst[2 * i + 1] = PACK565(r1, g1, b1);
+    }
+    if (width & 1) {
+        int cu = u[pairs] - 128;
+        int cv = v[pairs] - 128;
+        int y0 = (y[width - 1] - 16) * YG;
+        int r = (y0 + VR * cv + ROUND) >> 6;
+        int g = (y0 - UG * cu - VG * cv + ROUND) >> 6;
+        int b = (y0 + UB * cu + ROUND) >> 6;
+        r = CLAMP255(r); g = CLAMP255(g); b = CLAMP255(b);
+        dst[width - 1] = PACK565(r, g, b);
+    }
+}
+
+/*
+ * Converts a row at half resolution: every destination pixel is a 2x2 box of the two given luma rows, which matches
+ * the chroma sample exactly in 4:2:0. 'width' is the destination width.
+ */
+void KERNEL(halfYuvToRgbaRow)(const uint8_t* __restrict y0, const uint8_t* __restrict y1,
+                              const uint8_t* __restrict u, const uint8_t* __restrict v,
+                              uint32_t* __restrict dst, int width)
+{
+    int i;
+    for (i = 0; i < width; i++) {
+        int luma = (y0[2 * i] + y0[2 * i + 1] + y1[2 * i] + y1[2 * i + 1] + 2) >> 2;
+        int cu = u[i] - 128;
+        int cv = v[i] - 128;
+        int yy = (luma - 16) * YG;
+        int r = (yy + VR * cv + ROUND) >> 6;
+        int g = (yy - UG * cu - VG * cv + ROUND) >> 6;
+        int b = (yy + UB * cu + ROUND) >> 6;
+        r = CLAMP255(r); g = CLAMP255(g); b = CLAMP255(b);
+        dst[i] = PACK_RGBA(r, g, b);
+    }
+}
+
+void KERNEL(halfYuvToRgb565Row)(const uint8_t* __restrict y0, const uint8_t* __restrict y1,
+                                const uint8_t* __restrict u, const uint8_t* __restrict v,
+                                uint16_t* __restrict dst, int width)
+{
+    int i;
+    for (i = 0; i < width; i++) {
+        int luma = (y0[2 * i] + y0[2 * i + 1] + y1[2 * i] + y1[2 * i + 1] + 2) >> 2;
+        int cu = u[i] - 128;
+        int cv = v[i] - 128;
+        int yy = (luma - 16) * YG;
+        int r = (yy + VR * cv + ROUND) >> 6;
+        int g = (yy - UG * cu - VG * cv + ROUND) >> 6;
+        int b = (yy + UB * cu + ROUND) >> 6;
+        r = CLAMP255(r); g = CLAMP255(g); b = CLAMP255(b);
+        dst[i] = PACK565(r, g, b);
+    }
+}
+
+#undef YG
+#undef VR
+#undef UG
+#undef VG
+#undef UB
+#undef ROUND
+#undef CLAMP255
+#undef PACK565
+#undef PACK_RGBA
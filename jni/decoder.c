@@ -1,8 +1,13 @@
 #include <android/bitmap.h>
+#include <jni.h>
 
 #include <unistd.h>
-#include <pthread.h>
-#include <semaphore.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <fcntl.h>
+#include <sys/stat.h>
+#include <errno.h>
+#include <string.h>
 
 #include <libavcodec/avcodec.h>
 #include <libavformat/avformat.h>
@@ -10,38 +15,16 @@
 #include <libavutil/avutil.h>
 #include <libavutil/mathematics.h>
 
-#define LOG_LEVEL 0
-/*for android logs*/
-#include <android/log.h>
-#define LOG_TAG "libdecoder"
-#define LOGI(level, ...) if (level <= LOG_LEVEL) {__android_log_print(ANDROID_LOG_INFO, LOG_TAG, __VA_ARGS__);}
-#define LOGE(level, ...) if (level <= LOG_LEVEL) {__android_log_print(ANDROID_LOG_ERROR, LOG_TAG, __VA_ARGS__);}
+#include "decoder_core.h"
+#include "log.h"
+
+/*
+ * JNI binding of the decoder core (decoder_core.c) to AnimationDecoder: java sources, bitmaps as pixel sinks and errors
+ * as exceptions. Remuxing and transcoding tools are here too.
+ */
 
 #define WRAP_PACKAGE(a) Java_bo_pic_android_media_content_animation_AnimationDecoder_##a
 #define WRAP_PACKAGE_STRING(a) "Java_bo_pic_android_media_content_animation_AnimationDecoder_"#a
-#define PROFILING_ON (LOG_LEVEL > 5)
-
-typedef enum {
-    ERROR_OPEN_FILE = -1000,
-    ERROR_FIND_VIDEOSTREAM,
-    ERROR_FIND_VIDEODECODER,
-    ERROR_OPEN_VIDEODECODER,
-    ERROR_NO_STREAM_INFO,
-    ERROR_BAD_BITMAP,
-    ERROR_WRONG_BITMAP_FORMAT,
-    ERROR_LOCK_BITMAP_PIXELS,
-    ERROR_BITMAP_FILL,
-    ERROR_NOT_ENOUGH_MEMORY,
-} DecoderError;
-
-typedef struct thandle {
-    AVFormatContext* formatContext;
-    AVCodecContext* codecContext;
-    AVStream* videoStream;
-    int videoStreamIndex;
-    AVFrame* frameYUV;
-    AVFrame* frameRGB;
-} DecoderHandle;
 
 void make_exception(JNIEnv *env, DecoderError errorCode)
 {
@@ -74,114 +57,227 @@ void make_exception(JNIEnv *env, DecoderError errorCode)
       case ERROR_NOT_ENOUGH_MEMORY:
         buffer = "DECODER_ERROR_NOT_ENOUGH_MEMORY";
         break;
+      case ERROR_BAD_SOURCE:
+        buffer = "DECODER_ERROR_BAD_SOURCE";
+        break;
       default:
         buffer = "DECODER_ERROR";
     }
     (*env)->ThrowNew(env, (*env)->FindClass(env, "java/lang/Exception"), buffer);
 }
 
-AVFormatContext* initContext(JNIEnv* env, jstring javaFilename)
+/*
+ * Returns the given handle or throws an exception for the given error code and returns 0.
+ */
+jlong handleOrThrow(JNIEnv* env, int error, DecoderHandle* h)
 {
-    LOGI(7, "initContext");
-    AVFormatContext* formatContext = 0;
-    char* filename = (char *)(*env)->GetStringUTFChars(env, javaFilename, 0);
-    int result;
-    if ((result = avformat_open_input(&formatContext, filename, 0, 0)) != 0) {
-        LOGI(7, "initContext, result opening file %d, file %s", result, filename);
-        make_exception(env, ERROR_OPEN_FILE);
+    if (error != 0) {
+        make_exception(env, (DecoderError)error);
         return 0;
     }
-    (*env)->ReleaseStringUTFChars(env, javaFilename, filename);
-    return formatContext;
+    return (jlong)(intptr_t)h;
+}
+
+JNIEXPORT jlong JNICALL WRAP_PACKAGE(nativeInit)(JNIEnv* env, jobject self, jstring pFilename)
+{
+    LOGI(6, WRAP_PACKAGE_STRING(nativeInit));
+
+    const char* filename = (*env)->GetStringUTFChars(env, pFilename, 0);
+    DecoderHandle* h = 0;
+    int error = decoderOpenFile(filename, 0, 0, &h);
+    (*env)->ReleaseStringUTFChars(env, pFilename, filename);
+    return handleOrThrow(env, error, h);
 }
 
-int findVideoStreamIndex(AVFormatContext* formatContext)
+JNIEXPORT jlong JNICALL WRAP_PACKAGE(nativeInitWithStreamInfo)(JNIEnv* env, jobject self, jstring pFilename, jlongArray info)
 {
-    LOGI(7, "findVideoStreamIndex");
-    int i = 0;
-    for (; i < formatContext->nb_streams; ++i) {
-        if (formatContext->streams[i]->codec->codec_type == AVMEDIA_TYPE_VIDEO) {
-            return i;
+    LOGI(6, WRAP_PACKAGE_STRING(nativeInitWithStreamInfo));
+
+    jlong* streamInfo = 0;
+    jsize streamInfoSize = 0;
+    if (info != 0) {
+        streamInfoSize = (*env)->GetArrayLength(env, info);
+        streamInfo = (*env)->GetLongArrayElements(env, info, 0);
+    }
+    const char* filename = (*env)->GetStringUTFChars(env, pFilename, 0);
+    DecoderHandle* h = 0;
+    int error = decoderOpenFile(filename, (const int64_t*)streamInfo, streamInfoSize, &h);
+    (*env)->ReleaseStringUTFChars(env, pFilename, filename);
+    if (streamInfo != 0) {
+        (*env)->ReleaseLongArrayElements(env, info, streamInfo, JNI_ABORT);
+    }
+    return handleOrThrow(env, error, h);
+}
+
+JNIEXPORT jlongArray JNICALL WRAP_PACKAGE(nativeGetStreamInfo)(JNIEnv* env, jobject self, jlong handle)
+{
+    LOGI(6, WRAP_PACKAGE_STRING(nativeGetStreamInfo));
+    DecoderHandle* h = (DecoderHandle*)(intptr_t)handle;
+    int64_t* data = 0;
+    int size = decoderGetStreamInfo(h, &data);
+    if (size < 0) {
+        make_exception(env, (DecoderError)size);
+        return 0;
+    }
+    jlongArray result = (*env)->NewLongArray(env, size);
+    if (result != 0) {
+        (*env)->SetLongArrayRegion(env, result, 0, size, (const jlong*)data);
+    }
+    free(data);
+    return result;
+}
+
+/*
+ * Takes over the given source and the global reference (they are released on failure or when the decoder is released).
+ */
+jlong initFromSource(JNIEnv* env, DecoderSource* source, jobject bufferRef)
+{
+    DecoderHandle* h = 0;
+    int error = decoderOpenSource(source, &h);
+    if (error != 0) {
+        if (bufferRef != 0) {
+            (*env)->DeleteGlobalRef(env, bufferRef);
         }
+        return handleOrThrow(env, error, 0);
     }
-    return -1;
+    h->userData = bufferRef;
+    return (jlong)(intptr_t)h;
 }
 
-AVCodecContext* initCodecContext(JNIEnv* env, AVStream* videoStream)
+JNIEXPORT jlong JNICALL WRAP_PACKAGE(nativeInitFromBuffer)(JNIEnv* env, jobject self, jobject buffer)
 {
-    LOGI(7, "initCodecContext");
-    AVCodecContext* codecContext = videoStream->codec;
-    AVCodec* codec = avcodec_find_decoder(codecContext->codec_id);
-    if (codec == 0) {
-        make_exception(env, ERROR_FIND_VIDEODECODER);
+    LOGI(6, WRAP_PACKAGE_STRING(nativeInitFromBuffer));
+
+    void* data = (*env)->GetDirectBufferAddress(env, buffer);
+    jlong size = (*env)->GetDirectBufferCapacity(env, buffer);
+    if (data == 0 || size <= 0) {
+        make_exception(env, ERROR_BAD_SOURCE);
         return 0;
     }
-    if (avcodec_open2(codecContext, codec, 0) != 0) {
-        make_exception(env, ERROR_OPEN_VIDEODECODER);
+    DecoderSource* source = createSource((const uint8_t*)data, -1, 0, size, 0);
+    if (source == 0) {
+        make_exception(env, ERROR_NOT_ENOUGH_MEMORY);
         return 0;
     }
-    return codecContext;
+    // The buffer's memory must stay reachable (and mapped) while the decoder reads from it.
+    return initFromSource(env, source, (*env)->NewGlobalRef(env, buffer));
 }
 
-JNIEXPORT jlong JNICALL WRAP_PACKAGE(nativeInit)(JNIEnv* env, jobject self, jstring pFilename)
+JNIEXPORT jlong JNICALL WRAP_PACKAGE(nativeInitFromDescriptor)(JNIEnv* env, jobject self, jobject fileDescriptor, jlong offset,
+                                                               jlong length)
 {
-    LOGI(6, WRAP_PACKAGE_STRING(nativeInit));
+    LOGI(6, WRAP_PACKAGE_STRING(nativeInitFromDescriptor));
 
-    AVFormatContext* formatContext = initContext(env, pFilename);
-    if (formatContext == 0) {
+    jclass descriptorClass = (*env)->GetObjectClass(env, fileDescriptor);
+    jfieldID descriptorFieldID = (*env)->GetFieldID(env, descriptorClass, "descriptor", "I");
+    if (descriptorFieldID == 0) {
+        return 0; // NoSuchFieldError is pending.
+    }
+    // The descriptor is duplicated in order to let the caller close its own copy right after the decoder is initialized.
+    int fd = dup((*env)->GetIntField(env, fileDescriptor, descriptorFieldID));
+    if (fd < 0) {
+        LOGE(1, "nativeInitFromDescriptor, dup failed, errno %d", errno);
+        make_exception(env, ERROR_BAD_SOURCE);
         return 0;
     }
-
-    if (avformat_find_stream_info(formatContext, 0) < 0) {
-        make_exception(env, ERROR_NO_STREAM_INFO);
+    if (length < 0) {
+        struct stat fileStat;
+        if (fstat(fd, &fileStat) != 0) {
+            close(fd);
+            make_exception(env, ERROR_BAD_SOURCE);
+            return 0;
+        }
+        length = fileStat.st_size - offset;
+    }
+    if (offset < 0 || length <= 0) {
+        close(fd);
+        make_exception(env, ERROR_BAD_SOURCE);
         return 0;
     }
-
-    int videoStreamIndex = findVideoStreamIndex(formatContext);
-    if (videoStreamIndex == -1) {
-        make_exception(env, ERROR_FIND_VIDEOSTREAM);
+    DecoderSource* source = createSource(0, fd, offset, length, 0);
+    if (source == 0) {
+        close(fd);
+        make_exception(env, ERROR_NOT_ENOUGH_MEMORY);
         return 0;
     }
-    AVStream* videoStream = formatContext->streams[videoStreamIndex];
-    LOGI(10, "number of frames: %lld", videoStream->nb_frames);
+    return initFromSource(env, source, 0);
+}
 
-    AVCodecContext* codecContext = initCodecContext(env, videoStream);
-    if (codecContext == 0) {
+JNIEXPORT jlong JNICALL WRAP_PACKAGE(nativeCreateStream)(JNIEnv* env, jobject self, jlong expectedSize)
+{
+    LOGI(6, WRAP_PACKAGE_STRING(nativeCreateStream));
+    DecoderStream* stream = createStream(expectedSize);
+    if (stream == 0) {
+        make_exception(env, ERROR_NOT_ENOUGH_MEMORY);
         return 0;
     }
+    return (jlong)(intptr_t)stream;
+}
 
-    LOGI(8, "codecContext w x h = %d x %d", codecContext->width, codecContext->height);
+JNIEXPORT void JNICALL WRAP_PACKAGE(nativeUpdateStream)(JNIEnv* env, jobject self, jlong streamHandle, jlong available, jint state)
+{
+    LOGI(6, WRAP_PACKAGE_STRING(nativeUpdateStream));
+    updateStream((DecoderStream*)(intptr_t)streamHandle, available, (StreamState)state);
+}
 
-    DecoderHandle* h = malloc(sizeof(DecoderHandle));
-    h->formatContext = formatContext;
-    h->videoStream = videoStream;
-    h->videoStreamIndex = videoStreamIndex;
-    h->codecContext = codecContext;
-    h->frameYUV = av_frame_alloc();
-    h->frameRGB = av_frame_alloc();
+JNIEXPORT void JNICALL WRAP_PACKAGE(nativeRetainStream)(JNIEnv* env, jobject self, jlong streamHandle)
+{
+    LOGI(6, WRAP_PACKAGE_STRING(nativeRetainStream));
+    retainStream((DecoderStream*)(intptr_t)streamHandle);
+}
 
-    LOGI(10, "CODEC_CAP = %d", codecContext->codec->capabilities);
+JNIEXPORT void JNICALL WRAP_PACKAGE(nativeReleaseStream)(JNIEnv* env, jobject self, jlong streamHandle)
+{
+    LOGI(6, WRAP_PACKAGE_STRING(nativeReleaseStream));
+    releaseStream((DecoderStream*)(intptr_t)streamHandle);
+}
 
-    return (jlong)(intptr_t)h;
+/*
+ * Takes over a reference to the given stream (it's released on failure or when the decoder is released).
+ */
+JNIEXPORT jlong JNICALL WRAP_PACKAGE(nativeInitFromStream)(JNIEnv* env, jobject self, jobject fileDescriptor, jlong streamHandle)
+{
+    LOGI(6, WRAP_PACKAGE_STRING(nativeInitFromStream));
+    DecoderStream* stream = (DecoderStream*)(intptr_t)streamHandle;
+
+    jclass descriptorClass = (*env)->GetObjectClass(env, fileDescriptor);
+    jfieldID descriptorFieldID = (*env)->GetFieldID(env, descriptorClass, "descriptor", "I");
+    if (descriptorFieldID == 0) {
+        releaseStream(stream);
+        return 0; // NoSuchFieldError is pending.
+    }
+    int fd = dup((*env)->GetIntField(env, fileDescriptor, descriptorFieldID));
+    if (fd < 0) {
+        LOGE(1, "nativeInitFromStream, dup failed, errno %d", errno);
+        releaseStream(stream);
+        make_exception(env, ERROR_BAD_SOURCE);
+        return 0;
+    }
+    DecoderSource* source = createSource(0, fd, 0, -1, stream);
+    if (source == 0) {
+        close(fd);
+        releaseStream(stream);
+        make_exception(env, ERROR_NOT_ENOUGH_MEMORY);
+        return 0;
+    }
+    return initFromSource(env, source, 0);
 }
 
 JNIEXPORT void JNICALL WRAP_PACKAGE(nativeRelease)(JNIEnv *pEnv, jobject self, jlong handle)
 {
     LOGI(6, WRAP_PACKAGE_STRING(nativeRelease));
     DecoderHandle* h = (DecoderHandle*)(intptr_t)handle;
-    LOGI(10, "will close codec");
-    avcodec_close(h->codecContext);
-    LOGI(10, "will close context");
-    avformat_close_input(&h->formatContext);
-    LOGI(10, "will free frameYUV");
-    av_frame_free(&h->frameYUV);
-    LOGI(10, "will free frameRGB");
-    av_frame_free(&h->frameRGB);
-    LOGI(10, "will free handle");
-    free(h);
+    jobject bufferRef = (jobject)h->userData;
+    decoderRelease(h);
+    if (bufferRef != 0) {
+        (*pEnv)->DeleteGlobalRef(pEnv, bufferRef);
+    }
 }
 
-void* lockAndroidBitmapPixels(JNIEnv *env, jobject bitmap)
+/*
+ * Locks pixels of an ARGB_8888 or RGB_565 bitmap, its dimensions and format are returned via the info structure.
+ */
+void* lockAndroidBitmapPixels(JNIEnv *env, jobject bitmap, AndroidBitmapInfo* info)
 {
     LOGI(7, "lockAndroidBitmapPixels");
     AndroidBitmapInfo linfo;
@@ -191,7 +287,7 @@ void* lockAndroidBitmapPixels(JNIEnv *env, jobject bitmap)
         LOGE(0, "AndroidBitmap_getInfo failed, error=%d", lret);
         return 0;
     }
-    if (linfo.format != ANDROID_BITMAP_FORMAT_RGBA_8888) {
+    if (linfo.format != ANDROID_BITMAP_FORMAT_RGBA_8888 && linfo.format != ANDROID_BITMAP_FORMAT_RGB_565) {
         //make_exception(env, ERROR_WRONG_BITMAP_FORMAT);
         LOGE(0, "Wrong bitmap format %d", linfo.format);
         return 0;
@@ -202,157 +298,429 @@ void* lockAndroidBitmapPixels(JNIEnv *env, jobject bitmap)
         LOGE(0, "AndroidBitmap_lockPixels failed, error=%d", lret);
         return 0;
     }
+    *info = linfo;
     return bitmapPixels;
 }
 
+typedef struct tbitmapsink {
+    JNIEnv* env;
+    jobject bitmap;
+} BitmapSink;
+
+int lockBitmapSink(void* opaque, PixelBuffer* buffer)
+{
+    BitmapSink* sink = (BitmapSink*)opaque;
+    AndroidBitmapInfo bitmapInfo;
+    void* bitmapPixels = lockAndroidBitmapPixels(sink->env, sink->bitmap, &bitmapInfo);
+    if (bitmapPixels == 0) {
+        return -1;
+    }
+    buffer->pixels = (uint8_t*)bitmapPixels;
+    buffer->width = bitmapInfo.width;
+    buffer->height = bitmapInfo.height;
+    // Bitmap rows might be padded.
+    buffer->stride = bitmapInfo.stride;
+    buffer->format = bitmapInfo.format == ANDROID_BITMAP_FORMAT_RGB_565 ? CONVERT_RGB565 : CONVERT_RGBA;
+    return 0;
+}
+
+void unlockBitmapSink(void* opaque)
+{
+    BitmapSink* sink = (BitmapSink*)opaque;
+    AndroidBitmap_unlockPixels(sink->env, sink->bitmap);
+}
+
 JNIEXPORT void JNICALL WRAP_PACKAGE(nativeReset)(JNIEnv *env, jobject self, jlong handle)
 {
     LOGI(6, WRAP_PACKAGE_STRING(nativeReset));
-    DecoderHandle* h = (DecoderHandle*)(intptr_t)handle;
-    AVFormatContext* ctx = h->formatContext;
-    AVCodecContext* codecContext = h->codecContext;
-    int videoStreamIndex = h->videoStreamIndex;
+    decoderReset((DecoderHandle*)(intptr_t)handle);
+}
 
-    int res = avformat_seek_file(ctx, videoStreamIndex, INT64_MIN, 0, INT64_MAX, 0);
-    if (res >= 0) {
-        LOGI(7, "refcounted frames %d", codecContext->refcounted_frames);
-        avcodec_flush_buffers(codecContext);
-    }
+JNIEXPORT jlong JNICALL WRAP_PACKAGE(nativeGetNextFrame)(JNIEnv *env, jobject self, jlong handle, jobject bitmap)
+{
+    LOGI(6, WRAP_PACKAGE_STRING(nativeGetNextFrame));
+    BitmapSink bitmapSink = {env, bitmap};
+    PixelSink sink = {lockBitmapSink, unlockBitmapSink, &bitmapSink};
+    return decoderNextFrame((DecoderHandle*)(intptr_t)handle, &sink);
 }
 
-jlong decodeFrame(JNIEnv* env, DecoderHandle* h, AVPacket* packet, jobject bitmap, int* stop
-#if PROFILING_ON
-, clock_t start
-#endif
-)
+/*
+ * Remuxes the input MP4 to the output file with the 'moov' atom at the beginning (stream copy, no re-encoding),
+ * so that later opens are a single sequential read.
+ *
+ * Returns 0 on success, negative FFmpeg error code otherwise.
+ */
+JNIEXPORT jint JNICALL WRAP_PACKAGE(nativeRemuxFaststart)(JNIEnv* env, jobject self, jstring javaInput, jstring javaOutput)
 {
-    LOGI(10, "decodeFrame");
-    LOGI(8, "packet: pts %lld, dts %lld", packet->pts, packet->dts);
-    AVCodecContext* codecContext = h->codecContext;
-    AVStream* videoStream =  h->videoStream;
-    AVFrame* frameYUV = h->frameYUV;
+    LOGI(6, WRAP_PACKAGE_STRING(nativeRemuxFaststart));
+    const char* input = (*env)->GetStringUTFChars(env, javaInput, 0);
+    const char* output = (*env)->GetStringUTFChars(env, javaOutput, 0);
+    AVFormatContext* inContext = 0;
+    AVFormatContext* outContext = 0;
+    AVDictionary* options = 0;
+    int* streamMapping = 0;
+    int headerWritten = 0;
+    int result;
 
-    int gotPicture = 0;
-    int bytesDecompressed = avcodec_decode_video2(codecContext, frameYUV, &gotPicture, packet);
+    if ((result = avformat_open_input(&inContext, input, 0, 0)) < 0) {
+        LOGE(1, "nativeRemuxFaststart, can't open %s, error %d", input, result);
+        goto end;
+    }
+    if ((result = avformat_find_stream_info(inContext, 0)) < 0) {
+        goto end;
+    }
+    if ((result = avformat_alloc_output_context2(&outContext, 0, "mp4", output)) < 0) {
+        goto end;
+    }
+    streamMapping = malloc(inContext->nb_streams * sizeof(int));
+    if (streamMapping == 0) {
+        result = AVERROR(ENOMEM);
+        goto end;
+    }
+    int i;
+    for (i = 0; i < inContext->nb_streams; ++i) {
+        AVStream* inStream = inContext->streams[i];
+        enum AVMediaType type = inStream->codec->codec_type;
+        if (type != AVMEDIA_TYPE_VIDEO && type != AVMEDIA_TYPE_AUDIO) {
+            streamMapping[i] = -1;
+            continue;
+        }
+        AVStream* outStream = avformat_new_stream(outContext, 0);
+        if (outStream == 0 || (result = avcodec_copy_context(outStream->codec, inStream->codec)) < 0) {
+            result = result < 0 ? result : AVERROR(ENOMEM);
+            goto end;
+        }
+        outStream->codec->codec_tag = 0;
+        if (outContext->oformat->flags & AVFMT_GLOBALHEADER) {
+            outStream->codec->flags |= CODEC_FLAG_GLOBAL_HEADER;
+        }
+        outStream->time_base = inStream->time_base;
+        streamMapping[i] = outStream->index;
+    }
+    if ((result = avio_open(&outContext->pb, output, AVIO_FLAG_WRITE)) < 0) {
+        goto end;
+    }
+    av_dict_set(&options, "movflags", "faststart", 0);
+    if ((result = avformat_write_header(outContext, &options)) < 0) {
+        goto end;
+    }
+    headerWritten = 1;
 
-    LOGI(10, "bytes decompressed %d", bytesDecompressed);
+    AVPacket packet;
+    av_init_packet(&packet);
+    while (av_read_frame(inContext, &packet) == 0) {
+        int outIndex = streamMapping[packet.stream_index];
+        if (outIndex < 0) {
+            av_free_packet(&packet);
+            continue;
+        }
+        AVRational inTimeBase = inContext->streams[packet.stream_index]->time_base;
+        AVRational outTimeBase = outContext->streams[outIndex]->time_base;
+        if (packet.pts != AV_NOPTS_VALUE) {
+            packet.pts = av_rescale_q(packet.pts, inTimeBase, outTimeBase);
+        }
+        if (packet.dts != AV_NOPTS_VALUE) {
+            packet.dts = av_rescale_q(packet.dts, inTimeBase, outTimeBase);
+        }
+        packet.duration = (int)av_rescale_q(packet.duration, inTimeBase, outTimeBase);
+        packet.pos = -1;
+        packet.stream_index = outIndex;
+        result = av_interleaved_write_frame(outContext, &packet);
+        av_free_packet(&packet);
+        if (result < 0) {
+            goto end;
+        }
+    }
+    // The trailer is where the 'moov' atom is written and moved to the file's beginning.
+    result = av_write_trailer(outContext);
+    headerWritten = 0;
 
-    if (gotPicture == 0) {
-        *stop = 0;
-        av_frame_unref(frameYUV);
-        return -1;
+end:
+    if (headerWritten) {
+        av_write_trailer(outContext);
     }
+    if (outContext != 0) {
+        if (outContext->pb != 0) {
+            avio_close(outContext->pb);
+        }
+        avformat_free_context(outContext);
+    }
+    if (inContext != 0) {
+        avformat_close_input(&inContext);
+    }
+    av_dict_free(&options);
+    free(streamMapping);
+    (*env)->ReleaseStringUTFChars(env, javaInput, input);
+    (*env)->ReleaseStringUTFChars(env, javaOutput, output);
+    LOGI(7, "nativeRemuxFaststart, result %d", result);
+    return result;
+}
 
-    LOGI(8, "frame: is key = %d, coded num %d, display num %d", frameYUV->key_frame, frameYUV->coded_picture_number, frameYUV->display_picture_number);
+int encodeFrame(AVFormatContext* outContext, AVStream* outStream, AVFrame* frame, int* gotPacket)
+{
+    AVCodecContext* encoderContext = outStream->codec;
+    AVPacket packet;
+    av_init_packet(&packet);
+    packet.data = 0;
+    packet.size = 0;
+    int result = avcodec_encode_video2(encoderContext, &packet, frame, gotPacket);
+    if (result < 0 || *gotPacket == 0) {
+        return result;
+    }
+    if (packet.pts != AV_NOPTS_VALUE) {
+        packet.pts = av_rescale_q(packet.pts, encoderContext->time_base, outStream->time_base);
+    }
+    if (packet.dts != AV_NOPTS_VALUE) {
+        packet.dts = av_rescale_q(packet.dts, encoderContext->time_base, outStream->time_base);
+    }
+    packet.stream_index = outStream->index;
+    result = av_interleaved_write_frame(outContext, &packet);
+    av_free_packet(&packet);
+    return result;
+}
 
-    jclass bitmapClass = (*env)->FindClass(env, "android/graphics/Bitmap");
-    jmethodID getWidthMethodID = (*env)->GetMethodID(env, bitmapClass, "getWidth", "()I");
-    jmethodID getHeightMethodID = (*env)->GetMethodID(env, bitmapClass, "getHeight", "()I");
+/*
+ * Decodes a frame (if any) from the given packet, scales it to the target size and encodes.
+ * Returns number of decoded frames (zero or one) on success, negative FFmpeg error code otherwise.
+ */
+int transcodePacket(AVFormatContext* outContext, AVStream* outStream, AVStream* inStream, AVPacket* packet, AVFrame* frame,
+                    struct SwsContext* scaleContext, AVFrame* scaledFrame, int64_t* lastPts)
+{
+    int gotPicture = 0;
+    int result = avcodec_decode_video2(inStream->codec, frame, &gotPicture, packet);
+    if (result < 0 || gotPicture == 0) {
+        return result < 0 ? result : 0;
+    }
+    sws_scale(scaleContext, (uint8_t const* const*)frame->data, frame->linesize, 0, frame->height,
+              scaledFrame->data, scaledFrame->linesize);
+
+    int64_t pts = frame->pkt_pts != AV_NOPTS_VALUE ? frame->pkt_pts : frame->pkt_dts;
+    AVRational millis = {1, 1000};
+    pts = pts == AV_NOPTS_VALUE ? *lastPts + 1 : av_rescale_q(pts, inStream->time_base, millis);
+    if (pts <= *lastPts) {
+        pts = *lastPts + 1;
+    }
+    *lastPts = pts;
+    scaledFrame->pts = pts;
+    av_frame_unref(frame);
 
-    int width = (*env)->CallIntMethod(env, bitmap, getWidthMethodID);
-    int height = (*env)->CallIntMethod(env, bitmap, getHeightMethodID);
+    int gotPacket;
+    result = encodeFrame(outContext, outStream, scaledFrame, &gotPacket);
+    return result < 0 ? result : 1;
+}
 
-    LOGI(8, "bitmap w x h = %d x %d", width, height);
+/*
+ * Re-encodes the video stream of the input file to an MPEG-4 part 2 video of the given size (the bundled FFmpeg has
+ * no other encoder) and stores it to the output MP4 file (with the 'moov' atom first).
+ *
+ * Returns 0 on success, negative FFmpeg error code otherwise.
+ */
+JNIEXPORT jint JNICALL WRAP_PACKAGE(nativeTranscode)(JNIEnv* env, jobject self, jstring javaInput, jstring javaOutput, jint width,
+                                                     jint height)
+{
+    LOGI(6, WRAP_PACKAGE_STRING(nativeTranscode));
+    const char* input = (*env)->GetStringUTFChars(env, javaInput, 0);
+    const char* output = (*env)->GetStringUTFChars(env, javaOutput, 0);
+    AVFormatContext* inContext = 0;
+    AVFormatContext* outContext = 0;
+    AVCodecContext* decoderContext = 0;
+    AVCodecContext* encoderContext = 0;
+    struct SwsContext* scaleContext = 0;
+    AVFrame* frame = 0;
+    AVFrame* scaledFrame = 0;
+    AVDictionary* options = 0;
+    int pictureAllocated = 0;
+    int headerWritten = 0;
+    int result;
 
-    // YUV -> RGB24
-    struct SwsContext* scaleCtx = sws_getContext(
-        frameYUV->width,
-        frameYUV->height,
-        (enum PixelFormat)frameYUV->format,
-        width,
-        height,
-        PIX_FMT_RGBA,
-        SWS_BICUBIC,
-        0, 0, 0);
+    if ((result = avformat_open_input(&inContext, input, 0, 0)) < 0) {
+        LOGE(1, "nativeTranscode, can't open %s, error %d", input, result);
+        goto end;
+    }
+    if ((result = avformat_find_stream_info(inContext, 0)) < 0) {
+        goto end;
+    }
+    int videoStreamIndex = findVideoStreamIndex(inContext);
+    if (videoStreamIndex < 0) {
+        result = AVERROR(EINVAL);
+        goto end;
+    }
+    AVStream* inStream = inContext->streams[videoStreamIndex];
+    AVCodec* decoder = avcodec_find_decoder(inStream->codec->codec_id);
+    if (decoder == 0 || (result = avcodec_open2(inStream->codec, decoder, 0)) < 0) {
+        result = result < 0 ? result : AVERROR(EINVAL);
+        goto end;
+    }
+    decoderContext = inStream->codec;
 
-    AVFrame* frameRGB = h->frameRGB;
-    void* bitmapPixels = lockAndroidBitmapPixels(env, bitmap);
-    if (bitmapPixels == 0) {
-        *stop = 1;
-        av_frame_unref(frameYUV);
-        return -1;
+    AVCodec* encoder = avcodec_find_encoder(AV_CODEC_ID_MPEG4);
+    if (encoder == 0) {
+        result = AVERROR(EINVAL);
+        goto end;
     }
-    if (avpicture_fill((AVPicture*)frameRGB, (uint8_t*)bitmapPixels, PIX_FMT_RGBA, width, height) < 0) {
-        make_exception(env, ERROR_BITMAP_FILL);
-        *stop = 1;
-        av_frame_unref(frameYUV);
-        return -1;
+    if ((result = avformat_alloc_output_context2(&outContext, 0, "mp4", output)) < 0) {
+        goto end;
     }
-    sws_scale(
-        scaleCtx,
-        (uint8_t const* const*)frameYUV->data,
-        frameYUV->linesize,
-        0,
-        frameYUV->height,
-        (uint8_t* const*)frameRGB->data,
-        frameRGB->linesize);
-    AndroidBitmap_unlockPixels(env, bitmap);
-    sws_freeContext(scaleCtx);
-
-#if PROFILING_ON
-    clock_t end = clock() ;
-    double elapsed_time = (end-start)/(double)CLOCKS_PER_SEC;
-    LOGI(10, "decode total time in ms: %d", (int)(elapsed_time * 1000));
-#endif
-
-    LOGI(8, "frame: pts %lld, pkt_pts %lld, pkt_dts %lld", frameYUV->pts, frameYUV->pkt_pts, frameYUV->pkt_dts);
-    jlong timestamp = 0;
-    if (frameYUV->pkt_pts != AV_NOPTS_VALUE) {
-        timestamp = videoStream->time_base.num * frameYUV->pkt_pts * 1000 / videoStream->time_base.den;
-    }
-    *stop = 1;
-    av_frame_unref(frameYUV);
-    return timestamp;
-}
+    AVStream* outStream = avformat_new_stream(outContext, encoder);
+    if (outStream == 0) {
+        result = AVERROR(ENOMEM);
+        goto end;
+    }
+    AVCodecContext* context = outStream->codec;
+    context->codec_id = AV_CODEC_ID_MPEG4;
+    context->codec_type = AVMEDIA_TYPE_VIDEO;
+    context->width = width;
+    context->height = height;
+    context->pix_fmt = PIX_FMT_YUV420P;
+    // Millisecond precision is enough for animations and fits MPEG-4 time base limits (unlike 1/90000 etc).
+    context->time_base.num = 1;
+    context->time_base.den = 1000;
+    context->bit_rate = (int64_t)width * height * 4;
+    context->gop_size = 12;
+    context->max_b_frames = 0;
+    if (outContext->oformat->flags & AVFMT_GLOBALHEADER) {
+        context->flags |= CODEC_FLAG_GLOBAL_HEADER;
+    }
+    if ((result = avcodec_open2(context, encoder, 0)) < 0) {
+        goto end;
+    }
+    encoderContext = context;
+    outStream->time_base = context->time_base;
+
+    scaleContext = sws_getContext(decoderContext->width, decoderContext->height, decoderContext->pix_fmt,
+                                  width, height, PIX_FMT_YUV420P, SWS_AREA, 0, 0, 0);
+    frame = av_frame_alloc();
+    scaledFrame = av_frame_alloc();
+    if (scaleContext == 0 || frame == 0 || scaledFrame == 0) {
+        result = AVERROR(ENOMEM);
+        goto end;
+    }
+    if ((result = avpicture_alloc((AVPicture*)scaledFrame, PIX_FMT_YUV420P, width, height)) < 0) {
+        goto end;
+    }
+    pictureAllocated = 1;
+    scaledFrame->width = width;
+    scaledFrame->height = height;
+    scaledFrame->format = PIX_FMT_YUV420P;
 
-JNIEXPORT jlong JNICALL WRAP_PACKAGE(nativeGetNextFrame)(JNIEnv *env, jobject self, jlong handle, jobject bitmap)
-{
-#if PROFILING_ON
-    clock_t start = clock();
-#endif
-    LOGI(6, WRAP_PACKAGE_STRING(nativeGetNextFrame));
-    DecoderHandle* h = (DecoderHandle*)(intptr_t)handle;
-    AVFormatContext* ctx = h->formatContext;
-    AVCodecContext* codecContext = h->codecContext;
-    int videoStreamIndex = h->videoStreamIndex;
+    if ((result = avio_open(&outContext->pb, output, AVIO_FLAG_WRITE)) < 0) {
+        goto end;
+    }
+    av_dict_set(&options, "movflags", "faststart", 0);
+    if ((result = avformat_write_header(outContext, &options)) < 0) {
+        goto end;
+    }
+    headerWritten = 1;
 
+    int64_t lastPts = -1;
     AVPacket packet;
     av_init_packet(&packet);
-
-    while (av_read_frame(ctx, &packet) == 0) {
-        if (packet.stream_index != videoStreamIndex) {
-            av_free_packet(&packet);
-            continue;
+    while (av_read_frame(inContext, &packet) == 0) {
+        if (packet.stream_index == videoStreamIndex) {
+            result = transcodePacket(outContext, outStream, inStream, &packet, frame, scaleContext, scaledFrame, &lastPts);
         }
-        int stop;
-        jlong timestamp = decodeFrame(env, h, &packet, bitmap, &stop
-#if PROFILING_ON
-, start
-#endif
-);
         av_free_packet(&packet);
-        if (stop == 1) {
-            LOGI(10, "timestamp %lld", timestamp);
-            return timestamp;
+        if (result < 0) {
+            goto end;
         }
     }
-    av_free_packet(&packet);
-    av_init_packet(&packet);
-    if (codecContext->codec->capabilities & CODEC_CAP_DELAY) {
-        LOGI(10, "CODEC_CAP_DELAY, data %p, size %d", packet.data, packet.size);
-        int stop;
-        jlong timestamp = decodeFrame(env, h, &packet, bitmap, &stop
-#if PROFILING_ON
-, start
-#endif
-);
-        av_free_packet(&packet);
-        LOGI(10, "timestamp %lld", timestamp);
-        return timestamp;
+    // Flush delayed frames of the decoder and then of the encoder.
+    if (decoder->capabilities & CODEC_CAP_DELAY) {
+        do {
+            av_init_packet(&packet);
+            packet.data = 0;
+            packet.size = 0;
+            result = transcodePacket(outContext, outStream, inStream, &packet, frame, scaleContext, scaledFrame, &lastPts);
+        } while (result > 0);
+        if (result < 0) {
+            goto end;
+        }
     }
-    av_free_packet(&packet);
-    LOGI(10, "timestamp -1");
-    return -1;
+    int gotPacket;
+    do {
+        result = encodeFrame(outContext, outStream, 0, &gotPacket);
+    } while (result >= 0 && gotPacket);
+    if (result < 0) {
+        goto end;
+    }
+    result = av_write_trailer(outContext);
+    headerWritten = 0;
+
+end:
+    if (headerWritten) {
+        av_write_trailer(outContext);
+    }
+    if (encoderContext != 0) {
+        avcodec_close(encoderContext);
+    }
+    if (outContext != 0) {
+        if (outContext->pb != 0) {
+            avio_close(outContext->pb);
+        }
+        avformat_free_context(outContext);
+    }
+    if (decoderContext != 0) {
+        avcodec_close(decoderContext);
+    }
+    if (inContext != 0) {
+        avformat_close_input(&inContext);
+    }
+    if (pictureAllocated) {
+        avpicture_free((AVPicture*)scaledFrame);
+    }
+    av_frame_free(&frame);
+    av_frame_free(&scaledFrame);
+    sws_freeContext(scaleContext);
+    av_dict_free(&options);
+    (*env)->ReleaseStringUTFChars(env, javaInput, input);
+    (*env)->ReleaseStringUTFChars(env, javaOutput, output);
+    LOGI(7, "nativeTranscode, result %d", result);
+    return result;
+}
+
+JNIEXPORT void JNICALL WRAP_PACKAGE(nativeSetQuality)(JNIEnv* env, jobject self, jlong handle, jint quality)
+{
+    LOGI(6, WRAP_PACKAGE_STRING(nativeSetQuality));
+    decoderSetQuality((DecoderHandle*)(intptr_t)handle, (DecodeQuality)quality);
+}
+
+/*
+ * See decoderSkipUntil().
+ */
+JNIEXPORT void JNICALL WRAP_PACKAGE(nativeSkipUntil)(JNIEnv* env, jobject self, jlong handle, jlong timestamp)
+{
+    LOGI(6, WRAP_PACKAGE_STRING(nativeSkipUntil));
+    decoderSkipUntil((DecoderHandle*)(intptr_t)handle, timestamp);
+}
+
+JNIEXPORT jlong JNICALL WRAP_PACKAGE(nativeGetMemoryUsage)(JNIEnv* env, jobject self, jlong handle)
+{
+    LOGI(6, WRAP_PACKAGE_STRING(nativeGetMemoryUsage));
+    return decoderGetMemoryUsage((DecoderHandle*)(intptr_t)handle);
+}
+
+/*
+ * Copies DecoderStats of the decoder into the given array (its size is AnimationDecoder.STATS_SIZE).
+ */
+JNIEXPORT void JNICALL WRAP_PACKAGE(nativeGetStats)(JNIEnv* env, jobject self, jlong handle, jlongArray stats)
+{
+    LOGI(6, WRAP_PACKAGE_STRING(nativeGetStats));
+    DecoderHandle* h = (DecoderHandle*)(intptr_t)handle;
+    jlong tmp[] = {
+        h->stats.demuxNanos,
+        h->stats.decodeNanos,
+        h->stats.convertNanos,
+        h->stats.packets,
+        h->stats.convertedFrames,
+        h->stats.skippedFrames,
+    };
+    (*env)->SetLongArrayRegion(env, stats, 0, sizeof(tmp) / sizeof(tmp[0]), tmp);
+}
+
+JNIEXPORT void JNICALL WRAP_PACKAGE(nativeSetThreadBudget)(JNIEnv* env, jobject self, jint threads)
+{
+    LOGI(6, WRAP_PACKAGE_STRING(nativeSetThreadBudget));
+    setDecoderThreadBudget(threads);
 }
 
 JNIEXPORT jintArray JNICALL WRAP_PACKAGE(nativeGetDimensions)(JNIEnv *env, jobject self, jlong handle)
@@ -364,8 +732,9 @@ JNIEXPORT jintArray JNICALL WRAP_PACKAGE(nativeGetDimensions)(JNIEnv *env, jobje
         return 0;
     }
     DecoderHandle* h = (DecoderHandle*)(intptr_t)handle;
-    AVCodecContext* codecContext = h->codecContext;
-    jint tmp[] = {codecContext->width, codecContext->height};
+    int width, height;
+    decoderGetDimensions(h, &width, &height);
+    jint tmp[] = {width, height};
     (*env)->SetIntArrayRegion(env, result, 0, 2, tmp);
     return result;
 }
@@ -375,7 +744,7 @@ jint JNI_OnLoad(JavaVM* pVm, void* reserved) {
 	if ((*pVm)->GetEnv(pVm, (void **)&env, JNI_VERSION_1_6) != JNI_OK) {
 		 return -1;
 	}
-	JNINativeMethod nm[10];
+	JNINativeMethod nm[21];
 	nm[0].name = "nativeInit";
 	nm[0].signature = "(Ljava/lang/String;)J";
 	nm[0].fnPtr = WRAP_PACKAGE(nativeInit);
@@ -396,8 +765,72 @@ jint JNI_OnLoad(JavaVM* pVm, void* reserved) {
     nm[4].signature = "(J)V";
     nm[4].fnPtr = WRAP_PACKAGE(nativeReset);
 
+    nm[5].name = "nativeInitFromBuffer";
+    nm[5].signature = "(Ljava/nio/ByteBuffer;)J";
+    nm[5].fnPtr = WRAP_PACKAGE(nativeInitFromBuffer);
+
+    nm[6].name = "nativeInitFromDescriptor";
+    nm[6].signature = "(Ljava/io/FileDescriptor;JJ)J";
+    nm[6].fnPtr = WRAP_PACKAGE(nativeInitFromDescriptor);
+
+    nm[7].name = "nativeCreateStream";
+    nm[7].signature = "(J)J";
+    nm[7].fnPtr = WRAP_PACKAGE(nativeCreateStream);
+
+    nm[8].name = "nativeUpdateStream";
+    nm[8].signature = "(JJI)V";
+    nm[8].fnPtr = WRAP_PACKAGE(nativeUpdateStream);
+
+    nm[9].name = "nativeRetainStream";
+    nm[9].signature = "(J)V";
+    nm[9].fnPtr = WRAP_PACKAGE(nativeRetainStream);
+
+    nm[10].name = "nativeReleaseStream";
+    nm[10].signature = "(J)V";
+    nm[10].fnPtr = WRAP_PACKAGE(nativeReleaseStream);
+
+    nm[11].name = "nativeInitFromStream";
+    nm[11].signature = "(Ljava/io/FileDescriptor;J)J";
+    nm[11].fnPtr = WRAP_PACKAGE(nativeInitFromStream);
+
+    nm[12].name = "nativeRemuxFaststart";
+    nm[12].signature = "(Ljava/lang/String;Ljava/lang/String;)I";
+    nm[12].fnPtr = WRAP_PACKAGE(nativeRemuxFaststart);
+
+    nm[13].name = "nativeTranscode";
+    nm[13].signature = "(Ljava/lang/String;Ljava/lang/String;II)I";
+    nm[13].fnPtr = WRAP_PACKAGE(nativeTranscode);
+
+    nm[14].name = "nativeSetQuality";
+    nm[14].signature = "(JI)V";
+    nm[14].fnPtr = WRAP_PACKAGE(nativeSetQuality);
+
+    nm[15].name = "nativeSetThreadBudget";
+    nm[15].signature = "(I)V";
+    nm[15].fnPtr = WRAP_PACKAGE(nativeSetThreadBudget);
+
+    nm[16].name = "nativeSkipUntil";
+    nm[16].signature = "(JJ)V";
+    nm[16].fnPtr = WRAP_PACKAGE(nativeSkipUntil);
+
+    nm[17].name = "nativeInitWithStreamInfo";
+    nm[17].signature = "(Ljava/lang/String;[J)J";
+    nm[17].fnPtr = WRAP_PACKAGE(nativeInitWithStreamInfo);
+
+    nm[18].name = "nativeGetStreamInfo";
+    nm[18].signature = "(J)[J";
+    nm[18].fnPtr = WRAP_PACKAGE(nativeGetStreamInfo);
+
+    nm[19].name = "nativeGetMemoryUsage";
+    nm[19].signature = "(J)J";
+    nm[19].fnPtr = WRAP_PACKAGE(nativeGetMemoryUsage);
+
+    nm[20].name = "nativeGetStats";
+    nm[20].signature = "(J[J)V";
+    nm[20].fnPtr = WRAP_PACKAGE(nativeGetStats);
+
 	jclass cls = (*env)->FindClass(env, "bo/pic/android/media/content/animation/AnimationDecoder");
-	(*env)->RegisterNatives(env, cls, nm, 5);
+	(*env)->RegisterNatives(env, cls, nm, 21);
 
 	av_register_all();
 
@@ -0,0 +1,759 @@
+#include <unistd.h>
+#include <pthread.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <fcntl.h>
+#include <errno.h>
+#include <string.h>
+#include <time.h>
+
+#include <libavutil/avutil.h>
+#include <libavutil/mathematics.h>
+
+#include "decoder_core.h"
+#include "log.h"
+
+#define FRAME_THREADING_MIN_PIXELS (640 * 480)
+#define MAX_DECODING_THREADS 4
+/* Probing limits for files with known stream info, the container header is still read in full */
+#define MIN_PROBE_SIZE 4096
+#define MIN_ANALYZE_DURATION (AV_TIME_BASE / 10)
+
+/*
+ * Number of additional (beyond the calling one) decoding threads which all decoders may use together. Grids of small
+ * animations don't need any, a large animation is decoded by several threads if the budget allows.
+ */
+static pthread_mutex_t threadBudgetMutex = PTHREAD_MUTEX_INITIALIZER;
+static int threadBudget = -1;
+static int threadsInUse = 0;
+
+static int64_t nowNanos()
+{
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return (int64_t)ts.tv_sec * 1000000000LL + ts.tv_nsec;
+}
+
+DecoderStream* createStream(int64_t expectedSize)
+{
+    DecoderStream* stream = malloc(sizeof(DecoderStream));
+    if (stream == 0) {
+        return 0;
+    }
+    pthread_mutex_init(&stream->mutex, 0);
+    pthread_cond_init(&stream->condition, 0);
+    stream->available = 0;
+    stream->expectedSize = expectedSize;
+    stream->state = STREAM_IN_PROGRESS;
+    stream->refCount = 1;
+    return stream;
+}
+
+void updateStream(DecoderStream* stream, int64_t available, StreamState state)
+{
+    pthread_mutex_lock(&stream->mutex);
+    if (stream->state == STREAM_IN_PROGRESS) {
+        stream->available = available;
+        stream->state = state;
+        pthread_cond_broadcast(&stream->condition);
+    }
+    pthread_mutex_unlock(&stream->mutex);
+}
+
+void retainStream(DecoderStream* stream)
+{
+    pthread_mutex_lock(&stream->mutex);
+    stream->refCount++;
+    pthread_mutex_unlock(&stream->mutex);
+}
+
+void releaseStream(DecoderStream* stream)
+{
+    pthread_mutex_lock(&stream->mutex);
+    int refCount = --stream->refCount;
+    pthread_mutex_unlock(&stream->mutex);
+    if (refCount == 0) {
+        pthread_cond_destroy(&stream->condition);
+        pthread_mutex_destroy(&stream->mutex);
+        free(stream);
+    }
+}
+
+/*
+ * Blocks until the stream has data at the given position (or is finished) and returns the number of bytes which
+ * might be read from there.
+ */
+static int64_t awaitStream(DecoderStream* stream, int64_t position)
+{
+    pthread_mutex_lock(&stream->mutex);
+    while (stream->state == STREAM_IN_PROGRESS && stream->available <= position) {
+        pthread_cond_wait(&stream->condition, &stream->mutex);
+    }
+    int64_t result = stream->state == STREAM_ABORTED ? -1 : stream->available - position;
+    pthread_mutex_unlock(&stream->mutex);
+    return result;
+}
+
+static int64_t getStreamSize(DecoderStream* stream)
+{
+    pthread_mutex_lock(&stream->mutex);
+    int64_t result = stream->state == STREAM_COMPLETE ? stream->available : stream->expectedSize;
+    pthread_mutex_unlock(&stream->mutex);
+    return result;
+}
+
+DecoderSource* createSource(const uint8_t* data, int fd, int64_t offset, int64_t size, DecoderStream* stream)
+{
+    DecoderSource* source = malloc(sizeof(DecoderSource));
+    if (source == 0) {
+        return 0;
+    }
+    source->data = data;
+    source->fd = fd;
+    source->offset = offset;
+    source->size = size;
+    source->position = 0;
+    source->stream = stream;
+    return source;
+}
+
+static int readSource(void* opaque, uint8_t* buf, int bufSize)
+{
+    DecoderSource* source = (DecoderSource*)opaque;
+    int64_t available;
+    if (source->stream != 0) {
+        available = awaitStream(source->stream, source->position);
+        if (available < 0) {
+            LOGE(1, "readSource, the stream is aborted");
+            return AVERROR(EIO);
+        }
+    } else {
+        available = source->size - source->position;
+    }
+    if (available <= 0) {
+        return AVERROR_EOF;
+    }
+    int toRead = available < bufSize ? (int)available : bufSize;
+    if (source->data != 0) {
+        memcpy(buf, source->data + source->position, toRead);
+    } else {
+        ssize_t result = pread(source->fd, buf, toRead, source->offset + source->position);
+        if (result < 0) {
+            LOGE(1, "readSource, pread failed, errno %d", errno);
+            return AVERROR(errno);
+        }
+        if (result == 0) {
+            return AVERROR_EOF;
+        }
+        toRead = (int)result;
+    }
+    source->position += toRead;
+    return toRead;
+}
+
+static int64_t seekSource(void* opaque, int64_t offset, int whence)
+{
+    DecoderSource* source = (DecoderSource*)opaque;
+    int64_t position;
+    switch (whence & ~AVSEEK_FORCE) {
+      case AVSEEK_SIZE:
+        return source->stream == 0 ? source->size : getStreamSize(source->stream);
+      case SEEK_SET:
+        position = offset;
+        break;
+      case SEEK_CUR:
+        position = source->position + offset;
+        break;
+      case SEEK_END:
+        if (source->stream != 0) {
+            int64_t size = getStreamSize(source->stream);
+            if (size < 0) {
+                return -1;
+            }
+            position = size + offset;
+        } else {
+            position = source->size + offset;
+        }
+        break;
+      default:
+        return -1;
+    }
+    // The end of a stream which is still being downloaded is unknown, the reads block there instead.
+    if (position < 0 || (source->stream == 0 && position > source->size)) {
+        return -1;
+    }
+    source->position = position;
+    return position;
+}
+
+static void releaseSource(AVIOContext* ioContext, DecoderSource* source)
+{
+    if (ioContext != 0) {
+        av_freep(&ioContext->buffer);
+        av_free(ioContext);
+    }
+    if (source != 0) {
+        if (source->fd >= 0) {
+            close(source->fd);
+        }
+        if (source->stream != 0) {
+            releaseStream(source->stream);
+        }
+        free(source);
+    }
+}
+
+static int initCustomContext(DecoderSource* source, AVIOContext** pIoContext, AVFormatContext** pFormatContext)
+{
+    LOGI(7, "initCustomContext");
+    unsigned char* ioBuffer = av_malloc(IO_BUFFER_SIZE);
+    if (ioBuffer == 0) {
+        return ERROR_NOT_ENOUGH_MEMORY;
+    }
+    AVIOContext* ioContext = avio_alloc_context(ioBuffer, IO_BUFFER_SIZE, 0, source, readSource, 0, seekSource);
+    if (ioContext == 0) {
+        av_free(ioBuffer);
+        return ERROR_NOT_ENOUGH_MEMORY;
+    }
+    *pIoContext = ioContext;
+
+    AVFormatContext* formatContext = avformat_alloc_context();
+    if (formatContext == 0) {
+        return ERROR_NOT_ENOUGH_MEMORY;
+    }
+    formatContext->pb = ioContext;
+    formatContext->flags |= AVFMT_FLAG_CUSTOM_IO;
+    int result;
+    if ((result = avformat_open_input(&formatContext, "", 0, 0)) != 0) {
+        // avformat_open_input() frees the context on failure but doesn't touch custom AVIO context.
+        LOGI(7, "initCustomContext, result opening source %d", result);
+        return ERROR_OPEN_FILE;
+    }
+    *pFormatContext = formatContext;
+    return 0;
+}
+
+int findVideoStreamIndex(AVFormatContext* formatContext)
+{
+    LOGI(7, "findVideoStreamIndex");
+    int i = 0;
+    for (; i < formatContext->nb_streams; ++i) {
+        if (formatContext->streams[i]->codec->codec_type == AVMEDIA_TYPE_VIDEO) {
+            return i;
+        }
+    }
+    return -1;
+}
+
+/*
+ * Returns number of additional threads granted to a decoder of the given resolution (to be released via releaseThreads()).
+ */
+static int acquireThreads(int width, int height)
+{
+    int wanted = 0;
+    int pixels = width * height;
+    if (pixels >= 4 * FRAME_THREADING_MIN_PIXELS) {
+        wanted = MAX_DECODING_THREADS - 1;
+    } else if (pixels >= FRAME_THREADING_MIN_PIXELS) {
+        wanted = 1;
+    }
+    if (wanted == 0) {
+        return 0;
+    }
+    pthread_mutex_lock(&threadBudgetMutex);
+    if (threadBudget < 0) {
+        long cores = sysconf(_SC_NPROCESSORS_ONLN);
+        threadBudget = cores > 1 ? (int)cores - 1 : 0;
+    }
+    int granted = threadBudget - threadsInUse;
+    if (granted > wanted) {
+        granted = wanted;
+    }
+    if (granted < 0) {
+        granted = 0;
+    }
+    threadsInUse += granted;
+    pthread_mutex_unlock(&threadBudgetMutex);
+    return granted;
+}
+
+static void releaseThreads(int threads)
+{
+    if (threads == 0) {
+        return;
+    }
+    pthread_mutex_lock(&threadBudgetMutex);
+    threadsInUse -= threads;
+    pthread_mutex_unlock(&threadBudgetMutex);
+}
+
+void setDecoderThreadBudget(int threads)
+{
+    pthread_mutex_lock(&threadBudgetMutex);
+    threadBudget = threads < 0 ? 0 : threads;
+    pthread_mutex_unlock(&threadBudgetMutex);
+}
+
+static int initCodecContext(AVStream* videoStream, int* extraThreads)
+{
+    LOGI(7, "initCodecContext");
+    AVCodecContext* codecContext = videoStream->codec;
+    AVCodec* codec = avcodec_find_decoder(codecContext->codec_id);
+    if (codec == 0) {
+        return ERROR_FIND_VIDEODECODER;
+    }
+    *extraThreads = acquireThreads(codecContext->width, codecContext->height);
+    codecContext->thread_count = 1 + *extraThreads;
+    // Frame threading is preferred as it doesn't depend on how the stream is encoded, slice threading is a fallback.
+    codecContext->thread_type = FF_THREAD_FRAME | FF_THREAD_SLICE;
+    if (avcodec_open2(codecContext, codec, 0) != 0) {
+        releaseThreads(*extraThreads);
+        return ERROR_OPEN_VIDEODECODER;
+    }
+    LOGI(8, "decoding threads: %d, type %d", codecContext->thread_count, codecContext->active_thread_type);
+    return 0;
+}
+
+/*
+ * Takes over the given format context, i.e. closes it on failure.
+ */
+static int openHandle(AVFormatContext* formatContext, DecoderHandle** result)
+{
+    LOGI(7, "openHandle");
+    if (avformat_find_stream_info(formatContext, 0) < 0) {
+        avformat_close_input(&formatContext);
+        return ERROR_NO_STREAM_INFO;
+    }
+
+    int videoStreamIndex = findVideoStreamIndex(formatContext);
+    if (videoStreamIndex == -1) {
+        avformat_close_input(&formatContext);
+        return ERROR_FIND_VIDEOSTREAM;
+    }
+    AVStream* videoStream = formatContext->streams[videoStreamIndex];
+    LOGI(10, "number of frames: %lld", (long long)videoStream->nb_frames);
+
+    int extraThreads = 0;
+    int error = initCodecContext(videoStream, &extraThreads);
+    if (error != 0) {
+        avformat_close_input(&formatContext);
+        return error;
+    }
+    AVCodecContext* codecContext = videoStream->codec;
+
+    LOGI(8, "codecContext w x h = %d x %d", codecContext->width, codecContext->height);
+
+    DecoderHandle* h = malloc(sizeof(DecoderHandle));
+    if (h == 0) {
+        avcodec_close(codecContext);
+        releaseThreads(extraThreads);
+        avformat_close_input(&formatContext);
+        return ERROR_NOT_ENOUGH_MEMORY;
+    }
+    h->formatContext = formatContext;
+    h->videoStream = videoStream;
+    h->videoStreamIndex = videoStreamIndex;
+    h->codecContext = codecContext;
+    h->frameYUV = av_frame_alloc();
+    h->ioContext = 0;
+    h->source = 0;
+    h->width = codecContext->width;
+    h->height = codecContext->height;
+    h->lowres = 0;
+    h->quality = QUALITY_FULL;
+    h->decodedFrames = 0;
+    h->extraThreads = extraThreads;
+    h->skipUntil = -1;
+    h->scaleContext = 0;
+    memset(&h->stats, 0, sizeof(DecoderStats));
+    h->userData = 0;
+
+    LOGI(10, "CODEC_CAP = %d", codecContext->codec->capabilities);
+
+    *result = h;
+    return 0;
+}
+
+/*
+ * Seeds codec parameters of the video stream from the stream info recorded at a previous open of the same file and lowers
+ * probing limits, so avformat_find_stream_info() doesn't read and decode frames just to find out what's already known.
+ * Does nothing if the info doesn't match the file (e.g. the file has been replaced since).
+ */
+static void seedStreamInfo(AVFormatContext* formatContext, const int64_t* info, int size)
+{
+    if (info == 0 || size < STREAM_INFO_SIZE) {
+        return;
+    }
+    int videoStreamIndex = findVideoStreamIndex(formatContext);
+    if (videoStreamIndex == -1) {
+        return;
+    }
+    AVCodecContext* codecContext = formatContext->streams[videoStreamIndex]->codec;
+    if (codecContext->codec_id != info[STREAM_INFO_CODEC_ID]
+        || (codecContext->width != 0 && codecContext->width != info[STREAM_INFO_WIDTH])
+        || (codecContext->height != 0 && codecContext->height != info[STREAM_INFO_HEIGHT]))
+    {
+        LOGI(7, "seedStreamInfo, stale stream info");
+        return;
+    }
+    codecContext->width = (int)info[STREAM_INFO_WIDTH];
+    codecContext->height = (int)info[STREAM_INFO_HEIGHT];
+    if (codecContext->pix_fmt == PIX_FMT_NONE) {
+        codecContext->pix_fmt = (enum PixelFormat)info[STREAM_INFO_PIXEL_FORMAT];
+    }
+    formatContext->probesize = MIN_PROBE_SIZE;
+    formatContext->max_analyze_duration = MIN_ANALYZE_DURATION;
+}
+
+int decoderOpenFile(const char* filename, const int64_t* streamInfo, int streamInfoSize, DecoderHandle** result)
+{
+    LOGI(7, "decoderOpenFile");
+    AVFormatContext* formatContext = 0;
+    int error;
+    if ((error = avformat_open_input(&formatContext, filename, 0, 0)) != 0) {
+        LOGI(7, "decoderOpenFile, result opening file %d, file %s", error, filename);
+        return ERROR_OPEN_FILE;
+    }
+    seedStreamInfo(formatContext, streamInfo, streamInfoSize);
+    return openHandle(formatContext, result);
+}
+
+int decoderOpenSource(DecoderSource* source, DecoderHandle** result)
+{
+    LOGI(7, "decoderOpenSource");
+    AVIOContext* ioContext = 0;
+    AVFormatContext* formatContext = 0;
+    int error = initCustomContext(source, &ioContext, &formatContext);
+    if (error == 0) {
+        error = openHandle(formatContext, result);
+    }
+    if (error != 0) {
+        releaseSource(ioContext, source);
+        return error;
+    }
+    (*result)->ioContext = ioContext;
+    (*result)->source = source;
+    return 0;
+}
+
+void decoderRelease(DecoderHandle* h)
+{
+    LOGI(10, "will close codec");
+    avcodec_close(h->codecContext);
+    releaseThreads(h->extraThreads);
+    LOGI(10, "will close context");
+    avformat_close_input(&h->formatContext);
+    LOGI(10, "will free frameYUV");
+    av_frame_free(&h->frameYUV);
+    sws_freeContext(h->scaleContext);
+    LOGI(10, "will free source");
+    releaseSource(h->ioContext, h->source);
+    LOGI(10, "will free handle");
+    free(h);
+}
+
+void decoderReset(DecoderHandle* h)
+{
+    AVFormatContext* ctx = h->formatContext;
+    AVCodecContext* codecContext = h->codecContext;
+    int videoStreamIndex = h->videoStreamIndex;
+
+    h->skipUntil = -1;
+    codecContext->skip_frame = AVDISCARD_DEFAULT;
+    int res = avformat_seek_file(ctx, videoStreamIndex, INT64_MIN, 0, INT64_MAX, 0);
+    if (res >= 0) {
+        LOGI(7, "refcounted frames %d", codecContext->refcounted_frames);
+        avcodec_flush_buffers(codecContext);
+    }
+}
+
+/*
+ * Returns swscale flags for conversions which the fast path doesn't support: bicubic interpolation is noticeably more
+ * expensive and only pays off at full quality, reduced quality frames are scaled with cheaper filters.
+ */
+static int chooseScaleFlags(DecodeQuality quality)
+{
+    switch (quality) {
+        case QUALITY_FULL:
+            return SWS_BICUBIC;
+        case QUALITY_REDUCED:
+            return SWS_BILINEAR;
+        default:
+            return SWS_FAST_BILINEAR;
+    }
+}
+
+/*
+ * YUV -> RGB. The common cases (4:2:0 frames at the buffer size or exactly twice as large, e.g. with lowres) go through
+ * the conversion stage of convert.c, everything else through swscale with a context which is reused across frames.
+ */
+static void convertFrame(DecoderHandle* h, AVFrame* frameYUV, const PixelBuffer* buffer)
+{
+    if (frameYUV->format == PIX_FMT_YUV420P && canConvertYuv420(frameYUV->width, frameYUV->height, buffer->width, buffer->height)) {
+        YuvPlanes planes;
+        planes.y = frameYUV->data[0];
+        planes.u = frameYUV->data[1];
+        planes.v = frameYUV->data[2];
+        planes.yStride = frameYUV->linesize[0];
+        planes.uStride = frameYUV->linesize[1];
+        planes.vStride = frameYUV->linesize[2];
+        planes.width = frameYUV->width;
+        planes.height = frameYUV->height;
+        convertYuv420(&planes, buffer->pixels, buffer->stride, buffer->width, buffer->height, buffer->format);
+        return;
+    }
+    // Android's RGB_565 is native-endian, just like PIX_FMT_RGB565.
+    enum PixelFormat bufferFormat = buffer->format == CONVERT_RGB565 ? PIX_FMT_RGB565 : PIX_FMT_RGBA;
+    h->scaleContext = sws_getCachedContext(
+        h->scaleContext,
+        frameYUV->width,
+        frameYUV->height,
+        (enum PixelFormat)frameYUV->format,
+        buffer->width,
+        buffer->height,
+        bufferFormat,
+        chooseScaleFlags(h->quality),
+        0, 0, 0);
+    if (h->scaleContext == 0) {
+        LOGE(1, "can't convert %d x %d, format %d", frameYUV->width, frameYUV->height, frameYUV->format);
+        return;
+    }
+    uint8_t* const data[4] = {buffer->pixels, 0, 0, 0};
+    const int linesize[4] = {buffer->stride, 0, 0, 0};
+    sws_scale(
+        h->scaleContext,
+        (uint8_t const* const*)frameYUV->data,
+        frameYUV->linesize,
+        0,
+        frameYUV->height,
+        data,
+        linesize);
+}
+
+/*
+ * Decodes the packet and converts the resulting frame (if any) into the sink. Sets *stop to 1 if the frame is
+ * converted (its timestamp is returned) or the sink can't be locked, the next packet is needed otherwise.
+ */
+static int64_t decodeFrame(DecoderHandle* h, AVPacket* packet, const PixelSink* sink, int* stop)
+{
+    LOGI(10, "decodeFrame");
+    LOGI(8, "packet: pts %lld, dts %lld", (long long)packet->pts, (long long)packet->dts);
+    AVCodecContext* codecContext = h->codecContext;
+    AVStream* videoStream =  h->videoStream;
+    AVFrame* frameYUV = h->frameYUV;
+
+    int gotPicture = 0;
+    int64_t start = nowNanos();
+    int bytesDecompressed = avcodec_decode_video2(codecContext, frameYUV, &gotPicture, packet);
+    int64_t decoded = nowNanos();
+    h->stats.decodeNanos += decoded - start;
+
+    LOGI(10, "bytes decompressed %d", bytesDecompressed);
+
+    if (gotPicture == 0) {
+        if (h->skipUntil >= 0 && packet->size > 0) {
+            // A non-reference frame which is discarded while catching up.
+            h->stats.skippedFrames++;
+        }
+        *stop = 0;
+        av_frame_unref(frameYUV);
+        return -1;
+    }
+
+    h->decodedFrames++;
+    LOGI(8, "frame: is key = %d, coded num %d, display num %d", frameYUV->key_frame, frameYUV->coded_picture_number, frameYUV->display_picture_number);
+
+    int64_t timestamp = 0;
+    if (frameYUV->pkt_pts != AV_NOPTS_VALUE) {
+        timestamp = videoStream->time_base.num * frameYUV->pkt_pts * 1000 / videoStream->time_base.den;
+    }
+    if (h->skipUntil >= 0) {
+        if (timestamp < h->skipUntil) {
+            // The frame is late anyway, there is no point in converting it.
+            LOGI(8, "skip frame %lld, catching up to %lld", (long long)timestamp, (long long)h->skipUntil);
+            h->stats.skippedFrames++;
+            *stop = 0;
+            av_frame_unref(frameYUV);
+            return -1;
+        }
+        h->skipUntil = -1;
+        codecContext->skip_frame = AVDISCARD_DEFAULT;
+    }
+
+    PixelBuffer buffer;
+    if (sink->lock(sink->opaque, &buffer) != 0) {
+        *stop = 1;
+        av_frame_unref(frameYUV);
+        return -1;
+    }
+    LOGI(8, "buffer w x h = %d x %d, format %d", buffer.width, buffer.height, buffer.format);
+    convertFrame(h, frameYUV, &buffer);
+    sink->unlock(sink->opaque);
+    h->stats.convertNanos += nowNanos() - decoded;
+    h->stats.convertedFrames++;
+
+    LOGI(8, "frame: pts %lld, pkt_pts %lld, pkt_dts %lld", (long long)frameYUV->pts, (long long)frameYUV->pkt_pts,
+         (long long)frameYUV->pkt_dts);
+    *stop = 1;
+    av_frame_unref(frameYUV);
+    return timestamp;
+}
+
+int64_t decoderNextFrame(DecoderHandle* h, const PixelSink* sink)
+{
+    AVFormatContext* ctx = h->formatContext;
+    AVCodecContext* codecContext = h->codecContext;
+    int videoStreamIndex = h->videoStreamIndex;
+
+    AVPacket packet;
+    av_init_packet(&packet);
+
+    int64_t start = nowNanos();
+    while (av_read_frame(ctx, &packet) == 0) {
+        h->stats.demuxNanos += nowNanos() - start;
+        h->stats.packets++;
+        if (packet.stream_index != videoStreamIndex) {
+            av_free_packet(&packet);
+            start = nowNanos();
+            continue;
+        }
+        int stop;
+        int64_t timestamp = decodeFrame(h, &packet, sink, &stop);
+        av_free_packet(&packet);
+        if (stop == 1) {
+            LOGI(10, "timestamp %lld", (long long)timestamp);
+            return timestamp;
+        }
+        start = nowNanos();
+    }
+    h->stats.demuxNanos += nowNanos() - start;
+    av_free_packet(&packet);
+    av_init_packet(&packet);
+    if (codecContext->codec->capabilities & CODEC_CAP_DELAY) {
+        LOGI(10, "CODEC_CAP_DELAY, data %p, size %d", packet.data, packet.size);
+        int stop;
+        int64_t timestamp = decodeFrame(h, &packet, sink, &stop);
+        av_free_packet(&packet);
+        LOGI(10, "timestamp %lld", (long long)timestamp);
+        return timestamp;
+    }
+    av_free_packet(&packet);
+    LOGI(10, "timestamp -1");
+    return -1;
+}
+
+/*
+ * Lowres decoding has to be configured before the codec is opened, so the codec is re-opened for it. That is safe
+ * only before the first frame is decoded (no references to keep), later changes keep current lowres value.
+ */
+static void reopenCodec(DecoderHandle* h, int lowres)
+{
+    AVCodecContext* codecContext = h->codecContext;
+    AVCodec* codec = (AVCodec*)codecContext->codec;
+    if (lowres > codec->max_lowres) {
+        lowres = codec->max_lowres;
+    }
+    if (lowres == h->lowres || h->decodedFrames > 0) {
+        return;
+    }
+    avcodec_close(codecContext);
+    codecContext->lowres = lowres;
+    if (avcodec_open2(codecContext, codec, 0) != 0) {
+        LOGE(1, "can't re-open codec with lowres %d", lowres);
+        codecContext->lowres = 0;
+        lowres = 0;
+        avcodec_open2(codecContext, codec, 0);
+    }
+    h->lowres = lowres;
+}
+
+void decoderSetQuality(DecoderHandle* h, DecodeQuality quality)
+{
+    if (h->quality == quality) {
+        return;
+    }
+    AVCodecContext* codecContext = h->codecContext;
+    switch (quality) {
+        case QUALITY_LOW:
+            reopenCodec(h, 2);
+            // Loop filter artifacts propagate through reference frames, but they are invisible at thumbnail scale.
+            codecContext->skip_loop_filter = AVDISCARD_ALL;
+            codecContext->skip_idct = AVDISCARD_NONREF;
+            break;
+        case QUALITY_REDUCED:
+            reopenCodec(h, 1);
+            codecContext->skip_loop_filter = AVDISCARD_NONREF;
+            codecContext->skip_idct = AVDISCARD_DEFAULT;
+            break;
+        default:
+            reopenCodec(h, 0);
+            codecContext->skip_loop_filter = AVDISCARD_DEFAULT;
+            codecContext->skip_idct = AVDISCARD_DEFAULT;
+            break;
+    }
+    h->quality = quality;
+    LOGI(7, "quality %d, lowres %d", quality, h->lowres);
+}
+
+void decoderSkipUntil(DecoderHandle* h, int64_t timestamp)
+{
+    h->skipUntil = timestamp;
+    h->codecContext->skip_frame = AVDISCARD_NONREF;
+}
+
+void decoderGetDimensions(DecoderHandle* h, int* width, int* height)
+{
+    *width = -((-h->width) >> h->lowres);
+    *height = -((-h->height) >> h->lowres);
+}
+
+/*
+ * Rough estimate of native memory held by the decoder: decoded picture buffers (reference frames plus frames in flight at
+ * frame threads), the IO buffer, the container index and codec extradata. RGB frames are written directly to the sink,
+ * so they are not counted.
+ */
+int64_t decoderGetMemoryUsage(DecoderHandle* h)
+{
+    AVCodecContext* codecContext = h->codecContext;
+    int width, height;
+    decoderGetDimensions(h, &width, &height);
+    enum PixelFormat pixelFormat = codecContext->pix_fmt == PIX_FMT_NONE ? PIX_FMT_YUV420P : codecContext->pix_fmt;
+    int64_t frameSize = avpicture_get_size(pixelFormat, width, height);
+    if (frameSize < 0) {
+        frameSize = (int64_t)width * height * 3 / 2;
+    }
+    int frames = (codecContext->refs > 0 ? codecContext->refs : 1) + 1;
+    if (codecContext->active_thread_type & FF_THREAD_FRAME) {
+        frames += codecContext->thread_count;
+    }
+    int64_t result = frameSize * frames;
+    result += IO_BUFFER_SIZE;
+    result += (int64_t)h->videoStream->nb_index_entries * sizeof(AVIndexEntry);
+    result += codecContext->extradata_size;
+    return result;
+}
+
+int decoderGetStreamInfo(DecoderHandle* h, int64_t** result)
+{
+    AVStream* videoStream = h->videoStream;
+    AVRational millis = {1, 1000};
+
+    int64_t* data = malloc(STREAM_INFO_SIZE * sizeof(int64_t));
+    if (data == 0) {
+        return ERROR_NOT_ENOUGH_MEMORY;
+    }
+    data[STREAM_INFO_CODEC_ID] = h->codecContext->codec_id;
+    data[STREAM_INFO_WIDTH] = h->width;
+    data[STREAM_INFO_HEIGHT] = h->height;
+    data[STREAM_INFO_PIXEL_FORMAT] = h->codecContext->pix_fmt;
+    data[STREAM_INFO_FRAME_COUNT] = videoStream->nb_frames > 0 ? videoStream->nb_frames : videoStream->nb_index_entries;
+    if (videoStream->duration != AV_NOPTS_VALUE) {
+        data[STREAM_INFO_DURATION] = av_rescale_q(videoStream->duration, videoStream->time_base, millis);
+    } else if (h->formatContext->duration != AV_NOPTS_VALUE) {
+        data[STREAM_INFO_DURATION] = h->formatContext->duration / (AV_TIME_BASE / 1000);
+    } else {
+        data[STREAM_INFO_DURATION] = -1;
+    }
+    *result = data;
+    return STREAM_INFO_SIZE;
+}
@@ -0,0 +1,212 @@
+#ifndef DECODER_CORE_H
+#define DECODER_CORE_H
+
+/*
+ * Platform independent part of the decoder: sources, demuxing, decoding and conversion into a pixel sink. It depends on
+ * FFmpeg only (no JNI, no Android), so it's built both into the Android library (see decoder.c which binds it to java
+ * and bitmaps) and into the host benchmarks (see bench/).
+ */
+
+#include <pthread.h>
+#include <stdint.h>
+
+#include <libavcodec/avcodec.h>
+#include <libavformat/avformat.h>
+#include <libswscale/swscale.h>
+
+#include "convert.h"
+
+#define IO_BUFFER_SIZE 32768
+
+typedef enum {
+    ERROR_OPEN_FILE = -1000,
+    ERROR_FIND_VIDEOSTREAM,
+    ERROR_FIND_VIDEODECODER,
+    ERROR_OPEN_VIDEODECODER,
+    ERROR_NO_STREAM_INFO,
+    ERROR_BAD_BITMAP,
+    ERROR_WRONG_BITMAP_FORMAT,
+    ERROR_LOCK_BITMAP_PIXELS,
+    ERROR_BITMAP_FILL,
+    ERROR_NOT_ENOUGH_MEMORY,
+    ERROR_BAD_SOURCE,
+} DecoderError;
+
+typedef enum {
+    STREAM_IN_PROGRESS = 0,
+    STREAM_COMPLETE,
+    STREAM_ABORTED,
+} StreamState;
+
+/*
+ * Progress of a file which is still being downloaded. Reads beyond the available bytes block until the download
+ * provides more data, completes or fails. Shared between the java side (which updates the progress) and the decoder.
+ */
+typedef struct tstream {
+    pthread_mutex_t mutex;
+    pthread_cond_t condition;
+    int64_t available;
+    int64_t expectedSize;
+    StreamState state;
+    int refCount;
+} DecoderStream;
+
+/*
+ * Custom AVIO source, i.e. the animation data is either a memory region (direct or mmapped java.nio.ByteBuffer)
+ * or a [offset; offset + size) range of a file descriptor (optionally a growing one, see DecoderStream).
+ */
+typedef struct tsource {
+    const uint8_t* data;
+    int fd;
+    int64_t offset;
+    int64_t size;
+    int64_t position;
+    DecoderStream* stream;
+} DecoderSource;
+
+/*
+ * Decoding cost/quality trade-off, keep in sync with DecodeQuality.java.
+ */
+typedef enum {
+    QUALITY_FULL = 0,
+    QUALITY_REDUCED,
+    QUALITY_LOW,
+} DecodeQuality;
+
+/*
+ * Layout of the stream info array, keep in sync with StreamInfo.java.
+ */
+typedef enum {
+    STREAM_INFO_CODEC_ID = 0,
+    STREAM_INFO_WIDTH,
+    STREAM_INFO_HEIGHT,
+    STREAM_INFO_PIXEL_FORMAT,
+    STREAM_INFO_FRAME_COUNT,
+    STREAM_INFO_DURATION,
+    STREAM_INFO_SIZE,
+} StreamInfoField;
+
+/*
+ * Destination pixels of a frame, its size defines the size the frame is scaled to.
+ */
+typedef struct tpixelbuffer {
+    uint8_t* pixels;
+    int width;
+    int height;
+    int stride;
+    ConvertFormat format;
+} PixelBuffer;
+
+/*
+ * Destination of decoded frames, e.g. an Android bitmap or a plain memory buffer. Pixels are locked only while a frame
+ * is converted, lock() returns 0 on success.
+ */
+typedef struct tpixelsink {
+    int (*lock)(void* opaque, PixelBuffer* buffer);
+    void (*unlock)(void* opaque);
+    void* opaque;
+} PixelSink;
+
+/*
+ * Cumulative costs of the decoding stages since the decoder is opened. Conversion includes locking the sink pixels.
+ * Skipped frames are the ones dropped while catching up (see decoderSkipUntil()), either decoded but not converted or not
+ * decoded at all. Keep the order in sync with AnimationDecoder.STATS_* (see nativeGetStats in decoder.c).
+ */
+typedef struct tstats {
+    int64_t demuxNanos;
+    int64_t decodeNanos;
+    int64_t convertNanos;
+    int64_t packets;
+    int64_t convertedFrames;
+    int64_t skippedFrames;
+} DecoderStats;
+
+typedef struct thandle {
+    AVFormatContext* formatContext;
+    AVCodecContext* codecContext;
+    AVStream* videoStream;
+    int videoStreamIndex;
+    AVFrame* frameYUV;
+    AVIOContext* ioContext;
+    DecoderSource* source;
+    int width;
+    int height;
+    int lowres;
+    DecodeQuality quality;
+    int64_t decodedFrames;
+    int extraThreads;
+    int64_t skipUntil;
+    struct SwsContext* scaleContext;
+    DecoderStats stats;
+    /* Owned by the caller, e.g. a reference which keeps memory of the source alive */
+    void* userData;
+} DecoderHandle;
+
+/*
+ * Opens the given file. Stream info recorded at a previous open of the same file (might be null) makes the open cheaper.
+ * Returns 0 on success or an error code.
+ */
+int decoderOpenFile(const char* filename, const int64_t* streamInfo, int streamInfoSize, DecoderHandle** result);
+
+/*
+ * Opens the given source, which is taken over (it's released on failure or when the decoder is released).
+ * Returns 0 on success or an error code.
+ */
+int decoderOpenSource(DecoderSource* source, DecoderHandle** result);
+
+/*
+ * Returns a new source (see DecoderSource) or 0 if there is not enough memory. Takes over the descriptor and the stream
+ * reference on success.
+ */
+DecoderSource* createSource(const uint8_t* data, int fd, int64_t offset, int64_t size, DecoderStream* stream);
+
+DecoderStream* createStream(int64_t expectedSize);
+void updateStream(DecoderStream* stream, int64_t available, StreamState state);
+void retainStream(DecoderStream* stream);
+void releaseStream(DecoderStream* stream);
+
+void decoderRelease(DecoderHandle* h);
+
+/*
+ * Rewinds the decoder to the beginning of the animation.
+ */
+void decoderReset(DecoderHandle* h);
+
+/*
+ * Decodes the next frame into the sink. Returns the frame's timestamp in milliseconds or -1 if there are no more frames
+ * or the sink can't be locked.
+ */
+int64_t decoderNextFrame(DecoderHandle* h, const PixelSink* sink);
+
+void decoderSetQuality(DecoderHandle* h, DecodeQuality quality);
+
+/*
+ * Makes the decoder catch up with the wall clock: frames with timestamps before the given one are neither converted
+ * nor returned, non-reference frames are not decoded at all until then.
+ */
+void decoderSkipUntil(DecoderHandle* h, int64_t timestamp);
+
+/*
+ * Returns dimensions of decoded frames, i.e. reduced ones if lowres decoding is in use.
+ */
+void decoderGetDimensions(DecoderHandle* h, int* width, int* height);
+
+int64_t decoderGetMemoryUsage(DecoderHandle* h);
+
+/*
+ * Returns the size of the stream info array (see StreamInfoField) which is allocated to *result and must be freed by
+ * the caller, or an error code.
+ */
+int decoderGetStreamInfo(DecoderHandle* h, int64_t** result);
+
+/*
+ * Returns index of the first video stream of the given container or -1 if there is none.
+ */
+int findVideoStreamIndex(AVFormatContext* formatContext);
+
+/*
+ * Sets number of additional decoding threads which all decoders may use together.
+ */
+void setDecoderThreadBudget(int threads);
+
+#endif
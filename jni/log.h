@@ -0,0 +1,18 @@
+#ifndef LOG_H
+#define LOG_H
+
+#define LOG_LEVEL 0
+
+/* Android logs at devices, stderr at host builds (see bench/) */
+#if defined(__ANDROID__)
+#include <android/log.h>
+#define LOG_TAG "libdecoder"
+#define LOGI(level, ...) if (level <= LOG_LEVEL) {__android_log_print(ANDROID_LOG_INFO, LOG_TAG, __VA_ARGS__);}
+#define LOGE(level, ...) if (level <= LOG_LEVEL) {__android_log_print(ANDROID_LOG_ERROR, LOG_TAG, __VA_ARGS__);}
+#else
+#include <stdio.h>
+#define LOGI(level, ...) if (level <= LOG_LEVEL) {fprintf(stderr, __VA_ARGS__); fputc('\n', stderr);}
+#define LOGE(level, ...) if (level <= LOG_LEVEL) {fprintf(stderr, __VA_ARGS__); fputc('\n', stderr);}
+#endif
+
+#endif
@@ -0,0 +1,257 @@
+package bo.pic.android.media;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import bo.pic.android.media.bitmap.BitmapPool;
+import bo.pic.android.media.cache.CacheKey;
+import bo.pic.android.media.cache.DiskCache;
+import bo.pic.android.media.cache.MemoryCache;
+import bo.pic.android.media.content.MediaContent;
+import bo.pic.android.media.content.transformation.MediaContentTransformation;
+import bo.pic.android.media.download.ImageDownloader;
+import bo.pic.android.media.util.ProcessingCallback;
+
+public class ImageLoaderTest extends AndroidTestCase {
+
+    private static final MediaContentType STICKER = new MediaContentType("sticker");
+
+    /** Animations are not decoded here, so any data will do */
+    private static final byte[] DATA = new byte[] { 0, 0, 0, 8, 'f', 't', 'y', 'p' };
+
+    private ExecutorService mExecutor;
+    private LruMemoryCache  mMemoryCache;
+    private ImageLoader     mImageLoader;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mExecutor = Executors.newSingleThreadExecutor();
+        mMemoryCache = new LruMemoryCache(1);
+        mImageLoader = new ImageLoader(getContext(),
+                                       new FailingImageDownloader(),
+                                       mMemoryCache,
+                                       new InMemoryDiskCache(),
+                                       new HashMap<MediaContentType, MediaContentTransformation>(),
+                                       new EmptyBitmapPool(),
+                                       mExecutor);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mExecutor.shutdownNow();
+        super.tearDown();
+    }
+
+    public void testSharedAnimationSurvivesEvictionOfAnotherSize() throws Exception {
+        String uri = "http://example.com/sticker.mp4";
+        MediaContent small = load(uri, 100, 100);
+        assertEquals(1, mMemoryCache.size());
+
+        // The cache is full, so caching the second size evicts the first one which holds the same animation.
+        MediaContent large = load(uri, 200, 200);
+        assertSame(small, large);
+        assertEquals(1, mMemoryCache.size());
+        assertFalse("A cached animation must not be released", large.isReleased());
+
+        // The evicted size is served by the live animation again.
+        MediaContent again = load(uri, 100, 100);
+        assertSame(large, again);
+        assertFalse(again.isReleased());
+    }
+
+    public void testReleasedAnimationIsNotShared() throws Exception {
+        String uri = "http://example.com/another-sticker.mp4";
+        MediaContent first = load(uri, 100, 100);
+        mMemoryCache.clear();
+        assertTrue("An animation without usages is released", first.isReleased());
+
+        MediaContent second = load(uri, 200, 200);
+        assertNotSame(first, second);
+        assertFalse(second.isReleased());
+    }
+
+    @Nonnull
+    private MediaContent load(@Nonnull String uri, int width, int height) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<Object> result = new AtomicReference<>();
+        mImageLoader.load(uri, STICKER)
+                    .setDimensions(width, height)
+                    .setProcessingCallback(new ProcessingCallback<MediaContent>() {
+                        @Override
+                        public void onSuccess(@Nonnull MediaContent data) {
+                            result.set(data);
+                            latch.countDown();
+                        }
+
+                        @Override
+                        public void onFail(@Nullable Throwable e) {
+                            result.set(e);
+                            latch.countDown();
+                        }
+                    })
+                    .proceed();
+        assertTrue("The load is not completed in time", latch.await(5, TimeUnit.SECONDS));
+        Object content = result.get();
+        if (!(content instanceof MediaContent)) {
+            throw new AssertionError("Can't load " + uri + ": " + content);
+        }
+        return (MediaContent) content;
+    }
+
+    private static class LruMemoryCache implements MemoryCache<CacheKey<String>, MediaContent> {
+
+        private final LinkedHashMap<CacheKey<String>, MediaContent> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+        private final int mCapacity;
+
+        private RemoveFromCacheListener<MediaContent> mListener;
+
+        LruMemoryCache(int capacity) {
+            mCapacity = capacity;
+        }
+
+        @Override
+        public void setRemoveFromCacheListener(@Nonnull RemoveFromCacheListener<MediaContent> listener) {
+            mListener = listener;
+        }
+
+        @Nullable
+        @Override
+        public MediaContent put(@Nonnull CacheKey<String> key, @Nonnull MediaContent value) {
+            MediaContent previous;
+            Map<CacheKey<String>, MediaContent> evicted = new LinkedHashMap<>();
+            synchronized (this) {
+                previous = mEntries.put(key, value);
+                for (Iterator<Map.Entry<CacheKey<String>, MediaContent>> i = mEntries.entrySet().iterator();
+                     mEntries.size() > mCapacity; )
+                {
+                    Map.Entry<CacheKey<String>, MediaContent> entry = i.next();
+                    evicted.put(entry.getKey(), entry.getValue());
+                    i.remove();
+                }
+            }
+            if (previous != null) {
+                mListener.onRemoved(previous);
+            }
+            for (MediaContent content : evicted.values()) {
+                mListener.onRemoved(content);
+            }
+            return previous;
+        }
+
+        @Nullable
+        @Override
+        public synchronized MediaContent get(@Nonnull CacheKey<String> key) {
+            return mEntries.get(key);
+        }
+
+        @Nullable
+        @Override
+        public MediaContent remove(@Nonnull CacheKey<String> key) {
+            MediaContent removed;
+            synchronized (this) {
+                removed = mEntries.remove(key);
+            }
+            if (removed != null) {
+                mListener.onRemoved(removed);
+            }
+            return removed;
+        }
+
+        @Override
+        public void clear() {
+            Map<CacheKey<String>, MediaContent> removed;
+            synchronized (this) {
+                removed = new LinkedHashMap<>(mEntries);
+                mEntries.clear();
+            }
+            for (MediaContent content : removed.values()) {
+                mListener.onRemoved(content);
+            }
+        }
+
+        synchronized int size() {
+            return mEntries.size();
+        }
+    }
+
+    /**
+     * Serves all contents from memory, files are never available (animations read the data then).
+     */
+    private static class InMemoryDiskCache implements DiskCache<CacheKey<String>> {
+
+        @Nonnull
+        @Override
+        public File getFile(CacheKey<String> key) {
+            return new File("/nonexistent/" + key.hashCode());
+        }
+
+        @Nonnull
+        @Override
+        public File getPartialFile(CacheKey<String> key) {
+            return new File("/nonexistent/" + key.hashCode() + ".partial");
+        }
+
+        @Nullable
+        @Override
+        public byte[] put(@Nonnull CacheKey<String> key, @Nonnull byte[] value) {
+            return null;
+        }
+
+        @Nullable
+        @Override
+        public byte[] get(@Nonnull CacheKey<String> key) {
+            return DATA;
+        }
+
+        @Nullable
+        @Override
+        public byte[] remove(@Nonnull CacheKey<String> key) {
+            return null;
+        }
+
+        @Override
+        public void commit(@Nonnull CacheKey<String> key, @Nonnull File file) {
+        }
+
+        @Override
+        public void clear() {
+        }
+    }
+
+    private static class FailingImageDownloader implements ImageDownloader {
+        @Nonnull
+        @Override
+        public Future<?> download(@Nonnull String imageUri, @Nonnull ProcessingCallback<byte[]> callback) {
+            throw new AssertionError("Unexpected download of " + imageUri);
+        }
+    }
+
+    private static class EmptyBitmapPool implements BitmapPool {
+        @Override
+        public Bitmap get(BitmapFactory.Options options) {
+            return null;
+        }
+
+        @Override
+        public boolean put(Bitmap bitmap) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package bo.pic.android.media.content.animation;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import bo.pic.android.media.content.MediaContent;
+import bo.pic.android.media.content.RepaintContext;
+
+/**
+ * Plays {@link AnimatedImageContent} in virtual time, see {@link PlaybackHarness}.
+ */
+public class AnimatedImageContentTest extends TestCase {
+
+    private static final float REFRESH_RATE = 60;
+
+    /** 25 fps, 400 ms per loop */
+    private static final int  FRAME_COUNT     = 10;
+    private static final long FRAME_INTERVAL  = 40;
+
+    private PlaybackHarness mHarness;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mHarness = new PlaybackHarness(REFRESH_RATE);
+    }
+
+    public void testPlaybackDoesNotDriftAcrossLoops() {
+        AnimatedImageContent content = mHarness.createAnimation(new ScriptedDecoder.Script(FRAME_COUNT, FRAME_INTERVAL, 5));
+        Recorder recorder = start(content);
+        mHarness.runFor(10000);
+
+        assertEquals(250, recorder.getRepaintCount(), 2);
+        assertEquals(0, recorder.getRepeatedFrameCount());
+        assertEquals(0, content.getPlaybackStats().getDroppedFrames());
+        // The last frame of a loop is shown as long as the others, so the animation keeps pace with the clock for all 25 loops.
+        assertTrue("Drift " + recorder.getMaxDrift(), recorder.getMaxDrift() <= getMaxJitter());
+    }
+
+    public void testRestartDoesNotDoubleTheLoop() {
+        AnimatedImageContent content = mHarness.createAnimation(new ScriptedDecoder.Script(FRAME_COUNT, FRAME_INTERVAL, 5));
+        Recorder recorder = start(content);
+        // The frame at 1040 ms is decoded by now and waits for presentation while the animation is restarted.
+        mHarness.runFor(1020);
+        content.stopDrawingFor(recorder);
+        content.startDrawingFor(recorder);
+        long decodedFrames = mHarness.getLastDecoder().getDecodedFrames();
+        int repaintCount = recorder.getRepaintCount();
+        mHarness.runFor(2000);
+
+        assertTrue(content.isRunning());
+        // A second animation loop would show frames twice.
+        assertEquals(0, recorder.getRepeatedFrameCount());
+        assertEquals(50, mHarness.getLastDecoder().getDecodedFrames() - decodedFrames, 2);
+        assertEquals(50, recorder.getRepaintCount() - repaintCount, 2);
+    }
+
+    public void testStopHaltsPlayback() {
+        AnimatedImageContent content = mHarness.createAnimation(new ScriptedDecoder.Script(FRAME_COUNT, FRAME_INTERVAL, 5));
+        Recorder recorder = start(content);
+        mHarness.runFor(1000);
+
+        content.stopDrawingFor(recorder);
+        // A frame which is being decoded is still completed, but it's not shown.
+        mHarness.runFor(FRAME_INTERVAL);
+        long decodedFrames = mHarness.getLastDecoder().getDecodedFrames();
+        int repaintCount = recorder.getRepaintCount();
+        mHarness.runFor(1000);
+
+        assertFalse(content.isRunning());
+        assertEquals(decodedFrames, mHarness.getLastDecoder().getDecodedFrames());
+        assertEquals(repaintCount, recorder.getRepaintCount());
+    }
+
+    public void testStartStopRaceEndsStopped() {
+        AnimatedImageContent content = mHarness.createAnimation(new ScriptedDecoder.Script(FRAME_COUNT, FRAME_INTERVAL, 5));
+        Recorder recorder = start(content);
+        content.stopDrawingFor(recorder);
+        content.startDrawingFor(recorder);
+        content.stopDrawingFor(recorder);
+        mHarness.runFor(1000);
+
+        assertFalse(content.isRunning());
+        assertEquals(0, mHarness.getLastDecoder().getDecodedFrames());
+        assertEquals(0, recorder.getRepaintCount());
+    }
+
+    public void testReleaseStopsPlayback() {
+        AnimatedImageContent content = mHarness.createAnimation(new ScriptedDecoder.Script(FRAME_COUNT, FRAME_INTERVAL, 5));
+        Recorder recorder = start(content);
+        mHarness.runFor(1000);
+
+        content.release();
+        mHarness.runFor(FRAME_INTERVAL);
+        long decodedFrames = mHarness.getLastDecoder().getDecodedFrames();
+        int repaintCount = recorder.getRepaintCount();
+        mHarness.runFor(1000);
+
+        assertTrue(content.isReleased());
+        assertTrue(mHarness.getLastDecoder().isReleased());
+        assertEquals(decodedFrames, mHarness.getLastDecoder().getDecodedFrames());
+        assertEquals(repaintCount, recorder.getRepaintCount());
+    }
+
+    public void testSlowFrameIsCaughtUp() {
+        // The 30th frame (due at 1200 ms) takes 300 ms, e.g. because of a GC pause.
+        AnimatedImageContent content = mHarness.createAnimation(
+                new ScriptedDecoder.Script(FRAME_COUNT, FRAME_INTERVAL, 5, 30, 300));
+        Recorder recorder = start(content);
+        mHarness.runFor(1500);
+        assertTrue("Drift " + recorder.getDrift(), recorder.getDrift() > FramePacer.MAX_LATENESS_MILLIS);
+
+        mHarness.runFor(500);
+        PlaybackStats stats = content.getPlaybackStats();
+        assertTrue(mHarness.getLastDecoder().getSkippedFrames() > 0);
+        assertTrue(stats.getDroppedFrames() > 0);
+        // Frames are skipped instead of being shown late, so the animation is back in sync with the clock.
+        assertTrue("Drift " + recorder.getDrift(),
+                   Math.abs(recorder.getDrift()) <= getMaxJitter());
+    }
+
+    public void testSlowDecodingIsNotAccumulated() {
+        // Decoding takes most of the frame interval, so a frame is late if the decoding starts after the previous frame is due.
+        AnimatedImageContent content = mHarness.createAnimation(new ScriptedDecoder.Script(FRAME_COUNT, FRAME_INTERVAL, 30));
+        Recorder recorder = start(content);
+        mHarness.runFor(10000);
+
+        PlaybackStats stats = content.getPlaybackStats();
+        assertEquals(250, recorder.getRepaintCount(), 2);
+        assertEquals(0, stats.getDroppedFrames());
+        assertTrue(stats.toString(), stats.getMaxLatenessMillis() < FramePacer.MAX_LATENESS_MILLIS);
+        assertTrue("Drift " + recorder.getMaxDrift(), recorder.getMaxDrift() < FramePacer.MAX_LATENESS_MILLIS);
+    }
+
+    public void testFrameRateCap() {
+        AnimatedImageContent content = mHarness.createAnimation(new ScriptedDecoder.Script(FRAME_COUNT, FRAME_INTERVAL, 5));
+        Recorder recorder = new Recorder();
+        content.addRepaintContext(recorder);
+        content.setMaxFrameRate(recorder, 12);
+        content.startDrawingFor(recorder);
+        mHarness.runFor(10000);
+
+        // Five frames per 400 ms loop as the cadence starts again from the loop's first frame, but not every third frame
+        // (8.3 fps), see FramePacer.getNextAllowedFrameOffset().
+        assertEquals(125, recorder.getRepaintCount(), 2);
+        assertEquals(0, content.getPlaybackStats().getDroppedFrames());
+        assertTrue("Drift " + recorder.getMaxDrift(), recorder.getMaxDrift() <= getMaxJitter());
+    }
+
+    public void testHighestFrameRateCapOfActiveViewsApplies() {
+        AnimatedImageContent content = mHarness.createAnimation(new ScriptedDecoder.Script(FRAME_COUNT, FRAME_INTERVAL, 5));
+        Recorder hero = new Recorder();
+        Recorder thumbnail = new Recorder();
+        content.addRepaintContext(hero);
+        content.addRepaintContext(thumbnail);
+        content.setMaxFrameRate(thumbnail, 12);
+        content.setMaxFrameRate(hero, 30);
+        content.startDrawingFor(thumbnail);
+        content.startDrawingFor(hero);
+        mHarness.runFor(2000);
+
+        // 30 fps is above the source frame rate, so all frames are shown at both views.
+        assertEquals(50, hero.getRepaintCount(), 2);
+        assertEquals(50, thumbnail.getRepaintCount(), 2);
+
+        content.stopDrawingFor(hero);
+        int repaintCount = thumbnail.getRepaintCount();
+        mHarness.runFor(2000);
+
+        // Five frames per 400 ms loop, see testFrameRateCap().
+        assertEquals(25, thumbnail.getRepaintCount() - repaintCount, 2);
+    }
+
+    /**
+     * @return    maximum drift which is explained by alignment of frames to vsyncs: the first frame might be shown almost a refresh
+     *            period late and the others might be shown that late or a bit early (within the clock's tolerance)
+     */
+    private long getMaxJitter() {
+        return 2 * mHarness.getRefreshPeriod();
+    }
+
+    @Nonnull
+    private Recorder start(@Nonnull AnimatedImageContent content) {
+        Recorder recorder = new Recorder();
+        content.addRepaintContext(recorder);
+        content.startDrawingFor(recorder);
+        return recorder;
+    }
+
+    /**
+     * Records when frames are shown and their positions at the animation's timeline.
+     */
+    private class Recorder implements RepaintContext {
+
+        private final List<long[]> mRepaints = new ArrayList<>();
+
+        @Override
+        public void repaint(@Nonnull MediaContent content) {
+            mRepaints.add(new long[] { mHarness.now(), mHarness.getLastDecoder().getTimelinePosition() });
+        }
+
+        int getRepaintCount() {
+            return mRepaints.size();
+        }
+
+        /**
+         * @return    how much the last shown frame is behind the clock relatively to the first one (in milliseconds)
+         */
+        long getDrift() {
+            return mRepaints.isEmpty() ? 0 : getDrift(mRepaints.size() - 1);
+        }
+
+        long getMaxDrift() {
+            long result = 0;
+            for (int i = 0; i < mRepaints.size(); i++) {
+                result = Math.max(result, Math.abs(getDrift(i)));
+            }
+            return result;
+        }
+
+        /**
+         * @return    number of frames which are shown not after the previous one, e.g. twice by two animation loops
+         */
+        int getRepeatedFrameCount() {
+            int result = 0;
+            for (int i = 1; i < mRepaints.size(); i++) {
+                if (mRepaints.get(i)[1] <= mRepaints.get(i - 1)[1]) {
+                    result++;
+                }
+            }
+            return result;
+        }
+
+        private long getDrift(int index) {
+            long[] first = mRepaints.get(0);
+            long[] repaint = mRepaints.get(index);
+            return (repaint[0] - first[0]) - (repaint[1] - first[1]);
+        }
+    }
+}
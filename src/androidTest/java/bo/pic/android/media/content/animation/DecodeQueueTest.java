@@ -0,0 +1,55 @@
+package bo.pic.android.media.content.animation;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import javax.annotation.Nonnull;
+
+public class DecodeQueueTest extends TestCase {
+
+    public void testTasksOfThreadAreExecutedByOneExecutor() {
+        RecordingExecutor first = new RecordingExecutor();
+        RecordingExecutor second = new RecordingExecutor();
+        DecodeQueue queue = new DecodeQueue(first, second);
+        for (int threadId : new int[] { -1, Integer.MIN_VALUE, -7, 0, 7, Integer.MAX_VALUE }) {
+            queue.add(new IdTask(threadId));
+            queue.add(new IdTask(threadId));
+            RecordingExecutor target = first.mTasks.isEmpty() ? second : first;
+            assertEquals("Tasks of thread " + threadId, 2, target.mTasks.size());
+            assertTrue(first.mTasks.isEmpty() || second.mTasks.isEmpty());
+            first.mTasks.clear();
+            second.mTasks.clear();
+        }
+    }
+
+    private static class RecordingExecutor implements Executor {
+
+        final List<Runnable> mTasks = new ArrayList<>();
+
+        @Override
+        public void execute(@Nonnull Runnable command) {
+            mTasks.add(command);
+        }
+    }
+
+    private static class IdTask implements DecodeQueue.Task {
+
+        private final int mThreadId;
+
+        IdTask(int threadId) {
+            mThreadId = threadId;
+        }
+
+        @Override
+        public int getThreadId() {
+            return mThreadId;
+        }
+
+        @Override
+        public void run() {
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package bo.pic.android.media.content.animation;
+
+import java.util.ArrayDeque;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+import javax.annotation.Nonnull;
+
+import bo.pic.android.media.util.ScaleMode;
+
+/**
+ * Plays real {@link AnimatedImageContent animations} in virtual time: the {@link AnimationClock clock} ticks at vsyncs of a virtual
+ * display, animation tasks run at a virtual decode thread, decoder lifecycle tasks run at a virtual lifecycle thread and decoders
+ * are {@link ScriptedDecoder scripted}.
+ * <p/>
+ * A {@link #spend(long) busy} virtual thread doesn't block the others, i.e. vsyncs keep ticking while a frame is being decoded.
+ * Everything is executed at the calling thread and doesn't depend on the wall clock, so the same scenario always plays the
+ * same way. Is not thread-safe.
+ */
+class PlaybackHarness {
+
+    private final PriorityQueue<Event> mEvents = new PriorityQueue<>();
+
+    private final VirtualThread mDecodeThread    = new VirtualThread();
+    private final VirtualThread mLifecycleThread = new VirtualThread();
+
+    @Nonnull private final AnimationClock mClock       = new AnimationClock(new VirtualFrameSource());
+    @Nonnull private final DecodeQueue    mTaskQueue   = new DecodeQueue(mDecodeThread);
+    @Nonnull private final DecoderPool    mDecoderPool = new DecoderPool(new DecodeQueue(mLifecycleThread),
+                                                                         new DecodeQueue(mLifecycleThread));
+
+    private final double mRefreshPeriod;
+
+    private ScriptedDecoder mLastDecoder;
+
+    private long mNow;
+    private long mEventCount;
+
+    /**
+     * @param refreshRate    refresh rate of the virtual display
+     */
+    PlaybackHarness(float refreshRate) {
+        mRefreshPeriod = 1000.0 / refreshRate;
+    }
+
+    /**
+     * @return    an animation which is played by the harness and is decoded by the given decoder
+     */
+    @Nonnull
+    AnimatedImageContent createAnimation(@Nonnull final ScriptedDecoder.Script script) {
+        return new AnimatedImageContent(AnimationSource.of(new byte[1]), "test://" + mEventCount, ScaleMode.FIT, null,
+                                        mTaskQueue, mClock, mDecoderPool, new AnimatedImageContent.DecoderFactory() {
+            @Nonnull
+            @Override
+            public AnimationDecoder create(@Nonnull AnimationSource source, @Nonnull AnimationDecoder.Callback callback) {
+                mLastDecoder = new ScriptedDecoder(PlaybackHarness.this, source, callback, script);
+                return mLastDecoder;
+            }
+        });
+    }
+
+    /**
+     * @return    the last created decoder
+     */
+    @Nonnull
+    ScriptedDecoder getLastDecoder() {
+        return mLastDecoder;
+    }
+
+    long now() {
+        return mNow;
+    }
+
+    long getRefreshPeriod() {
+        return (long) Math.ceil(mRefreshPeriod);
+    }
+
+    /**
+     * Plays everything which happens within the given virtual time.
+     */
+    void runFor(long millis) {
+        long end = mNow + millis;
+        runBefore(end + 1);
+        mNow = end;
+    }
+
+    /**
+     * Calls from a task which is being executed at a virtual thread: the thread is busy for the given time, other threads
+     * proceed meanwhile.
+     */
+    void spend(long millis) {
+        long end = mNow + millis;
+        runBefore(end);
+        mNow = end;
+    }
+
+    private void runBefore(long time) {
+        while (!mEvents.isEmpty() && mEvents.peek().mTime < time) {
+            Event event = mEvents.poll();
+            mNow = Math.max(mNow, event.mTime);
+            event.mTask.run();
+        }
+    }
+
+    private void post(long time, @Nonnull Runnable task) {
+        mEvents.add(new Event(time, mEventCount++, task));
+    }
+
+    private static class Event implements Comparable<Event> {
+
+        final long mTime;
+        final long mSequence;
+        @Nonnull final Runnable mTask;
+
+        Event(long time, long sequence, @Nonnull Runnable task) {
+            mTime = time;
+            mSequence = sequence;
+            mTask = task;
+        }
+
+        @Override
+        public int compareTo(@Nonnull Event other) {
+            if (mTime != other.mTime) {
+                return mTime < other.mTime ? -1 : 1;
+            }
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+    }
+
+    private class VirtualFrameSource implements AnimationClock.FrameSource {
+
+        @Override
+        public long now() {
+            return mNow;
+        }
+
+        @Override
+        public void requestFrame(@Nonnull Runnable callback) {
+            // Vsyncs are at whole milliseconds, the next one is strictly after now.
+            long vsync = (long) (mNow / mRefreshPeriod);
+            while ((long) Math.ceil(vsync * mRefreshPeriod) <= mNow) {
+                vsync++;
+            }
+            post((long) Math.ceil(vsync * mRefreshPeriod), callback);
+        }
+    }
+
+    /**
+     * Executes tasks one by one in order.
+     */
+    private class VirtualThread implements Executor {
+
+        private final Queue<Runnable> mTasks = new ArrayDeque<>();
+
+        private final Runnable mRunNext = new Runnable() {
+            @Override
+            public void run() {
+                Runnable task = mTasks.poll();
+                if (task == null) {
+                    mBusy = false;
+                    return;
+                }
+                task.run();
+                post(mNow, this);
+            }
+        };
+
+        private boolean mBusy;
+
+        @Override
+        public void execute(@Nonnull Runnable task) {
+            mTasks.add(task);
+            if (!mBusy) {
+                mBusy = true;
+                post(mNow, mRunNext);
+            }
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package bo.pic.android.media.content.animation;
+
+import android.graphics.Bitmap;
+
+import java.util.Arrays;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import bo.pic.android.media.Dimensions;
+
+/**
+ * A decoder which behaves the way the native one does, but produces no pixels: frames lie on a fixed grid, every frame costs
+ * {@link Script#getDecodeMillis(long) scripted} {@link PlaybackHarness#spend(long) virtual time}, frames which are
+ * {@link #skipUntil(long) skipped} cost a fraction of it, and the animation is reset when it ends.
+ */
+class ScriptedDecoder extends AnimationDecoder {
+
+    /**
+     * Describes the decoded animation.
+     */
+    static class Script {
+
+        static final Dimensions DIMENSIONS = new Dimensions(64, 64);
+
+        private static final float SKIP_COST = 0.5f;
+
+        final int  frameCount;
+        final long frameIntervalMillis;
+
+        private final long mDecodeMillis;
+        private final long mSlowFrame;
+        private final long mSlowFrameMillis;
+
+        /**
+         * @param frameCount             number of frames in the animation
+         * @param frameIntervalMillis    interval between frames
+         * @param decodeMillis           cost of every frame
+         */
+        Script(int frameCount, long frameIntervalMillis, long decodeMillis) {
+            this(frameCount, frameIntervalMillis, decodeMillis, -1, 0);
+        }
+
+        /**
+         * @param slowFrame          number of the frame (since playback start) which costs <code>slowFrameMillis</code>, e.g.
+         *                           a keyframe or a GC pause
+         */
+        Script(int frameCount, long frameIntervalMillis, long decodeMillis, long slowFrame, long slowFrameMillis) {
+            this.frameCount = frameCount;
+            this.frameIntervalMillis = frameIntervalMillis;
+            mDecodeMillis = decodeMillis;
+            mSlowFrame = slowFrame;
+            mSlowFrameMillis = slowFrameMillis;
+        }
+
+        long getDecodeMillis(long frameNumber) {
+            return frameNumber == mSlowFrame ? mSlowFrameMillis : mDecodeMillis;
+        }
+
+        long getSkipMillis(long frameNumber) {
+            return Math.round(getDecodeMillis(frameNumber) * SKIP_COST);
+        }
+
+        long getLoopMillis() {
+            return frameCount * frameIntervalMillis;
+        }
+    }
+
+    @Nonnull private final PlaybackHarness  mHarness;
+    @Nonnull private final Callback         mCallback;
+    @Nonnull private final Script           mScript;
+    @Nonnull private DecodeQuality mQuality = DecodeQuality.FULL;
+
+    private boolean mInitialized;
+
+    /** Index of the next frame within the loop */
+    private int  mPosition;
+    private long mSkipUntil = -1;
+
+    /** Number of decoded and skipped frames since playback start */
+    private long mFrameNumber;
+    private long mDecodedFrames;
+    private long mSkippedFrames;
+    private long mLoops;
+    private long mLastFrameOffset = -1;
+
+    ScriptedDecoder(@Nonnull PlaybackHarness harness,
+                    @Nonnull AnimationSource source,
+                    @Nonnull Callback callback,
+                    @Nonnull Script script)
+    {
+        super(source, callback);
+        mHarness = harness;
+        mCallback = callback;
+        mScript = script;
+    }
+
+    @Nullable
+    @Override
+    public Dimensions init() {
+        mInitialized = true;
+        return getDimensions();
+    }
+
+    @Override
+    public void setQuality(@Nonnull DecodeQuality quality) {
+        mQuality = quality;
+    }
+
+    @Nonnull
+    @Override
+    public DecodeQuality getQuality() {
+        return mQuality;
+    }
+
+    @Nonnull
+    @Override
+    public Dimensions getDimensions() {
+        return Script.DIMENSIONS;
+    }
+
+    @Override
+    public long fillNextFrame(@Nonnull Bitmap bitmap) {
+        if (isReleased() || !mInitialized) {
+            return -1;
+        }
+        long cost = 0;
+        while (true) {
+            if (mPosition == mScript.frameCount) {
+                // The native decoder reports the end of the stream, is reset and stops skipping.
+                reset();
+                mLoops++;
+            }
+            long offset = mPosition * mScript.frameIntervalMillis;
+            if (mSkipUntil >= 0 && offset < mSkipUntil) {
+                cost += mScript.getSkipMillis(mFrameNumber++);
+                mSkippedFrames++;
+                mPosition++;
+                continue;
+            }
+            mSkipUntil = -1;
+            cost += mScript.getDecodeMillis(mFrameNumber++);
+            mDecodedFrames++;
+            mPosition++;
+            mHarness.spend(cost);
+            mLastFrameOffset = offset;
+            return offset;
+        }
+    }
+
+    @Override
+    public void skipUntil(long frameOffset) {
+        mSkipUntil = frameOffset;
+    }
+
+    @Override
+    void getStageStats(@Nonnull long[] stats) {
+        Arrays.fill(stats, 0);
+        stats[STATS_CONVERTED_FRAMES] = mDecodedFrames;
+        stats[STATS_SKIPPED_FRAMES] = mSkippedFrames;
+    }
+
+    @Override
+    public long getNativeMemoryUsage() {
+        return 0;
+    }
+
+    @Override
+    public void reset() {
+        mPosition = 0;
+        mSkipUntil = -1;
+        mCallback.onDecoderReset();
+    }
+
+    long getDecodedFrames() {
+        return mDecodedFrames;
+    }
+
+    long getSkippedFrames() {
+        return mSkippedFrames;
+    }
+
+    /**
+     * @return    position of the last decoded frame at the animation's timeline, i.e. including previous loops
+     */
+    long getTimelinePosition() {
+        return mLoops * mScript.getLoopMillis() + mLastFrameOffset;
+    }
+}
@@ -2,10 +2,20 @@ package bo.pic.android.media;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.text.TextUtils;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
@@ -19,6 +29,7 @@ import javax.annotation.Nullable;
 
 import bo.pic.android.media.bitmap.BitmapPool;
 import bo.pic.android.media.cache.CacheKey;
+import bo.pic.android.media.cache.DimensionBucketing;
 import bo.pic.android.media.cache.DiskCache;
 import bo.pic.android.media.cache.ImageCacheUtils;
 import bo.pic.android.media.cache.MemoryCache;
@@ -26,11 +37,16 @@ import bo.pic.android.media.content.MediaContent;
 import bo.pic.android.media.content.MediaContentVisitor;
 import bo.pic.android.media.content.StaticImageContent;
 import bo.pic.android.media.content.animation.AnimatedImageContent;
+import bo.pic.android.media.content.animation.AnimationSource;
+import bo.pic.android.media.content.animation.AnimationTranscoder;
+import bo.pic.android.media.content.animation.PosterFrameExtractor;
+import bo.pic.android.media.content.animation.StreamingAnimationSource;
 import bo.pic.android.media.content.transformation.MediaContentTransformation;
 import bo.pic.android.media.download.ImageDownloader;
+import bo.pic.android.media.download.ProgressCallback;
 import bo.pic.android.media.util.ImageUtil;
 import bo.pic.android.media.util.Key;
-import bo.pic.android.media.util.ProcessingCallback;
+import bo.pic.android.media.util.Logger;
 import bo.pic.android.media.util.ScaleMode;
 import bo.pic.android.media.view.MediaContentView;
 
@@ -47,6 +63,11 @@ public class ImageLoader {
 
     public static final Key<LoadHandle> LOAD_HANDLE_KEY = new Key<>("LOAD_HANDLE", LoadHandle.class);
 
+    private static final int MP4_SIGNATURE_LENGTH = 8;
+
+    /** Max number of contents which {@link #mCachedDimensions cached dimensions} are tracked for */
+    private static final int MAX_TRACKED_CONTENTS = 256;
+
     @Nonnull private final Context mApplicationContext;
     @Nonnull private final ImageDownloader mImageDownloader;
     @Nonnull private final MemoryCache<CacheKey<String>, MediaContent> mMemoryCache;
@@ -65,6 +86,38 @@ public class ImageLoader {
      */
     private final ConcurrentMap<String/* target uri to download from */, DownloadRequest> mInFlightRequests = new ConcurrentHashMap<>();
 
+    private volatile boolean mProgressivePlaybackEnabled;
+    @Nullable private volatile AnimationTranscoder mAnimationTranscoder;
+    @Nullable private volatile PosterFrameExtractor mPosterFrameExtractor;
+
+    /**
+     * The same animation is usually requested with different dimensions (e.g. by a list item and by a preview), that results in
+     * different memory cache entries. We don't want to decode the same file by multiple decoders then, so all such requests are
+     * served by a single animation which is scaled at draw time (its decoding quality follows the largest view it's shown at).
+     * <p/>
+     * This map holds animations which might be shared by their {@link DownloadRequest#getSharedAnimationKey(File, ScaleMode) keys},
+     * released ones are purged when new animations are created.
+     */
+    private final Map<String, AnimatedImageContent> mSharedAnimations = new HashMap<>();
+
+    @Nullable private volatile DimensionBucketing mDimensionBucketing;
+
+    /**
+     * Dimensions of memory cache entries of recently cached contents, which allows to serve requests by cached variants of
+     * other sizes (see {@link #setDimensionBucketing(DimensionBucketing)}). Might contain evicted entries, they are removed when
+     * found. Is tracked while bucketing is enabled, is guarded by itself.
+     */
+    private final Map<CacheKey<String>, Set<Dimensions>> mCachedDimensions =
+            new LinkedHashMap<CacheKey<String>, Set<Dimensions>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<CacheKey<String>, Set<Dimensions>> eldest) {
+                    return size() > MAX_TRACKED_CONTENTS;
+                }
+            };
+
+    /** Frame bitmap configs of animations of particular content types, the rest of animations choose it automatically */
+    private final ConcurrentMap<MediaContentType, Bitmap.Config> mAnimationFrameConfigs = new ConcurrentHashMap<>();
+
     public ImageLoader(@Nonnull Context applicationContext,
                        @Nonnull ImageDownloader imageDownloader,
                        @Nonnull MemoryCache<CacheKey<String>, MediaContent> memoryCache,
@@ -85,7 +138,10 @@ public class ImageLoader {
                 value.invite(new MediaContentVisitor() {
                     @Override
                     public void visit(@Nonnull StaticImageContent content) {
-                        mBitmapPool.put(content.getBitmap());
+                        // Poster bitmaps are shared with animations and placeholders.
+                        if (!content.isBitmapShared()) {
+                            mBitmapPool.put(content.getBitmap());
+                        }
                     }
 
                     @Override
@@ -100,6 +156,70 @@ public class ImageLoader {
 
 
 
+    /**
+     * Allows to start playback of MP4 animations while they are still being downloaded (if the {@link ImageDownloader} reports
+     * {@link ProgressCallback download progress}). An animation is delivered to the target views as soon as its <code>moov</code> atom
+     * and the first GOP are downloaded.
+     *
+     * @param enabled    <code>true</code> to enable progressive playback; <code>false</code> otherwise (default)
+     */
+    public void setProgressivePlaybackEnabled(boolean enabled) {
+        mProgressivePlaybackEnabled = enabled;
+    }
+
+    /**
+     * Allows to play downscaled variants of animations which are much larger than the dimensions they are requested with. Variants
+     * are produced in background on first use of an oversized animation, so later plays decode them instead of the originals.
+     *
+     * @param transcoder    transcoder to use; <code>null</code> disables transcoding (default)
+     */
+    public void setAnimationTranscoder(@Nullable AnimationTranscoder transcoder) {
+        mAnimationTranscoder = transcoder;
+    }
+
+    /**
+     * Allows to show {@link PosterFrameExtractor#extract(java.util.Collection, Dimensions, ScaleMode, long) extracted} poster
+     * frames of animations instead of placeholders and until animations' first frames are decoded.
+     *
+     * @param extractor    extractor which holds the posters; <code>null</code> disables posters (default)
+     */
+    public void setPosterFrameExtractor(@Nullable PosterFrameExtractor extractor) {
+        mPosterFrameExtractor = extractor;
+    }
+
+    /**
+     * Allows to choose frame bitmap config of animations of the given content type explicitly (e.g. {@link Bitmap.Config#RGB_565}
+     * for a grid of previews or {@link Bitmap.Config#ARGB_8888} for a full screen viewer).
+     *
+     * @param config    {@link Bitmap.Config#ARGB_8888} or {@link Bitmap.Config#RGB_565}; <code>null</code> means 'choose automatically'
+     *                  (default, see {@link AnimatedImageContent#AnimatedImageContent(AnimationSource, String, ScaleMode, Bitmap.Config)})
+     */
+    public void setAnimationFrameConfig(@Nonnull MediaContentType type, @Nullable Bitmap.Config config) {
+        if (config == null) {
+            mAnimationFrameConfigs.remove(type);
+        } else {
+            if (config != Bitmap.Config.ARGB_8888 && config != Bitmap.Config.RGB_565) {
+                throw new IllegalArgumentException("Unsupported animation frame config " + config);
+            }
+            mAnimationFrameConfigs.put(type, config);
+        }
+    }
+
+    /**
+     * Allows requests for slightly different sizes of the same content to share memory cache entries and decodes, that reduces
+     * the number of cache entries per content and redundant decodes when the same content is shown at views of various sizes.
+     *
+     * @param bucketing    policy to use; <code>null</code> means 'exact sizes only' (default)
+     */
+    public void setDimensionBucketing(@Nullable DimensionBucketing bucketing) {
+        mDimensionBucketing = bucketing;
+        if (bucketing == null) {
+            synchronized (mCachedDimensions) {
+                mCachedDimensions.clear();
+            }
+        }
+    }
+
     /**
      * Creates an image load request using the specified {@code imageUri}.
      * The {@code imageUri} may be a remote url (prefixed with {@code http://} or {@code https://}) or a file resource (prefixed with
@@ -135,7 +255,8 @@ public class ImageLoader {
         }
 
         assert imageUri != null;
-        Dimensions dimensions = loadRequest.getDimensions();
+        DimensionBucketing bucketing = mDimensionBucketing;
+        Dimensions dimensions = bucketing == null ? loadRequest.getDimensions() : bucketing.bucket(loadRequest.getDimensions());
         MediaContentType contentType = loadRequest.getMediaContentType();
         final LoadHandle handle = new LoadHandle(dimensions,
                                                  contentType,
@@ -146,8 +267,7 @@ public class ImageLoader {
                                                  loadRequest.getListener());
 
         // Check if image already available in a memory cache.
-        final CacheKey<String> memoryCacheKey = ImageCacheUtils.getMemoryCacheKey(imageUri, contentType, dimensions);
-        final MediaContent cachedContent = mMemoryCache.get(memoryCacheKey);
+        final MediaContent cachedContent = getCachedContent(CacheKey.of(imageUri, contentType), dimensions);
         if (cachedContent != null) {
             ImageLoadListener listener = loadRequest.getListener();
             listener.onResponse(handle, cachedContent);
@@ -157,6 +277,13 @@ public class ImageLoader {
         if (view != null) {
             LOAD_HANDLE_KEY.put(view.getAdditionalData(), handle);
 
+            PosterFrameExtractor extractor = mPosterFrameExtractor;
+            StaticImageContent poster = extractor == null ? null
+                                                          : extractor.getCachedPoster(CacheKey.of(imageUri, contentType), dimensions);
+            if (poster != null) {
+                placeholder = new BitmapDrawable(mApplicationContext.getResources(), poster.getBitmap());
+            }
+
             // Set placeholder if it's available prior to queue a new download request.
             if (placeholder != null) {
                 view.setPlaceholder(placeholder);
@@ -168,6 +295,67 @@ public class ImageLoader {
         return handle;
     }
 
+    /**
+     * @return    cached content of the given size or, if {@link #setDimensionBucketing(DimensionBucketing) bucketing} is enabled,
+     *            of a close enough size; <code>null</code> if there is no such content
+     */
+    @Nullable
+    private MediaContent getCachedContent(@Nonnull CacheKey<String> contentKey, @Nonnull Dimensions dimensions) {
+        MediaContent content = mMemoryCache.get(ImageCacheUtils.getMemoryCacheKey(contentKey.key, contentKey.type, dimensions));
+        DimensionBucketing bucketing = mDimensionBucketing;
+        if (content != null || bucketing == null) {
+            return content;
+        }
+        synchronized (mCachedDimensions) {
+            Set<Dimensions> variants = mCachedDimensions.get(contentKey);
+            while (variants != null) {
+                Dimensions variant = bucketing.chooseVariant(dimensions, variants);
+                if (variant == null) {
+                    return null;
+                }
+                content = mMemoryCache.get(ImageCacheUtils.getMemoryCacheKey(contentKey.key, contentKey.type, variant));
+                if (content != null) {
+                    return content;
+                }
+                // Evicted.
+                variants.remove(variant);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Puts the given content to the memory cache, the cache holds a usage of the content.
+     * <p/>
+     * The usage is taken before the entry is put: a {@link #mSharedAnimations shared animation} might be cached under other keys
+     * too, and the put might evict one of them, so the content must not drop to zero usages (and be released) meanwhile.
+     */
+    private void putCachedContent(@Nonnull CacheKey<String> contentKey,
+                                  @Nonnull Dimensions dimensions,
+                                  @Nonnull MediaContent content)
+    {
+        content.incrementUsageCounter();
+        mMemoryCache.put(ImageCacheUtils.getMemoryCacheKey(contentKey.key, contentKey.type, dimensions), content);
+        if (mDimensionBucketing == null || dimensions.getWidth() <= 0 || dimensions.getHeight() <= 0) {
+            return;
+        }
+        synchronized (mCachedDimensions) {
+            Set<Dimensions> variants = mCachedDimensions.get(contentKey);
+            if (variants == null) {
+                variants = new HashSet<>();
+                mCachedDimensions.put(contentKey, variants);
+            }
+            variants.add(dimensions);
+        }
+    }
+
+    /**
+     * Cancels the load pending on the given view (if any), so its content isn't delivered to the view anymore.
+     */
+    void cancelLoad(@Nonnull MediaContentView view) {
+        tryToCancelHandle(LOAD_HANDLE_KEY.remove(view.getAdditionalData()));
+    }
+
     private void tryToCancelHandle(@Nullable LoadHandle handle) {
         if (handle != null) {
             handle.cancelDownloadRequest();
@@ -272,9 +460,13 @@ public class ImageLoader {
      * <p/>
      * This class aggregates all interested {@link LoadHandle handles} and {@link ImageLoadListener notifies} them on download completion.
      * <p/>
+     * When {@link #setProgressivePlaybackEnabled(boolean) progressive playback} is enabled, MP4 data is also written into a growing
+     * {@link DiskCache#getPartialFile(Object) partial file} during download and the handles are notified as soon as the animation
+     * becomes {@link StreamingAnimationSource#isPlayable() playable}.
+     * <p/>
      * Thread-safe.
      */
-    private class DownloadRequest implements ProcessingCallback<byte[]> {
+    private class DownloadRequest implements ProgressCallback {
 
         private final Set<LoadHandle> mHandles = Collections.newSetFromMap(new ConcurrentHashMap<LoadHandle, Boolean>());
 
@@ -283,6 +475,10 @@ public class ImageLoader {
         private final AtomicReference<Future<?>> mDownloadHandle = new AtomicReference<Future<?>>();
         private final AtomicReference<byte[]> mDownloaded     = new AtomicReference<byte[]>();
         private final AtomicReference<Throwable> mError          = new AtomicReference<Throwable>();
+        private final AtomicReference<StreamingAnimationSource> mStreamingSource = new AtomicReference<>();
+
+        @Nullable private volatile byte[] mStreamingHeader;
+        private long mExpectedLength;
 
         public DownloadRequest(@Nonnull CacheKey<String> diskCacheKey,
                                @Nonnull LoadHandle handle)
@@ -294,14 +490,15 @@ public class ImageLoader {
         public void attach(@Nonnull LoadHandle handle) {
             byte[] downloaded = mDownloaded.get();
             if (downloaded != null) {
-                final CacheKey<String> memoryCacheKey = ImageCacheUtils.getMemoryCacheKey(mDiskCacheKey.key,
-                                                                                          handle.contentType,
-                                                                                          handle.dimensions);
-                MediaContent content = mMemoryCache.get(memoryCacheKey);
+                MediaContent content = getCachedContent(CacheKey.of(mDiskCacheKey.key, handle.contentType), handle.dimensions);
                 if (content == null) {
                     try {
-                        mMemoryCache.put(memoryCacheKey, content = decodeByteArray(downloaded, handle.dimensions, handle.scaleMode));
-                        content.incrementUsageCounter();
+                        content = decodeByteArray(downloaded, handle.dimensions, handle.scaleMode);
+                        try {
+                            putCachedContent(CacheKey.of(mDiskCacheKey.key, handle.contentType), handle.dimensions, content);
+                        } finally {
+                            content.decrementUsageCounter();
+                        }
                     } catch (Throwable e) {
                         handle.onError(e);
                         return;
@@ -316,6 +513,10 @@ public class ImageLoader {
                 return;
             }
             mHandles.add(handle);
+            StreamingAnimationSource source = mStreamingSource.get();
+            if (source != null && source.isPlayable() && mHandles.remove(handle)) {
+                onPlayable(handle, source);
+            }
         }
 
         public void detach(@Nonnull LoadHandle handle) {
@@ -323,16 +524,29 @@ public class ImageLoader {
             if (!mHandles.isEmpty()) {
                 return;
             }
+            StreamingAnimationSource source = mStreamingSource.get();
+            if (source != null && source.isPlayable()) {
+                // Delivered animations are still reading the data being downloaded.
+                return;
+            }
             mInFlightRequests.remove(mDiskCacheKey.key, this);
             Future<?> downloadHandle = mDownloadHandle.get();
             if (downloadHandle != null && mDownloadHandle.compareAndSet(downloadHandle, null)) {
                 downloadHandle.cancel(true);
+                abortStreaming();
             }
         }
 
         public void download() {
             final byte[] data = mDiskCache.get(mDiskCacheKey);
             if (data != null && data.length > 0) {
+                PosterFrameExtractor extractor = mPosterFrameExtractor;
+                if (extractor != null) {
+                    // Brings posters to the memory cache, so animations show them right away.
+                    for (LoadHandle handle : mHandles) {
+                        extractor.getPoster(mDiskCacheKey, handle.dimensions);
+                    }
+                }
                 onDownloaded(data);
                 return;
             }
@@ -340,17 +554,53 @@ public class ImageLoader {
             mDownloadHandle.set(mImageDownloader.download(mDiskCacheKey.key, this));
         }
 
+        @Override
+        public void onStart(long contentLength) {
+            if (mProgressivePlaybackEnabled) {
+                mExpectedLength = contentLength;
+                mStreamingHeader = new byte[0];
+            }
+        }
+
+        @Override
+        public void onProgress(@Nonnull byte[] data, int offset, int length) {
+            byte[] header = mStreamingHeader;
+            if (header != null) {
+                // Wait until there is enough data to check if it's an MP4 animation.
+                int previousLength = header.length;
+                header = concat(header, data, offset, Math.min(length, MP4_SIGNATURE_LENGTH - previousLength));
+                if (header.length < MP4_SIGNATURE_LENGTH) {
+                    mStreamingHeader = header;
+                    return;
+                }
+                mStreamingHeader = null;
+                if (!ImageUtil.isMp4(header) || !startStreaming()) {
+                    return;
+                }
+                // Data of the previous chunks is not written yet.
+                appendStreaming(header, 0, previousLength);
+            }
+            appendStreaming(data, offset, length);
+        }
+
         @Override
         public void onSuccess(@Nonnull byte[] data) {
             if (data.length <= 0) {
+                abortStreaming();
                 return;
             }
             mDiskCache.put(mDiskCacheKey, data);
+            StreamingAnimationSource source = mStreamingSource.getAndSet(null);
+            if (source != null) {
+                // Remaining handles are notified from onDownloaded() below.
+                source.complete();
+            }
             onDownloaded(data);
         }
 
         @Override
         public void onFail(@Nullable Throwable e) {
+            abortStreaming();
             mError.set(e);
             try {
                 for (LoadHandle handle : mHandles) {
@@ -365,24 +615,17 @@ public class ImageLoader {
             mDownloaded.set(data);
             try {
                 mInFlightRequests.remove(mDiskCacheKey.key, this);
+                transcodeIfOversized(data);
                 Throwable e = null;
                 for (LoadHandle handle : mHandles) {
-                    final CacheKey<String> memoryCacheKey = ImageCacheUtils.getMemoryCacheKey(mDiskCacheKey.key,
-                                                                                              handle.contentType,
-                                                                                              handle.dimensions);
-                    MediaContent content = mMemoryCache.get(memoryCacheKey);
+                    MediaContent content = getCachedContent(CacheKey.of(mDiskCacheKey.key, handle.contentType), handle.dimensions);
                     if (content == null) {
                         if (e != null) {
                             handle.onError(e);
                             continue;
                         }
                         try {
-                            content = decodeByteArray(data, handle.dimensions, handle.scaleMode);
-                            if (handle.mTransformation != null) {
-                                content = handle.mTransformation.transform(content);
-                            }
-                            mMemoryCache.put(memoryCacheKey, content);
-                            content.incrementUsageCounter();
+                            content = cacheContent(handle, decodeByteArray(data, handle.dimensions, handle.scaleMode));
                         } catch (Throwable ex) {
                             e = ex;
                             mError.set(e);
@@ -397,6 +640,92 @@ public class ImageLoader {
             }
         }
 
+        /**
+         * Schedules transcoding for all sizes the animation is requested at in one go, so the original is decoded once for the
+         * largest variant and the smaller ones are derived from it (per-handle calls from {@link #decodeByteArray} are no-op then).
+         */
+        private void transcodeIfOversized(@Nonnull byte[] data) {
+            AnimationTranscoder transcoder = mAnimationTranscoder;
+            if (transcoder == null || !ImageUtil.isMp4(data) || !mDiskCache.getFile(mDiskCacheKey).isFile()) {
+                return;
+            }
+            List<Dimensions> dimensions = new ArrayList<>();
+            for (LoadHandle handle : mHandles) {
+                dimensions.add(handle.dimensions);
+            }
+            transcoder.transcodeIfOversized(mDiskCacheKey, dimensions);
+        }
+
+        private boolean startStreaming() {
+            try {
+                mStreamingSource.set(new StreamingAnimationSource(mDiskCache.getPartialFile(mDiskCacheKey),
+                                                                  mDiskCache.getFile(mDiskCacheKey),
+                                                                  mExpectedLength));
+                return true;
+            } catch (IOException e) {
+                Logger.w(ImageLoader.class, "Can't start progressive playback of %s", e, mDiskCacheKey.key);
+                return false;
+            }
+        }
+
+        private void appendStreaming(@Nonnull byte[] data, int offset, int length) {
+            StreamingAnimationSource source = mStreamingSource.get();
+            if (source != null && length > 0 && source.append(data, offset, length)) {
+                onPlayable(source);
+            }
+        }
+
+        private void onPlayable(@Nonnull StreamingAnimationSource source) {
+            for (LoadHandle handle : mHandles) {
+                // Removal guards against concurrent attach() and prevents notifying the handle again on download completion.
+                if (mHandles.remove(handle)) {
+                    onPlayable(handle, source);
+                }
+            }
+        }
+
+        private void onPlayable(@Nonnull LoadHandle handle, @Nonnull StreamingAnimationSource source) {
+            MediaContent content = getCachedContent(CacheKey.of(mDiskCacheKey.key, handle.contentType), handle.dimensions);
+            if (content == null) {
+                try {
+                    content = cacheContent(handle, createAnimation(source, null, handle.dimensions, handle.scaleMode));
+                } catch (Throwable e) {
+                    handle.onError(e);
+                    return;
+                }
+            }
+            handle.onResponse(content);
+        }
+
+        /**
+         * Transforms the given freshly {@link #createAnimation(AnimationSource, File, Dimensions, ScaleMode) created} content
+         * and puts it to the memory cache. The usage the content is created with is released then, the cache holds its own one.
+         *
+         * @return    the cached content
+         */
+        @Nonnull
+        private MediaContent cacheContent(@Nonnull LoadHandle handle, @Nonnull MediaContent created) {
+            try {
+                MediaContent content = handle.mTransformation == null ? created : handle.mTransformation.transform(created);
+                putCachedContent(CacheKey.of(mDiskCacheKey.key, handle.contentType), handle.dimensions, content);
+                return content;
+            } finally {
+                created.decrementUsageCounter();
+            }
+        }
+
+        private void abortStreaming() {
+            mStreamingHeader = null;
+            StreamingAnimationSource source = mStreamingSource.getAndSet(null);
+            if (source != null) {
+                source.abort();
+            }
+        }
+
+        /**
+         * @return    content of the given data, a usage of it is taken for the caller (see
+         *            {@link #createAnimation(AnimationSource, File, Dimensions, ScaleMode)})
+         */
         @Nonnull
         private MediaContent decodeByteArray(@Nonnull byte[] data, @Nonnull Dimensions dimensions, @Nonnull ScaleMode scaleMode) {
             //if (ImageUtil.isMp4(data)) {
@@ -409,7 +738,67 @@ public class ImageLoader {
             //            Bitmap.Config.RGB_565, mBitmapPool);
             //    return new StaticImageContent(mDiskCacheKey.key, bitmap);
             //}
-            return new AnimatedImageContent(mDiskCache.getFile(mDiskCacheKey), mDiskCacheKey.key, scaleMode);
+            File file = mDiskCache.getFile(mDiskCacheKey);
+            AnimationTranscoder transcoder = mAnimationTranscoder;
+            if (transcoder != null && file.isFile() && ImageUtil.isMp4(data)) {
+                File variant = transcoder.getVariant(mDiskCacheKey, dimensions);
+                if (variant != null) {
+                    return createAnimation(AnimationSource.of(variant), variant, dimensions, scaleMode);
+                }
+                transcoder.transcodeIfOversized(mDiskCacheKey, dimensions);
+            }
+            // There is a possible case that the data is not stored at the disk cache (e.g. the disk is full). We don't want to wait
+            // for the file then and decode directly from memory.
+            AnimationSource source = file.isFile() ? AnimationSource.of(file) : AnimationSource.of(data);
+            return createAnimation(source, null, dimensions, scaleMode);
+        }
+
+        /**
+         * @param variant    a {@link AnimationTranscoder transcoded variant} the source reads; <code>null</code> if it reads the
+         *                   original animation (a file, downloaded data or data being downloaded)
+         * @return           a live animation of the same source if any (see {@link #mSharedAnimations}); a new one otherwise.
+         *                   A usage of the animation is taken for the caller (under the lock, so a shared animation can't be
+         *                   released by a concurrent cache eviction after it's chosen), the caller is expected to release it
+         */
+        @Nonnull
+        private AnimatedImageContent createAnimation(@Nonnull AnimationSource source,
+                                                     @Nullable File variant,
+                                                     @Nonnull Dimensions dimensions,
+                                                     @Nonnull ScaleMode scaleMode)
+        {
+            String key = getSharedAnimationKey(variant, scaleMode);
+            synchronized (mSharedAnimations) {
+                for (Iterator<AnimatedImageContent> i = mSharedAnimations.values().iterator(); i.hasNext(); ) {
+                    if (i.next().isReleased()) {
+                        i.remove();
+                    }
+                }
+                AnimatedImageContent content = mSharedAnimations.get(key);
+                // An animation which has no usages left is being released, even if release() is not called yet.
+                if (content != null && !content.isReleased() && content.tryIncrementUsageCounter()) {
+                    return content;
+                }
+                content = new AnimatedImageContent(source,
+                                                   mDiskCacheKey.key,
+                                                   scaleMode,
+                                                   mAnimationFrameConfigs.get(mDiskCacheKey.type));
+                content.incrementUsageCounter();
+                PosterFrameExtractor extractor = mPosterFrameExtractor;
+                StaticImageContent poster = extractor == null ? null : extractor.getCachedPoster(mDiskCacheKey, dimensions);
+                if (poster != null) {
+                    content.setPoster(poster.getBitmap());
+                }
+                mSharedAnimations.put(key, content);
+                return content;
+            }
+        }
+
+        /**
+         * Animations are drawn according to their scale modes, so animations with different scale modes are not shared.
+         */
+        @Nonnull
+        private String getSharedAnimationKey(@Nullable File variant, @Nonnull ScaleMode scaleMode) {
+            return mDiskCacheKey.type + "_" + scaleMode + "_" + (variant == null ? mDiskCacheKey.key : variant.getPath());
         }
 
         @Override
@@ -417,4 +806,11 @@ public class ImageLoader {
             return System.identityHashCode(this) + ": " + mDiskCacheKey.key + ", handles: " + mHandles;
         }
     }
-}
\ No newline at end of file
+
+    @Nonnull
+    private static byte[] concat(@Nonnull byte[] head, @Nonnull byte[] data, int offset, int length) {
+        byte[] result = Arrays.copyOf(head, head.length + length);
+        System.arraycopy(data, offset, result, head.length, length);
+        return result;
+    }
+}
@@ -2,6 +2,8 @@ package bo.pic.android.media;
 
 import android.content.Context;
 import android.graphics.drawable.Drawable;
+import android.view.View;
+import android.view.ViewTreeObserver;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -9,6 +11,7 @@ import javax.annotation.Nullable;
 import bo.pic.android.media.content.MediaContent;
 import bo.pic.android.media.content.presenter.MediaContentPresenter;
 import bo.pic.android.media.content.presenter.SimpleMediaContentPresenter;
+import bo.pic.android.media.util.Key;
 import bo.pic.android.media.util.Logger;
 import bo.pic.android.media.util.NetUtil;
 import bo.pic.android.media.util.ProcessingCallback;
@@ -18,6 +21,9 @@ import bo.pic.android.media.view.MediaContentView;
 
 class LoadRequest {
 
+    /** A load which waits for the target view's layout, see {@link Builder#setAutoSize(boolean)} */
+    static final Key<DeferredLoad> DEFERRED_LOAD_KEY = new Key<>("DEFERRED_LOAD", DeferredLoad.class);
+
     @Nonnull private final String mImageUri;
     @Nonnull private final MediaContentType mMediaContentType;
     @Nonnull private final Dimensions mDimensions;
@@ -27,11 +33,11 @@ class LoadRequest {
     @Nullable private final ProcessingCallback<MediaContent> mCallback;
     @Nonnull private final ScaleMode mScaleMode;
 
-    LoadRequest(@Nonnull final Builder builder, @Nullable final MediaContentView view) {
+    LoadRequest(@Nonnull final Builder builder, @Nullable final MediaContentView view, int width, int height) {
         mImageUri = buildImageUri(builder);
         mMediaContentType = builder.mMediaContentType;
         mPlaceholderDrawable = buildPlaceholderDrawable(builder);
-        mDimensions = buildDimensions(builder);
+        mDimensions = buildDimensions(width, height);
         mCallback = builder.mSuccessCallback;
         mScaleMode = builder.mScaleMode;
         mListener = createImageLoadListener(builder, view);
@@ -43,12 +49,12 @@ class LoadRequest {
     }
 
     @Nonnull
-    private Dimensions buildDimensions(@Nonnull Builder builder) {
-        return new Dimensions(getWidthToUse(builder.mWidth), getHeightToUse(builder.mHeight));
+    private Dimensions buildDimensions(int width, int height) {
+        return new Dimensions(getWidthToUse(width), getHeightToUse(height));
     }
 
     @Nullable
-    private Drawable buildPlaceholderDrawable(@Nonnull Builder builder) {
+    private static Drawable buildPlaceholderDrawable(@Nonnull Builder builder) {
         return builder.mPlaceholderResId == 0
                ? builder.mPlaceholderDrawable
                : builder.mApplicationContext.getResources().getDrawable(builder.mPlaceholderResId);
@@ -78,7 +84,8 @@ class LoadRequest {
                 ThreadUtil.runOnUiThread(new Runnable() {
                     @Override
                     public void run() {
-                        if (view != null) {
+                        // The response might be posted before another load into the view is deferred.
+                        if (view != null && DEFERRED_LOAD_KEY.get(view.getAdditionalData()) == null) {
                             builder.mPresenter.setMediaContent(downloadedContent, view);
                         }
                         if (mCallback != null) {
@@ -146,9 +153,10 @@ class LoadRequest {
         private ScaleMode             mScaleMode = ScaleMode.FIT;
         private MediaContentPresenter mPresenter = new SimpleMediaContentPresenter();
 
-        private int mPlaceholderResId;
-        private int mWidth;
-        private int mHeight;
+        private int     mPlaceholderResId;
+        private int     mWidth;
+        private int     mHeight;
+        private boolean mAutoSize;
 
         Builder(@Nonnull Context applicationContext,
                 @Nonnull ImageLoader imageLoader,
@@ -182,6 +190,21 @@ class LoadRequest {
             return this;
         }
 
+        /**
+         * Asks to load the content at the size of the target view. If the {@link #setDimensions(int, int) dimensions} are not set
+         * and the view is not laid out yet, {@link #into(MediaContentView) the load} is deferred until the view is measured, so
+         * the content is decoded (and cached) at the view's actual size instead of the placeholder's or the full one.
+         * <p/>
+         * Applies to targets which are {@link View views}. While a load is deferred, a load previously started into the view is
+         * cancelled and the view shows the placeholder (or nothing). A deferred load is cancelled if another load is started into
+         * the same view.
+         */
+        @Nonnull
+        public Builder setAutoSize(boolean autoSize) {
+            mAutoSize = autoSize;
+            return this;
+        }
+
         @Nonnull
         public Builder setProcessingCallback(@Nullable ProcessingCallback<MediaContent> callback) {
             mSuccessCallback = callback;
@@ -210,17 +233,92 @@ class LoadRequest {
             if (resetBeforeLoading) {
                 view.setMediaContent(null, false);
             }
-            return doLoad(view);
+            DeferredLoad previous = DEFERRED_LOAD_KEY.get(view.getAdditionalData());
+            if (previous != null) {
+                previous.cancel();
+            }
+            if (mAutoSize && (mWidth <= 0 || mHeight <= 0) && view instanceof View) {
+                View target = (View) view;
+                if (target.getWidth() <= 0 || target.getHeight() <= 0 || target.isLayoutRequested()) {
+                    // A recycled view must not get content of its previous load meanwhile.
+                    mImageLoader.cancelLoad(view);
+                    Drawable placeholder = buildPlaceholderDrawable(this);
+                    if (placeholder != null) {
+                        view.setPlaceholder(placeholder);
+                    } else if (!resetBeforeLoading) {
+                        view.setMediaContent(null, false);
+                    }
+                    DeferredLoad load = new DeferredLoad(this, view);
+                    DEFERRED_LOAD_KEY.put(view.getAdditionalData(), load);
+                    load.start();
+                    return null;
+                }
+                return doLoad(view, target.getWidth(), target.getHeight());
+            }
+            return doLoad(view, mWidth, mHeight);
         }
 
         @Nullable
         public ImageLoader.LoadHandle proceed() {
-            return doLoad(null);
+            return doLoad(null, mWidth, mHeight);
         }
 
+        /**
+         * @param viewWidth     the target view's width which is used if the {@link #setDimensions(int, int) width} is not set
+         * @param viewHeight    the target view's height which is used if the {@link #setDimensions(int, int) height} is not set
+         */
         @Nullable
-        private ImageLoader.LoadHandle doLoad(@Nullable MediaContentView view) {
-            return mImageLoader.processLoadRequest(new LoadRequest(this, view), view);
+        private ImageLoader.LoadHandle doLoad(@Nullable MediaContentView view, int viewWidth, int viewHeight) {
+            int width = mWidth > 0 ? mWidth : viewWidth;
+            int height = mHeight > 0 ? mHeight : viewHeight;
+            return mImageLoader.processLoadRequest(new LoadRequest(this, view, width, height), view);
+        }
+    }
+
+    /**
+     * Starts a {@link Builder#setAutoSize(boolean) deferred load} right before the target view is drawn for the first time after
+     * it's measured. The load is dropped if the view is detached meanwhile (e.g. recycled). Is accessed from the main thread only.
+     */
+    private static class DeferredLoad implements ViewTreeObserver.OnPreDrawListener {
+
+        @Nonnull private final Builder          mBuilder;
+        @Nonnull private final MediaContentView mView;
+
+        /** The observer the listener is registered at, a detached view returns another one */
+        @Nullable private ViewTreeObserver mObserver;
+
+        DeferredLoad(@Nonnull Builder builder, @Nonnull MediaContentView view) {
+            mBuilder = builder;
+            mView = view;
+        }
+
+        void start() {
+            mObserver = ((View) mView).getViewTreeObserver();
+            mObserver.addOnPreDrawListener(this);
+        }
+
+        @Override
+        public boolean onPreDraw() {
+            View target = (View) mView;
+            if (target.getWindowToken() == null) {
+                cancel();
+                return true;
+            }
+            if (target.getWidth() <= 0 || target.getHeight() <= 0) {
+                return true;
+            }
+            cancel();
+            mBuilder.doLoad(mView, target.getWidth(), target.getHeight());
+            return true;
+        }
+
+        void cancel() {
+            mView.getAdditionalData().remove(DEFERRED_LOAD_KEY, this);
+            ViewTreeObserver observer = mObserver != null && mObserver.isAlive() ? mObserver : ((View) mView).getViewTreeObserver();
+            if (observer.isAlive()) {
+                observer.removeOnPreDrawListener(this);
+            }
+            mObserver = null;
         }
     }
 }
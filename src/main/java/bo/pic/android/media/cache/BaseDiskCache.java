@@ -7,7 +7,9 @@ import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArraySet;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -19,22 +21,62 @@ import bo.pic.android.media.util.Logger;
 
 public class BaseDiskCache<K> implements DiskCache<K> {
 
+    private static final String TEMP_FILE_SUFFIX    = ".tmp";
+    private static final String PARTIAL_FILE_SUFFIX = ".part";
+    private static final String SIDECAR_FILE_SUFFIX = ".info";
+
+    /** Directories of all caches, only their entries get {@link #getSidecarFile(File) sidecar files} */
+    private static final Set<File> sCacheDirectories = new CopyOnWriteArraySet<>();
+
     @Nonnull private Map<String/* file name */, Long> mCacheContents = new LinkedHashMap<String, Long>(16, .75f, true);
 
     @Nonnull private final File mCacheDirectory;
     @Nonnull private final Function<K, String> mFileNameFactory;
 
+    @Nullable private final CacheEntryProcessor mEntryProcessor;
+
     private final long mMaxSizeInBytes;
 
     private long mCacheSize;
 
     public BaseDiskCache(@Nonnull File cacheDirectory, @Nonnull Function<K, String> fileNameFactory, long maxSizeInBytes) {
+        this(cacheDirectory, fileNameFactory, maxSizeInBytes, null);
+    }
+
+    /**
+     * @param entryProcessor    optional ingest step to apply to every new entry before it's committed
+     */
+    public BaseDiskCache(@Nonnull File cacheDirectory,
+                         @Nonnull Function<K, String> fileNameFactory,
+                         long maxSizeInBytes,
+                         @Nullable CacheEntryProcessor entryProcessor)
+    {
         mCacheDirectory = cacheDirectory;
         mFileNameFactory = fileNameFactory;
         mMaxSizeInBytes = maxSizeInBytes;
+        mEntryProcessor = entryProcessor;
+        sCacheDirectories.add(cacheDirectory.getAbsoluteFile());
         refresh();
     }
 
+    /**
+     * @param entryFile    a cache entry's {@link #getFile(Object) file}
+     * @return             a file to store small auxiliary data derived from the entry at (e.g. animation stream info). Such
+     *                     files are removed together with their entries and are not counted against the cache size.
+     *                     <code>null</code> if the given file doesn't belong to a cache - nobody would invalidate the data
+     *                     when the file is changed, and we don't litter directories we don't own
+     */
+    @Nullable
+    public static File getSidecarFile(@Nonnull File entryFile) {
+        File directory = entryFile.getAbsoluteFile().getParentFile();
+        return directory != null && sCacheDirectories.contains(directory) ? toSidecarFile(entryFile) : null;
+    }
+
+    @Nonnull
+    private static File toSidecarFile(@Nonnull File entryFile) {
+        return new File(entryFile.getPath() + SIDECAR_FILE_SUFFIX);
+    }
+
     public synchronized void refresh() {
         // Create root cache dir if necessary.
         if (!mCacheDirectory.exists()) {
@@ -58,6 +100,21 @@ public class BaseDiskCache<K> implements DiskCache<K> {
             if (!child.isFile()) {
                 continue;
             }
+            String name = child.getName();
+            if (name.endsWith(TEMP_FILE_SUFFIX) || name.endsWith(PARTIAL_FILE_SUFFIX)) {
+                // Leftovers of interrupted writes.
+                if (!child.delete()) {
+                    Logger.w(BaseDiskCache.class, "Unable to delete incomplete file [%s]", child.getAbsolutePath());
+                }
+                continue;
+            }
+            if (name.endsWith(SIDECAR_FILE_SUFFIX)) {
+                File entryFile = new File(mCacheDirectory, name.substring(0, name.length() - SIDECAR_FILE_SUFFIX.length()));
+                if (!entryFile.isFile() && !child.delete()) {
+                    Logger.w(BaseDiskCache.class, "Unable to delete orphan sidecar file [%s]", child.getAbsolutePath());
+                }
+                continue;
+            }
             long key = child.lastModified();
             List<File> files = tmp.get(key);
             if (files == null) {
@@ -87,12 +144,22 @@ public class BaseDiskCache<K> implements DiskCache<K> {
         if (bytesToEvict > 0) {
             trimCache(bytesToEvict);
         }
-        File tempFile = new File(mCacheDirectory, fileName + ".tmp");
+        File tempFile = new File(mCacheDirectory, fileName + TEMP_FILE_SUFFIX);
         try {
             FileUtil.write(value, tempFile);
-            FileUtil.move(tempFile, new File(mCacheDirectory, fileName));
-            mCacheContents.put(fileName, (long) value.length);
-            mCacheSize += value.length - (oldSize == null ? 0 : oldSize);
+            if (mEntryProcessor != null) {
+                try {
+                    mEntryProcessor.process(value, tempFile);
+                } catch (IOException e) {
+                    Logger.w(BaseDiskCache.class, "Unable to process cache entry for key [%s]", e, key);
+                }
+            }
+            long size = tempFile.length();
+            File file = new File(mCacheDirectory, fileName);
+            deleteSidecarFile(file);
+            FileUtil.move(tempFile, file);
+            mCacheContents.put(fileName, size);
+            mCacheSize += size - (oldSize == null ? 0 : oldSize);
         } catch (IOException e) {
             Logger.e(BaseDiskCache.class, "Unable to create temp file [%s] for key [%s]", tempFile.getName(), key);
             tempFile.delete();
@@ -100,6 +167,22 @@ public class BaseDiskCache<K> implements DiskCache<K> {
         return null;
     }
 
+    @Override
+    public synchronized void commit(@Nonnull K key, @Nonnull File file) throws IOException {
+        final String fileName = mFileNameFactory.apply(key);
+        Long oldSize = mCacheContents.remove(fileName);
+        long size = file.length();
+        long bytesToEvict = mCacheSize + size - (oldSize == null ? 0 : oldSize) - mMaxSizeInBytes;
+        if (bytesToEvict > 0) {
+            trimCache(bytesToEvict);
+        }
+        File target = new File(mCacheDirectory, fileName);
+        deleteSidecarFile(target);
+        FileUtil.move(file, target);
+        mCacheContents.put(fileName, size);
+        mCacheSize += size - (oldSize == null ? 0 : oldSize);
+    }
+
     @Nullable
     @Override
     public synchronized byte[] get(@Nonnull K key) {
@@ -125,6 +208,12 @@ public class BaseDiskCache<K> implements DiskCache<K> {
         return new File(mCacheDirectory, mFileNameFactory.apply(key));
     }
 
+    @Nonnull
+    @Override
+    public File getPartialFile(K key) {
+        return new File(mCacheDirectory, mFileNameFactory.apply(key) + PARTIAL_FILE_SUFFIX);
+    }
+
     @Override
     public synchronized byte[] remove(@Nonnull K key) {
         final String fileName = mFileNameFactory.apply(key);
@@ -134,6 +223,7 @@ public class BaseDiskCache<K> implements DiskCache<K> {
             long size = file.length();
             boolean removed = file.delete();
             if (removed) {
+                deleteSidecarFile(file);
                 mCacheSize -= size;
             } else {
                 Logger.d(BaseDiskCache.class, "Unable to delete cache entry for filename [%s], key [%s]", fileName, key);
@@ -158,6 +248,13 @@ public class BaseDiskCache<K> implements DiskCache<K> {
         mCacheSize = 0;
     }
 
+    private static void deleteSidecarFile(@Nonnull File entryFile) {
+        File sidecar = toSidecarFile(entryFile);
+        if (sidecar.isFile() && !sidecar.delete()) {
+            Logger.w(BaseDiskCache.class, "Unable to delete sidecar file [%s]", sidecar.getAbsolutePath());
+        }
+    }
+
     private void trimCache(final long bytesToEvict) {
         long evicted = 0;
         for (Iterator<Map.Entry<String, Long>> it = mCacheContents.entrySet().iterator(); evicted < bytesToEvict && it.hasNext();) {
@@ -166,6 +263,7 @@ public class BaseDiskCache<K> implements DiskCache<K> {
             if (file.isFile()) {
                 boolean removed = file.delete();
                 if (removed) {
+                    deleteSidecarFile(file);
                     it.remove();
                     mCacheContents.remove(entry.getKey());
                     mCacheSize -= entry.getValue();
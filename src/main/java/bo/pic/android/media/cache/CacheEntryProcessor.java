@@ -0,0 +1,24 @@
+package bo.pic.android.media.cache;
+
+import java.io.File;
+import java.io.IOException;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Stands for an optional ingest step which is performed by the {@link BaseDiskCache} for every new entry right before it's committed,
+ * e.g. an MP4 remux for faster playback start.
+ */
+public interface CacheEntryProcessor {
+
+    /**
+     * Is called from the thread which {@link BaseDiskCache#put(Object, byte[]) puts} the entry. An implementation may rewrite
+     * given file in place. Errors don't prevent the entry from being committed, so it's expected that the file is left intact
+     * on failure.
+     *
+     * @param data    entry's data
+     * @param file    a file which holds the data and is about to be committed
+     * @throws IOException    if the processing fails
+     */
+    void process(@Nonnull byte[] data, @Nonnull File file) throws IOException;
+}
@@ -0,0 +1,110 @@
+package bo.pic.android.media.cache;
+
+import java.util.Collection;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import bo.pic.android.media.Dimensions;
+
+/**
+ * Memory cache policy which lets requests for slightly different sizes of the same content share cache entries (and decodes).
+ * <p/>
+ * Requested dimensions are {@link #bucket(Dimensions) rounded up} to a multiple of the bucket size, e.g. 100x100, 104x104 and
+ * 108x108 requests become the same 112x112 one. Besides that, a request might be served by a cached variant of another size
+ * which is within the scale tolerance, the {@link #chooseVariant(Dimensions, Collection) smallest one} which is not smaller than
+ * the requested size is preferred.
+ * <p/>
+ * Zero dimensions mean 'full size', they are neither bucketed nor served by other variants.
+ */
+public class DimensionBucketing {
+
+    public static final int   DEFAULT_BUCKET_SIZE     = 16;
+    public static final float DEFAULT_SCALE_TOLERANCE = 0.25f;
+
+    private final int   mBucketSize;
+    private final float mScaleTolerance;
+
+    public DimensionBucketing() {
+        this(DEFAULT_BUCKET_SIZE, DEFAULT_SCALE_TOLERANCE);
+    }
+
+    /**
+     * @param bucketSize        requested width and height are rounded up to a multiple of this (in pixels)
+     * @param scaleTolerance    a cached variant might serve a request if both of its sides differ from the requested ones by
+     *                          not more than this fraction, e.g. 0.25 allows variants from 80% to 125% of the requested size
+     */
+    public DimensionBucketing(int bucketSize, float scaleTolerance) {
+        if (bucketSize <= 0) {
+            throw new IllegalArgumentException("Bucket size must be positive, but is " + bucketSize);
+        }
+        if (scaleTolerance < 0) {
+            throw new IllegalArgumentException("Scale tolerance must not be negative, but is " + scaleTolerance);
+        }
+        mBucketSize = bucketSize;
+        mScaleTolerance = scaleTolerance;
+    }
+
+    @Nonnull
+    public Dimensions bucket(@Nonnull Dimensions requested) {
+        if (requested.getWidth() <= 0 || requested.getHeight() <= 0) {
+            return requested;
+        }
+        return new Dimensions(roundUp(requested.getWidth()), roundUp(requested.getHeight()));
+    }
+
+    /**
+     * @param requested    {@link #bucket(Dimensions) bucketed} requested dimensions
+     * @param cached       dimensions of cached variants of the requested content
+     * @return             the smallest variant which is not smaller than the requested size and is within the scale tolerance;
+     *                     the largest smaller one within the tolerance if there is no such variant; <code>null</code> if no
+     *                     variant is within the tolerance
+     */
+    @Nullable
+    public Dimensions chooseVariant(@Nonnull Dimensions requested, @Nonnull Collection<Dimensions> cached) {
+        if (requested.getWidth() <= 0 || requested.getHeight() <= 0) {
+            return null;
+        }
+        Dimensions larger = null;
+        Dimensions smaller = null;
+        for (Dimensions variant : cached) {
+            if (!isWithinTolerance(variant, requested)) {
+                continue;
+            }
+            if (variant.getWidth() >= requested.getWidth() && variant.getHeight() >= requested.getHeight()) {
+                if (larger == null || getArea(variant) < getArea(larger)) {
+                    larger = variant;
+                }
+            } else if (smaller == null || getArea(variant) > getArea(smaller)) {
+                smaller = variant;
+            }
+        }
+        return larger != null ? larger : smaller;
+    }
+
+    private boolean isWithinTolerance(@Nonnull Dimensions variant, @Nonnull Dimensions requested) {
+        return isWithinTolerance(variant.getWidth(), requested.getWidth())
+               && isWithinTolerance(variant.getHeight(), requested.getHeight());
+    }
+
+    private boolean isWithinTolerance(int size, int requestedSize) {
+        if (size <= 0) {
+            return false;
+        }
+        float scale = (float) size / requestedSize;
+        return scale <= 1 + mScaleTolerance && scale >= 1 / (1 + mScaleTolerance);
+    }
+
+    private int roundUp(int size) {
+        return (size + mBucketSize - 1) / mBucketSize * mBucketSize;
+    }
+
+    private static long getArea(@Nonnull Dimensions dimensions) {
+        return (long) dimensions.getWidth() * dimensions.getHeight();
+    }
+
+    @Override
+    public String toString() {
+        return "bucket " + mBucketSize + "px, tolerance " + mScaleTolerance;
+    }
+}
@@ -1,6 +1,7 @@
 package bo.pic.android.media.cache;
 
 import java.io.File;
+import java.io.IOException;
 
 import javax.annotation.Nonnull;
 
@@ -8,4 +9,21 @@ public interface DiskCache<K> extends Cache<K, byte[]> {
 
     @Nonnull
     File getFile(K key);
+
+    /**
+     * @param key    target key
+     * @return       a file to write data for the given key to while it's being downloaded. Such files are not treated as
+     *               cache entries and are removed on cache {@link BaseDiskCache#refresh() refresh}
+     */
+    @Nonnull
+    File getPartialFile(K key);
+
+    /**
+     * Moves the given file into the cache as the entry for the given key, so large entries (e.g. ones which are written by native
+     * code to a {@link #getPartialFile(Object) partial file}) are not read into memory. The file is expected to be complete, it's
+     * not passed to a {@link CacheEntryProcessor}.
+     *
+     * @throws IOException    if the file can't be moved, it's left in place then
+     */
+    void commit(@Nonnull K key, @Nonnull File file) throws IOException;
 }
@@ -81,6 +81,24 @@ public abstract class AbstractMediaContent implements MediaContent {
         mReferenceCounter.incrementAndGet();
     }
 
+    /**
+     * Increments the usage counter unless it has already dropped to zero, i.e. unless the content is (being) released. That allows
+     * to safely reuse content which other threads might release concurrently.
+     *
+     * @return    <code>true</code> if the counter is incremented; <code>false</code> if the content must not be used anymore
+     */
+    public boolean tryIncrementUsageCounter() {
+        while (true) {
+            int refCount = mReferenceCounter.get();
+            if (refCount <= 0) {
+                return false;
+            }
+            if (mReferenceCounter.compareAndSet(refCount, refCount + 1)) {
+                return true;
+            }
+        }
+    }
+
     @Override
     public void decrementUsageCounter() {
         int refCount = mReferenceCounter.get();
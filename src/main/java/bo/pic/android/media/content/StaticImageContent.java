@@ -12,9 +12,20 @@ public class StaticImageContent extends AbstractMediaContent {
 
     @Nonnull private final Bitmap mBitmap;
 
+    private final boolean mBitmapShared;
+
     public StaticImageContent(@Nonnull String contentUri, @Nonnull Bitmap bitmap) {
+        this(contentUri, bitmap, false);
+    }
+
+    /**
+     * @param bitmapShared    <code>true</code> if the bitmap is used elsewhere too, so it must not be reused once the content is
+     *                        evicted from the memory cache
+     */
+    public StaticImageContent(@Nonnull String contentUri, @Nonnull Bitmap bitmap, boolean bitmapShared) {
         super(contentUri);
         mBitmap = bitmap;
+        mBitmapShared = bitmapShared;
     }
 
     @Override
@@ -27,6 +38,10 @@ public class StaticImageContent extends AbstractMediaContent {
         return mBitmap;
     }
 
+    public boolean isBitmapShared() {
+        return mBitmapShared;
+    }
+
     @Override
     protected void doStartDrawingFor(@Nonnull RepaintContext context) {
         if (getActiveContexts().add(context)) {
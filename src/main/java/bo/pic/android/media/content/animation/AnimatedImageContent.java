@@ -6,12 +6,13 @@ import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Rect;
 import android.graphics.RectF;
-import android.os.SystemClock;
 
 import java.io.File;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -21,6 +22,7 @@ import bo.pic.android.media.content.AbstractMediaContent;
 import bo.pic.android.media.content.MediaContent;
 import bo.pic.android.media.content.MediaContentVisitor;
 import bo.pic.android.media.content.RepaintContext;
+import bo.pic.android.media.util.Logger;
 import bo.pic.android.media.util.ScaleMode;
 
 /**
@@ -29,64 +31,124 @@ import bo.pic.android.media.util.ScaleMode;
  * I.e. {@link AnimationDecoder} provides single-threaded interface for retrieving animation frames and this class handles the following:
  * <ul>
  *      <li>ensures that {@link AnimationDecoder} is accessed from the same thread all the time;</li>
+ *      <li>opens and closes decoders at {@link DecoderPool lifecycle threads} and keeps recently stopped ones open;</li>
  *      <li>ensures that there is no race condition during {@link RepaintContext#repaint(MediaContent) drawing};</li>
  *      <li>conforms to the {@link MediaContent} interface;</li>
  * </ul>
+ * The animation algorithm is as follows:
+ * <ol>
+ *      <li>{@link #decodeNextFrame() Decode a frame};</li>
+ *      <li>{@link AnimationClock#schedule(AnimationClock.Client) schedule} the frame for presentation at its {@link FramePacer due time};</li>
+ *      <li>
+ *          the shared {@link AnimationClock animation clock} {@link RepaintContext#repaint(MediaContent) presents} the frame at
+ *          the first display frame which is not earlier than the due time (at the main thread);
+ *      </li>
+ *      <li>{@link #decodeNextFrame() decode next frame} etc;</li>
+ * </ol>
+ * I.e. there are only two thread hops per frame (decode thread -> main thread -> decode thread) and presentation is aligned
+ * with display refresh.
  */
 public class AnimatedImageContent extends AbstractMediaContent implements AnimationDecoder.Callback {
 
     /**
-     * The animation algorithm is as follows:
-     * <ol>
-     *      <li>{@link #decodeNextFrame() Decode a frame};</li>
-     *      <li>{@link #draw(android.graphics.Canvas, android.graphics.Rect, android.graphics.Paint) draw the frame};</li>
-     *      <li>{@link #decodeNextFrame() decode next frame};</li>
-     *      <li>
-     *          Check how much time is left when the next frame is decoded. There are two possible cases:
-     *          <ul>
-     *              <li>it's too early to draw the next frame;</li>
-     *              <li>it's time to draw the next frame;</li>
-     *          </ul>
-     *          That 'too early' case is backed by the current scheduled executor - {@link AnimatedImageContent drawables} post
-     *          {@link java.util.concurrent.ScheduledExecutorService#schedule(Runnable, long, java.util.concurrent.TimeUnit) delayed tasks} here.
-     *      </li>
-     * </ol>
-     * <b>Note:</b> this executor is shared between all drawables, that's why all tasks submitted here are expected
-     * to be executed immediately (we need to preserve timings).
+     * Creates decoders of animations, allows to replace the native decoder (e.g. with a scripted one).
      */
-    private static final ScheduledExecutorService sExecutor = Executors.newScheduledThreadPool(1);
+    interface DecoderFactory {
+        @Nonnull
+        AnimationDecoder create(@Nonnull AnimationSource source, @Nonnull AnimationDecoder.Callback callback);
+    }
+
+    private static final DecoderFactory NATIVE_DECODER_FACTORY = new DecoderFactory() {
+        @Nonnull
+        @Override
+        public AnimationDecoder create(@Nonnull AnimationSource source, @Nonnull AnimationDecoder.Callback callback) {
+            return new AnimationDecoder(source, callback);
+        }
+    };
 
     /**
      * A queue to use for all animation-related tasks like 'decode next frame', 'reset', 'start/stop animation' etc.
      * <p/>
      * The general idea is to not abuse UI thread by animation processing.
      */
-    private static final DecodeQueue mTaskQueue = new DecodeQueue(1);
+    private static DecodeQueue sTaskQueue = new DecodeQueue(1);
+
+    /**
+     * Decoders of {@link StreamingAnimationSource animations which are still being downloaded} might block until more data
+     * arrives. That's why they use a separate queue - we don't want to stall all other animations then.
+     */
+    private static DecodeQueue sStreamingTaskQueue = new DecodeQueue(2);
+
+    /**
+     * Thread ids are assigned sequentially (not derived from hash codes), so animations are spread evenly over the threads of
+     * multi-thread queues, e.g. two streaming animations opened one after another don't wait for the same lifecycle thread.
+     */
+    private static final AtomicInteger sNextThreadId = new AtomicInteger();
+
+    /** Weight of the newest sample at the {@link #getEstimatedCpuLoad() CPU load} moving average */
+    private static final float CPU_LOAD_SMOOTHING = 0.2f;
 
     private final DecodeTask mDecodeTask = new DecodeTask();
     private final StartTask  mStartTask  = new StartTask();
     private final StopTask   mStopTask   = new StopTask();
 
+    /** Sizes and visibility of views which show the current animation, used to choose decoding quality */
+    private final ConcurrentMap<RepaintContext, Viewport> mViewports = new ConcurrentHashMap<>();
+
+    /** Frame rate caps of views which show the current animation, see {@link #chooseMaxFrameRate()} */
+    private final ConcurrentMap<RepaintContext, Float> mFrameRateCaps = new ConcurrentHashMap<>();
+
+    @Nonnull private final PlaybackStats mPlaybackStats = new PlaybackStats();
+
+    /** Native {@link AnimationDecoder#getStageStats(long[]) stage stats} of {@link #mStatsDecoder} at the previous frame */
+    private final long[] mLastStageStats = new long[AnimationDecoder.STATS_SIZE];
+    private final long[] mStageStats     = new long[AnimationDecoder.STATS_SIZE];
+
+    /** Is accessed only from the decoding thread */
+    private final FramePacer mPacer = new FramePacer();
+
     private final Matrix mMatrix = new Matrix();
     private final RectF mRect1 = new RectF();
     private final RectF mRect2 = new RectF();
+    private final Rect  mPosterRect = new Rect();
 
-    @Nonnull private final AnimationDecoder mDecoder;
+    @Nonnull private final AnimationSource mSource;
+    @Nonnull private final DecodeQueue     mTaskQueue;
+    @Nonnull private final AnimationClock  mClock;
+    @Nonnull private final DecoderPool     mDecoderPool;
+    @Nonnull private final DecoderFactory  mDecoderFactory;
 
-    @Nullable private DelayedRepaintTask mDelayedRepaintTask;
-    @Nullable private RepaintTask        mRepaintTask;
+    /**
+     * Is {@link OpenTask opened} at a {@link DecoderPool lifecycle thread} and is accessed only from the decoding thread after
+     * that. Is replaced by a fresh one when an idle decoder is {@link #closeIdleDecoder() closed}.
+     */
+    @Nonnull private volatile AnimationDecoder mDecoder;
+
+    /** Is drawn until the first frame is decoded, see {@link #setPoster(Bitmap)} */
+    @Nullable private volatile Bitmap mPoster;
+
+    /** The only {@link PresentTask} which is allowed to proceed, see {@link StartTask} */
+    @Nullable private volatile PresentTask mPresentTask;
 
     private final int mThreadId;
 
+    @Nullable private final Bitmap.Config mFrameConfig;
+
     private volatile boolean mRunning;
+    private volatile boolean mReleased;
     private volatile boolean mAnimationReady;
+    private volatile float   mCpuLoad = -1;
 
     private ScaleMode mScaleMode;
+    private Dimensions mVideoDimensions;
     private Bitmap mBitmap;
     private Rect mBitmapRect;
-    private long    mLastFrameDrawTime;
-    private long    mLastFrameOffset;
     private boolean mInitialized;
+    private boolean mOpening;
+    private AnimationDecoder mStatsDecoder;
+
+    /** A context which waits for a {@link #showStillFrame(RepaintContext) still frame} until the decoder is opened */
+    private RepaintContext mStillFrameContext;
 
     /**
      * Calls from a background thread.
@@ -94,11 +156,79 @@ public class AnimatedImageContent extends AbstractMediaContent implements Animat
     public AnimatedImageContent(@Nonnull File file,
                                 @Nonnull String contentUri,
                                 @Nonnull ScaleMode scaleMode)
+    {
+        this(AnimationSource.of(file), contentUri, scaleMode);
+    }
+
+    /**
+     * Calls from a background thread.
+     */
+    public AnimatedImageContent(@Nonnull AnimationSource source,
+                                @Nonnull String contentUri,
+                                @Nonnull ScaleMode scaleMode)
+    {
+        this(source, contentUri, scaleMode, null);
+    }
+
+    /**
+     * Calls from a background thread.
+     *
+     * @param frameConfig    config of frame bitmaps, either {@link Bitmap.Config#ARGB_8888} or {@link Bitmap.Config#RGB_565}
+     *                       (animations have no alpha, so it halves frame memory and conversion bandwidth at the cost of
+     *                       color banding); <code>null</code> means 'choose automatically', see {@link #chooseFrameConfig()}
+     */
+    public AnimatedImageContent(@Nonnull AnimationSource source,
+                                @Nonnull String contentUri,
+                                @Nonnull ScaleMode scaleMode,
+                                @Nullable Bitmap.Config frameConfig)
+    {
+        this(source, contentUri, scaleMode, frameConfig, getTaskQueue(source), AnimationClock.getInstance(),
+             DecoderPool.getInstance(), NATIVE_DECODER_FACTORY);
+    }
+
+    /**
+     * Allows to play the animation with explicitly given collaborators (e.g. manually driven ones and a scripted decoder).
+     */
+    AnimatedImageContent(@Nonnull AnimationSource source,
+                         @Nonnull String contentUri,
+                         @Nonnull ScaleMode scaleMode,
+                         @Nullable Bitmap.Config frameConfig,
+                         @Nonnull DecodeQueue taskQueue,
+                         @Nonnull AnimationClock clock,
+                         @Nonnull DecoderPool decoderPool,
+                         @Nonnull DecoderFactory decoderFactory)
     {
         super(contentUri);
-        mThreadId = hashCode();
-        mDecoder = new AnimationDecoder(file, this);
+        if (frameConfig != null && frameConfig != Bitmap.Config.ARGB_8888 && frameConfig != Bitmap.Config.RGB_565) {
+            throw new IllegalArgumentException("Unsupported animation frame config " + frameConfig);
+        }
+        mFrameConfig = frameConfig;
+        mThreadId = sNextThreadId.getAndIncrement();
+        mSource = source;
+        mDecoderFactory = decoderFactory;
+        mDecoder = decoderFactory.create(source, this);
+        mTaskQueue = taskQueue;
+        mClock = clock;
+        mDecoderPool = decoderPool;
         mScaleMode = scaleMode;
+        PlaybackMonitor.getInstance().onCreated(this);
+    }
+
+    @Nonnull
+    private static synchronized DecodeQueue getTaskQueue(@Nonnull AnimationSource source) {
+        return source instanceof StreamingAnimationSource ? sStreamingTaskQueue : sTaskQueue;
+    }
+
+    /**
+     * Allows to replace the queues animation tasks are executed at (e.g. with ones which are driven manually, together with
+     * a manually driven {@link AnimationClock#setInstance(AnimationClock) clock}). Affects animations created after this call.
+     *
+     * @param taskQueue             a queue for regular animations
+     * @param streamingTaskQueue    a queue for {@link StreamingAnimationSource animations which are still being downloaded}
+     */
+    public static synchronized void setTaskQueues(@Nonnull DecodeQueue taskQueue, @Nonnull DecodeQueue streamingTaskQueue) {
+        sTaskQueue = taskQueue;
+        sStreamingTaskQueue = streamingTaskQueue;
     }
 
     @Override
@@ -120,15 +250,102 @@ public class AnimatedImageContent extends AbstractMediaContent implements Animat
         mTaskQueue.add(mStopTask);
     }
 
+    @Override
+    public boolean removeRepaintContext(@Nonnull RepaintContext context) {
+        mViewports.remove(context);
+        mFrameRateCaps.remove(context);
+        return super.removeRepaintContext(context);
+    }
+
+    /**
+     * Reports size and visibility of a view which shows the current animation. That allows to decode the animation at
+     * the cheapest {@link DecodeQuality quality} which is still good enough for all the views.
+     * <p/>
+     * Calls from the main thread.
+     *
+     * @param context         a view which shows the current animation
+     * @param width           the view's width
+     * @param height          the view's height
+     * @param fullyVisible    <code>false</code> if the view is partially hidden
+     */
+    public void setViewport(@Nonnull RepaintContext context, int width, int height, boolean fullyVisible) {
+        Viewport viewport = mViewports.get(context);
+        if (viewport == null || viewport.width != width || viewport.height != height || viewport.fullyVisible != fullyVisible) {
+            mViewports.put(context, new Viewport(width, height, fullyVisible));
+        }
+    }
+
     public boolean isRunning() {
         return mRunning;
     }
 
+    /**
+     * Asks to show a single frame of the animation at the given context without starting the animation. Does nothing if a frame
+     * is already available (e.g. the animation has been played and then stopped).
+     */
+    public void showStillFrame(@Nonnull RepaintContext context) {
+        if (!mAnimationReady) {
+            mTaskQueue.add(new StillFrameTask(context));
+        }
+    }
+
+    /**
+     * Sets a still image to show until the first frame of the animation is decoded (e.g. a {@link PosterFrameExtractor poster}),
+     * so there is no placeholder flash before playback starts. The bitmap is drawn the same way as animation frames and is
+     * not modified.
+     */
+    public void setPoster(@Nullable Bitmap poster) {
+        if (!mAnimationReady) {
+            mPoster = poster;
+        }
+    }
+
+    /**
+     * Limits the animation's frame rate for the given view. Frames beyond the limit are dropped by the decoder as cheap as possible
+     * (they are not converted and non-reference frames are not decoded at all).
+     * <p/>
+     * The animation might be shared by several views, so the highest cap of active views applies.
+     *
+     * @param context    a view which shows the current animation
+     * @param fps        maximum frame rate; zero means 'source frame rate'
+     */
+    public void setMaxFrameRate(@Nonnull RepaintContext context, float fps) {
+        mFrameRateCaps.put(context, fps);
+    }
+
+    /**
+     * @return    estimated native memory used by the animation's decoder (in bytes); zero if the decoder is not open
+     */
+    public long getNativeMemoryUsage() {
+        return mDecoder.getNativeMemoryUsage();
+    }
+
+    /**
+     * @return    estimated CPU load of the animation playback (as a fraction of a single core); negative value if it's not known yet
+     */
+    public float getEstimatedCpuLoad() {
+        return mCpuLoad;
+    }
+
+    /**
+     * @return    live stats of the animation playback, see also {@link PlaybackMonitor} which aggregates stats of all animations
+     */
+    @Nonnull
+    public PlaybackStats getPlaybackStats() {
+        return mPlaybackStats;
+    }
+
     @Override
     public void draw(@Nonnull Canvas canvas, @Nonnull Rect clipBounds, @Nullable Paint paint) {
-        if (clipBounds.isEmpty() || !mAnimationReady || mBitmap == null || mBitmap.isRecycled()) {
+        if (clipBounds.isEmpty()) {
+            return;
+        }
+        if (!mAnimationReady || mBitmap == null || mBitmap.isRecycled()) {
+            drawPoster(canvas, clipBounds, paint);
             return;
         }
+        // The poster is not needed anymore.
+        mPoster = null;
 
         if (paint != null && !paint.isFilterBitmap()) {
             paint.setFilterBitmap(true);
@@ -138,6 +355,19 @@ public class AnimatedImageContent extends AbstractMediaContent implements Animat
         canvas.drawBitmap(mBitmap, mMatrix, paint);
     }
 
+    private void drawPoster(@Nonnull Canvas canvas, @Nonnull Rect clipBounds, @Nullable Paint paint) {
+        Bitmap poster = mPoster;
+        if (poster == null || poster.isRecycled() || mReleased) {
+            return;
+        }
+        if (paint != null && !paint.isFilterBitmap()) {
+            paint.setFilterBitmap(true);
+        }
+        mPosterRect.set(0, 0, poster.getWidth(), poster.getHeight());
+        onPrepareMatrix(mMatrix, mPosterRect, clipBounds);
+        canvas.drawBitmap(poster, mMatrix, paint);
+    }
+
     private void onPrepareMatrix(final Matrix matrix, final Rect bitmap, final Rect clip) {
         mRect1.set(bitmap);
         mRect2.set(clip);
@@ -158,51 +388,133 @@ public class AnimatedImageContent extends AbstractMediaContent implements Animat
         if (isRunning()) {
             doStopDrawing();
         }
+        mReleased = true;
+        PlaybackMonitor.getInstance().onReleased(this);
         mTaskQueue.add(new ReleaseTask());
     }
 
+    /**
+     * Asks to close the decoder of the stopped animation, the last decoded frame is still shown then. Calls from the
+     * {@link DecoderPool} when the decoder doesn't fit into its idle decoders LRU.
+     */
+    void closeIdleDecoder() {
+        mTaskQueue.add(new CloseIdleDecoderTask());
+    }
+
     private void decodeNextFrame() {
         mTaskQueue.add(mDecodeTask);
     }
 
+    /**
+     * Calls from the decoding thread.
+     *
+     * @return    the cheapest decoding quality which is good enough for all active (or all, if there are no active) views
+     */
+    @Nonnull
+    private DecodeQuality chooseQuality() {
+        DecodeQuality result = null;
+        // Still frames are shown for inactive contexts.
+        Collection<RepaintContext> contexts = getActiveContexts().isEmpty() ? mViewports.keySet() : getActiveContexts();
+        for (RepaintContext context : contexts) {
+            Viewport viewport = mViewports.get(context);
+            if (viewport == null) {
+                // The view is not drawn yet, so we don't know what it needs.
+                return DecodeQuality.FULL;
+            }
+            DecodeQuality quality = DecodeQuality.choose(mVideoDimensions, viewport.width, viewport.height, viewport.fullyVisible);
+            if (result == null || quality.ordinal() < result.ordinal()) {
+                result = quality;
+            }
+        }
+        return result == null ? DecodeQuality.FULL : result;
+    }
+
+    /**
+     * Calls from the decoding thread.
+     *
+     * @return    the highest frame rate cap of active views; zero if some of them are not capped
+     */
+    private float chooseMaxFrameRate() {
+        float result = 0;
+        for (RepaintContext context : getActiveContexts()) {
+            Float cap = mFrameRateCaps.get(context);
+            if (cap == null || cap <= 0) {
+                return 0;
+            }
+            result = Math.max(result, cap);
+        }
+        return result;
+    }
+
+    /**
+     * Calls from the decoding thread after the decoder's quality is chosen.
+     *
+     * @return    the explicitly requested frame config if any. Otherwise animations decoded at {@link DecodeQuality#FULL full quality}
+     *            get {@link Bitmap.Config#ARGB_8888} frames and downscaled ones (thumbnails) get {@link Bitmap.Config#RGB_565}
+     *            frames - color banding is hardly visible there, but such animations are usually numerous
+     */
+    @Nonnull
+    private Bitmap.Config chooseFrameConfig() {
+        if (mFrameConfig != null) {
+            return mFrameConfig;
+        }
+        return mDecoder.getQuality() == DecodeQuality.FULL ? Bitmap.Config.ARGB_8888 : Bitmap.Config.RGB_565;
+    }
+
     @Override
     public void onDecoderReset() {
-        mLastFrameOffset = 0;
+        mPacer.onDecoderReset();
     }
 
     public void onDecodeTaskCompleted(final long frameOffsetTime) {
         if (!mRunning) {
             return;
         }
-        if (!mAnimationReady) {
-            mAnimationReady = true;
-            repaint();
-            return;
+        mAnimationReady = true;
+        long dueTime = mPacer.schedule(mClock.now(), frameOffsetTime, chooseMaxFrameRate());
+        long skipUntil = mPacer.getSkipUntil();
+        if (skipUntil >= 0) {
+            mDecoder.skipUntil(skipUntil);
         }
+        present(dueTime);
+    }
 
-        long frameDelay = frameOffsetTime - mLastFrameOffset;
-        long delay = (mLastFrameDrawTime + frameDelay) - SystemClock.uptimeMillis();
-        mLastFrameOffset = frameOffsetTime;
-        if (delay > 0) {
-            if (mDelayedRepaintTask != null) {
-                sExecutor.schedule(mDelayedRepaintTask, delay, TimeUnit.MILLISECONDS);
-            }
-        } else {
-            repaint();
+    /**
+     * Calls from the decoding thread after a frame is decoded.
+     */
+    private void updatePlaybackStats() {
+        AnimationDecoder decoder = mDecoder;
+        if (decoder != mStatsDecoder) {
+            // A fresh decoder counts from scratch.
+            mStatsDecoder = decoder;
+            Arrays.fill(mLastStageStats, 0);
         }
+        decoder.getStageStats(mStageStats);
+        long skippedFrames = getStageStatsDelta(AnimationDecoder.STATS_SKIPPED_FRAMES);
+        // The frames are skipped as asked at the previously scheduled frame.
+        mPlaybackStats.onFrameDecoded(getStageStatsDelta(AnimationDecoder.STATS_DEMUX_NANOS),
+                                      getStageStatsDelta(AnimationDecoder.STATS_DECODE_NANOS),
+                                      getStageStatsDelta(AnimationDecoder.STATS_CONVERT_NANOS),
+                                      mPacer.isCatchingUp() ? skippedFrames : 0);
+        mPacer.onFramesSkipped(skippedFrames);
+        System.arraycopy(mStageStats, 0, mLastStageStats, 0, mStageStats.length);
     }
 
-    private void repaint() {
-        for (RepaintContext context : getActiveContexts()) {
-            context.repaint(this);
+    private long getStageStatsDelta(int index) {
+        return Math.max(0, mStageStats[index] - mLastStageStats[index]);
+    }
+
+    private void present(long dueTime) {
+        PresentTask task = mPresentTask;
+        if (task != null) {
+            task.mDueTime = dueTime;
+            mClock.schedule(task);
         }
-        mLastFrameDrawTime = SystemClock.uptimeMillis();
-        decodeNextFrame();
     }
 
     @Override
     public boolean isReleased() {
-        return mDecoder.isReleased();
+        return mReleased || mDecoder.isReleased();
     }
 
     @Override
@@ -210,6 +522,19 @@ public class AnimatedImageContent extends AbstractMediaContent implements Animat
         return System.identityHashCode(this) + ", animation uri: " + getContentUri() + ", decoder: " + mDecoder;
     }
 
+    private static class Viewport {
+
+        final int     width;
+        final int     height;
+        final boolean fullyVisible;
+
+        Viewport(int width, int height, boolean fullyVisible) {
+            this.width = width;
+            this.height = height;
+            this.fullyVisible = fullyVisible;
+        }
+    }
+
     private abstract class AbstractTask implements DecodeQueue.Task {
         @Override
         public int getThreadId() {
@@ -238,17 +563,17 @@ public class AnimatedImageContent extends AbstractMediaContent implements Animat
                 // That means that a single decode task produces endless animation cycle. The problem occurs when stop() & start()
                 // are called:
                 //   N.   A frame is decoded;
-                //   N+1. Delayed task for the frame drawing is registered;
+                //   N+1. The frame is scheduled for presentation;
                 //   N+2. stop() is called;
                 //   N+3. start() is called;
                 // The problem here is that start() also enqueues a task to decode a frame, hence, we have two animation loops
                 // for the single animation. That results in a visual animation speed increase.
                 //
-                // The fix is to make 'delayed draw frame' operation aware of it's creation context and reject the processing
-                // if current context is different. That is implemented in terms of mRepaintTask reference - it doesn't proceed
-                // if current mRepaintTask field references another object and start() method does update the field's value.
-                mRepaintTask = new RepaintTask();
-                mDelayedRepaintTask = new DelayedRepaintTask(mRepaintTask);
+                // The fix is to make 'present frame' operation aware of it's creation context and reject the processing
+                // if current context is different. That is implemented in terms of mPresentTask reference - it doesn't proceed
+                // if current mPresentTask field references another object and start() method does update the field's value.
+                mPresentTask = new PresentTask();
+                mDecoderPool.onActive(AnimatedImageContent.this);
                 decodeNextFrame();
             }
         }
@@ -262,8 +587,10 @@ public class AnimatedImageContent extends AbstractMediaContent implements Animat
         public void run() {
             if (mRunning) {
                 mRunning = false;
-                mRepaintTask = null;
-                mDelayedRepaintTask = null;
+                mPresentTask = null;
+                if (mInitialized) {
+                    mDecoderPool.onStopped(AnimatedImageContent.this);
+                }
             }
         }
     }
@@ -271,65 +598,211 @@ public class AnimatedImageContent extends AbstractMediaContent implements Animat
     private class ReleaseTask extends AbstractTask {
         @Override
         public void run() {
+            mDecoderPool.onActive(AnimatedImageContent.this);
+            mStillFrameContext = null;
             Bitmap bitmap = mBitmap;
             mBitmap = null;
             if (bitmap != null) {
                 bitmap.recycle();
             }
+            // A decoder which is being opened is closed by the OpenedTask.
             if (mInitialized) {
-                mDecoder.release();
+                mInitialized = false;
+                closeDecoder(mDecoder);
             }
         }
     }
 
-    private class DelayedRepaintTask implements Runnable {
+    /**
+     * @see #closeIdleDecoder()
+     */
+    private class CloseIdleDecoderTask extends AbstractTask {
+        @Override
+        public void run() {
+            if (mRunning || mReleased || !mInitialized || !mSource.isAvailable()) {
+                // The source can't be re-opened, so the decoder is kept until the animation is released.
+                return;
+            }
+            AnimationDecoder decoder = mDecoder;
+            mDecoder = mDecoderFactory.create(mSource, AnimatedImageContent.this);
+            mInitialized = false;
+            mPacer.onDecoderReset();
+            closeDecoder(decoder);
+        }
+    }
+
+    /**
+     * Opens the decoder at a {@link DecoderPool lifecycle thread} and hands it over to the decoding thread.
+     */
+    private class OpenTask extends AbstractTask {
 
-        @Nonnull private final RepaintTask mTask;
+        @Nonnull private final AnimationDecoder mTarget;
 
-        DelayedRepaintTask(@Nonnull RepaintTask task) {
-            mTask = task;
+        OpenTask(@Nonnull AnimationDecoder target) {
+            mTarget = target;
         }
 
         @Override
         public void run() {
-            mTaskQueue.add(mTask);
+            Dimensions dimensions = mReleased ? null : mTarget.init();
+            mTaskQueue.add(new OpenedTask(mTarget, dimensions));
+        }
+    }
+
+    private class OpenedTask extends AbstractTask {
+
+        @Nonnull private final AnimationDecoder mTarget;
+        @Nullable private final Dimensions mDimensions;
+
+        OpenedTask(@Nonnull AnimationDecoder target, @Nullable Dimensions dimensions) {
+            mTarget = target;
+            mDimensions = dimensions;
+        }
+
+        @Override
+        public void run() {
+            mOpening = false;
+            if (mDimensions == null) {
+                mStillFrameContext = null;
+                return;
+            }
+            if (mReleased || mTarget != mDecoder) {
+                closeDecoder(mTarget);
+                return;
+            }
+            mInitialized = true;
+            mVideoDimensions = mDimensions;
+            mDecoder.setQuality(chooseQuality());
+            Dimensions d = mDecoder.getDimensions();
+            Bitmap.Config config = chooseFrameConfig();
+            if (mBitmap == null || mBitmap.getWidth() != d.getWidth() || mBitmap.getHeight() != d.getHeight()
+                || mBitmap.getConfig() != config)
+            {
+                // The previous bitmap (if any) might be being drawn, so it's left to the garbage collector.
+                mBitmap = Bitmap.createBitmap(d.getWidth(), d.getHeight(), config);
+                mBitmapRect = new Rect(0, 0, d.getWidth(), d.getHeight());
+            }
+            mDecoderPool.onOpened();
+            RepaintContext stillFrameContext = mStillFrameContext;
+            mStillFrameContext = null;
+            if (mRunning) {
+                decodeNextFrame();
+            } else {
+                if (stillFrameContext != null) {
+                    new StillFrameTask(stillFrameContext).run();
+                }
+                mDecoderPool.onStopped(AnimatedImageContent.this);
+            }
+        }
+    }
+
+    private class CloseTask extends AbstractTask {
+
+        @Nonnull private final AnimationDecoder mTarget;
+
+        CloseTask(@Nonnull AnimationDecoder target) {
+            mTarget = target;
+        }
+
+        @Override
+        public void run() {
+            mTarget.release();
+        }
+    }
+
+    /**
+     * Presents a decoded frame at the {@link AnimationClock clock} thread and asks to decode the next one.
+     */
+    private class PresentTask implements AnimationClock.Client {
+
+        private volatile long mDueTime;
+
+        @Override
+        public long getDueTime() {
+            return mDueTime;
+        }
+
+        @Override
+        public void onTick(long frameTime) {
+            if (mPresentTask != this) {
+                return;
+            }
+            mPlaybackStats.onFramePresented(frameTime - mDueTime);
+            for (RepaintContext context : getActiveContexts()) {
+                context.repaint(AnimatedImageContent.this);
+            }
+            decodeNextFrame();
         }
     }
 
     /**
-     * Complements {@link #sExecutor} and adapts to {@link RepaintContext#repaint(MediaContent)}. We need to preserve the following points:
-     * <ul>
-     * <li>make all tasks posted into the {@link #sExecutor shared executor} to perform almost immediately;</li>
-     * <li>don't allow race conditions during {@link RepaintContext#repaint(MediaContent) perform drawing};</li>
-     * </ul>
-     * So, our solution is to have tasks posted into the {@link #sExecutor shared executor} submit an instance of this class
-     * into the {@link #mTaskQueue tasks queue}. That is fast and makes repainting to be performed from the same decoding thread.
+     * Calls from the decoding thread.
+     *
+     * @return    <code>true</code> if the decoder is initialized; <code>false</code> if it's being {@link OpenTask opened}
+     *            (the animation continues when it's done) or can't be opened
      */
-    private class RepaintTask extends AbstractTask {
+    private boolean ensureInitialized() {
+        if (mInitialized) {
+            return true;
+        }
+        if (!mOpening && !mReleased && !mDecoder.isReleased()) {
+            mOpening = true;
+            mDecoderPool.execute(new OpenTask(mDecoder), mSource instanceof StreamingAnimationSource);
+        }
+        return false;
+    }
+
+    private void closeDecoder(@Nonnull AnimationDecoder decoder) {
+        mDecoderPool.execute(new CloseTask(decoder), mSource instanceof StreamingAnimationSource);
+    }
+
+    private class StillFrameTask extends AbstractTask {
+
+        @Nonnull private final RepaintContext mContext;
+
+        StillFrameTask(@Nonnull RepaintContext context) {
+            mContext = context;
+        }
+
         @Override
         public void run() {
-            if (mRepaintTask == this) {
-                repaint();
+            if (mRunning || mAnimationReady || isReleased()) {
+                return;
+            }
+            if (!ensureInitialized()) {
+                mStillFrameContext = mContext;
+                return;
             }
+            long frameOffsetTimeMillis = mDecoder.fillNextFrame(mBitmap);
+            if (frameOffsetTimeMillis < 0) {
+                return;
+            }
+            mPacer.onStillFrame(frameOffsetTimeMillis);
+            mAnimationReady = true;
+            mContext.repaint(AnimatedImageContent.this);
         }
     }
 
     private class DecodeTask extends AbstractTask {
         @Override
         public void run() {
-            if (!mRunning || mDecoder.isReleased()) {
+            if (!mRunning || isReleased() || !ensureInitialized()) {
                 return;
             }
-            if (!mInitialized) {
-                Dimensions d = mDecoder.init();
-                if (d == null) {
-                    return;
-                }
-                mInitialized = true;
-                mBitmap = Bitmap.createBitmap(d.getWidth(), d.getHeight(), Bitmap.Config.ARGB_8888);
-                mBitmapRect = new Rect(0, 0, d.getWidth(), d.getHeight());
-            }
+            mDecoder.setQuality(chooseQuality());
+            long start = System.nanoTime();
             final long frameOffsetTimeMillis = mDecoder.fillNextFrame(mBitmap);
+            if (frameOffsetTimeMillis < 0) {
+                // Broken data or aborted download, there is no point in spinning the animation loop.
+                Logger.w(AnimatedImageContent.class, "Can't decode next frame for %s", AnimatedImageContent.this);
+                return;
+            }
+            long frameInterval = frameOffsetTimeMillis - mPacer.getLastFrameOffset();
+            if (frameInterval > 0) {
+                float load = (System.nanoTime() - start) / (frameInterval * 1000000f);
+                mCpuLoad = mCpuLoad < 0 ? load : mCpuLoad + (load - mCpuLoad) * CPU_LOAD_SMOOTHING;
+            }
+            updatePlaybackStats();
             onDecodeTaskCompleted(frameOffsetTimeMillis);
         }
     }
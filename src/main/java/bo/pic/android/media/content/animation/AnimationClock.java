@@ -0,0 +1,223 @@
+package bo.pic.android.media.content.animation;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nonnull;
+
+import bo.pic.android.media.util.DeviceUtil;
+
+/**
+ * A single clock which drives presentation of all animations.
+ * <p/>
+ * Decoded frames are {@link #schedule(Client) scheduled} here with their due times and the clock presents them at the first
+ * display frame (vsync) which is not earlier than the due time. Ticks are requested only while there are scheduled frames,
+ * so the clock doesn't wake up the device when nothing is animated.
+ * <p/>
+ * Ticks are provided by a pluggable {@link FrameSource}, {@link Choreographer} is used by default.
+ */
+public class AnimationClock {
+
+    /**
+     * Source of display frame ticks.
+     */
+    public interface FrameSource {
+
+        /**
+         * @return    current time in {@link SystemClock#uptimeMillis() uptime} milliseconds
+         */
+        long now();
+
+        /**
+         * Asks to call the given callback once at the next display frame. Might be called from any thread.
+         */
+        void requestFrame(@Nonnull Runnable callback);
+    }
+
+    /**
+     * A frame which waits to be presented.
+     */
+    public interface Client {
+
+        /**
+         * @return    {@link FrameSource#now() time} when the frame should be presented
+         */
+        long getDueTime();
+
+        /**
+         * Asks to present the frame. Calls from the {@link FrameSource clock thread}.
+         *
+         * @param frameTime    current display frame time
+         */
+        void onTick(long frameTime);
+    }
+
+    /**
+     * Frames which are due within this interval after a display frame are presented at that display frame, that allows to not
+     * present every frame one vsync late because of timing jitter.
+     */
+    private static final long TOLERANCE_MILLIS = 8;
+
+    private static AnimationClock sInstance;
+
+    private final Runnable mTick = new Runnable() {
+        @Override
+        public void run() {
+            tick();
+        }
+    };
+
+    private final Queue<Client>  mIncoming       = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean  mFrameRequested = new AtomicBoolean();
+
+    /** Accessed only from the clock thread */
+    private final List<Client> mPending = new ArrayList<>();
+    private final List<Client> mDue     = new ArrayList<>();
+
+    @Nonnull private final FrameSource mFrameSource;
+
+    public AnimationClock(@Nonnull FrameSource frameSource) {
+        mFrameSource = frameSource;
+    }
+
+    /**
+     * @return    the clock used by animations unless {@link #setInstance(AnimationClock) replaced}
+     */
+    @Nonnull
+    public static synchronized AnimationClock getInstance() {
+        if (sInstance == null) {
+            sInstance = new AnimationClock(DeviceUtil.hasJellyBean() ? new ChoreographerFrameSource() : new HandlerFrameSource());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Allows to replace the default clock (e.g. with a manually driven one). Affects animations created after this call.
+     */
+    public static synchronized void setInstance(@Nonnull AnimationClock clock) {
+        sInstance = clock;
+    }
+
+    public long now() {
+        return mFrameSource.now();
+    }
+
+    /**
+     * Schedules the given frame for presentation. Might be called from any thread.
+     */
+    public void schedule(@Nonnull Client client) {
+        mIncoming.add(client);
+        if (mFrameRequested.compareAndSet(false, true)) {
+            mFrameSource.requestFrame(mTick);
+        }
+    }
+
+    private void tick() {
+        mFrameRequested.set(false);
+        long frameTime = mFrameSource.now();
+        for (Client client = mIncoming.poll(); client != null; client = mIncoming.poll()) {
+            mPending.add(client);
+        }
+        // Clients are removed before being ticked as they usually schedule their next frames from onTick().
+        for (int i = mPending.size() - 1; i >= 0; i--) {
+            Client client = mPending.get(i);
+            if (client.getDueTime() <= frameTime + TOLERANCE_MILLIS) {
+                mPending.remove(i);
+                mDue.add(client);
+            }
+        }
+        for (int i = mDue.size() - 1; i >= 0; i--) {
+            mDue.get(i).onTick(frameTime);
+        }
+        mDue.clear();
+        if (!mPending.isEmpty() && mFrameRequested.compareAndSet(false, true)) {
+            mFrameSource.requestFrame(mTick);
+        }
+    }
+
+    /**
+     * Ticks at display vsync.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static class ChoreographerFrameSource implements FrameSource {
+
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+        private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+            @Override
+            public void doFrame(long frameTimeNanos) {
+                Runnable callback = mCallback;
+                if (callback != null) {
+                    callback.run();
+                }
+            }
+        };
+
+        private final Runnable mPostFrameCallbackTask = new Runnable() {
+            @Override
+            public void run() {
+                getChoreographer().postFrameCallback(mFrameCallback);
+            }
+        };
+
+        /** The clock always requests frames with the same callback, so there is no need to allocate anything per frame */
+        private volatile Runnable mCallback;
+
+        /** {@link Choreographer} is bound to the thread it's obtained at, so it's accessed only from the main thread */
+        private Choreographer mChoreographer;
+
+        @Override
+        public long now() {
+            return SystemClock.uptimeMillis();
+        }
+
+        @Override
+        public void requestFrame(@Nonnull Runnable callback) {
+            mCallback = callback;
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                mPostFrameCallbackTask.run();
+            } else {
+                mHandler.post(mPostFrameCallbackTask);
+            }
+        }
+
+        @Nonnull
+        private Choreographer getChoreographer() {
+            if (mChoreographer == null) {
+                mChoreographer = Choreographer.getInstance();
+            }
+            return mChoreographer;
+        }
+    }
+
+    /**
+     * Approximates vsync by a fixed ~60 fps period for devices without {@link Choreographer}.
+     */
+    private static class HandlerFrameSource implements FrameSource {
+
+        private static final long FRAME_PERIOD_MILLIS = 16;
+
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public long now() {
+            return SystemClock.uptimeMillis();
+        }
+
+        @Override
+        public void requestFrame(@Nonnull Runnable callback) {
+            long now = SystemClock.uptimeMillis();
+            mHandler.postDelayed(callback, FRAME_PERIOD_MILLIS - now % FRAME_PERIOD_MILLIS);
+        }
+    }
+}
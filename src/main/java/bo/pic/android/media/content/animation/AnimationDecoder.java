@@ -4,11 +4,16 @@ import android.graphics.Bitmap;
 import android.os.Process;
 
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
 import java.lang.ref.PhantomReference;
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
-import java.util.HashSet;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
@@ -29,20 +34,59 @@ public class AnimationDecoder {
         void onDecoderReset();
     }
 
+    /**
+     * Native state of a decoder which is needed to release it, is shared between the decoder and its phantom reference.
+     */
     private static class MyReference extends PhantomReference<AnimationDecoder> {
 
         @Nonnull private final AtomicLong mHandlePointer;
         @Nonnull private final AtomicBoolean mReleased;
+        @Nonnull private final AtomicLong mNativeMemory;
+        @Nonnull private final String mDescription;
 
         MyReference(@Nonnull AnimationDecoder decoder) {
             super(decoder, sReferenceQueue);
             mHandlePointer = decoder.mHandlePointer;
             mReleased = decoder.mReleased;
+            mNativeMemory = decoder.mNativeMemory;
+            mDescription = decoder.mSource.toString();
+        }
+
+        /**
+         * Releases native resources, might be called from any thread. Only the first call has an effect.
+         *
+         * @return    <code>true</code> if the resources have been released by the current call
+         */
+        boolean release() {
+            if (!mReleased.compareAndSet(false, true)) {
+                return false;
+            }
+            sRefs.remove(this);
+            long handle = mHandlePointer.get();
+            if (handle != 0) { // There is a possible case that the decoder was created but not initialized
+                nativeRelease(handle);
+            }
+            sNativeMemory.addAndGet(-mNativeMemory.getAndSet(0));
+            return true;
         }
     }
 
     private static final ReferenceQueue<AnimationDecoder> sReferenceQueue = new ReferenceQueue<>();
-    private static final Set<MyReference> sRefs           = new HashSet<>();
+
+    /** References of decoders which are not released yet, they must be reachable until processed by the cleanup thread */
+    private static final Set<MyReference> sRefs = Collections.newSetFromMap(new ConcurrentHashMap<MyReference, Boolean>());
+
+    /** Indices of the {@link #getStageStats(long[]) stage stats} values, keep in sync with DecoderStats at decoder_core.h */
+    static final int STATS_DEMUX_NANOS      = 0;
+    static final int STATS_DECODE_NANOS     = 1;
+    static final int STATS_CONVERT_NANOS    = 2;
+    static final int STATS_PACKETS          = 3;
+    static final int STATS_CONVERTED_FRAMES = 4;
+    static final int STATS_SKIPPED_FRAMES   = 5;
+    static final int STATS_SIZE             = 6;
+
+    /** Total {@link #getNativeMemoryUsage() native memory usage} of all decoders which are not released yet */
+    private static final AtomicLong sNativeMemory = new AtomicLong();
 
     static {
         System.loadLibrary("avutil-52");
@@ -61,12 +105,11 @@ public class AnimationDecoder {
                 while (true) {
                     try {
                         MyReference ref = (MyReference) sReferenceQueue.remove();
-                        sRefs.remove(ref);
-                        if (ref.mReleased.compareAndSet(false, true)) {
-                            long handle = ref.mHandlePointer.get();
-                            if (handle != 0) { // There is a possible case that the decoder was created but not initialized
-                                nativeRelease(handle);
-                            }
+                        long nativeMemory = ref.mNativeMemory.get();
+                        if (ref.release() && nativeMemory > 0) {
+                            // Decoders are expected to be released explicitly, that is just a safety net.
+                            Logger.w(AnimationDecoder.class, "Decoder of %s (%d native bytes) is garbage collected without release",
+                                     ref.mDescription, nativeMemory);
                         }
                     } catch (InterruptedException e) {
                         Logger.e(AnimationDecoder.class, "Got an unexpected InterruptedException at the animation cleanup thread", e);
@@ -78,15 +121,50 @@ public class AnimationDecoder {
         thread.start();
     }
 
+    /**
+     * Large animations are decoded by several threads (frame- or slice-threaded, depending on codec capabilities) while small ones
+     * are decoded by a single thread. This method limits total number of additional decoding threads used by all decoders
+     * simultaneously, the default is 'number of cores - 1'.
+     * <p/>
+     * The limit is applied to decoders {@link #init() initialized} after this call.
+     *
+     * @param threads    number of additional decoding threads; zero means single-threaded decoding for all animations
+     */
+    public static void setThreadBudget(int threads) {
+        if (threads < 0) {
+            throw new IllegalArgumentException("Thread budget must not be negative, but is " + threads);
+        }
+        nativeSetThreadBudget(threads);
+    }
+
+    /**
+     * @return    estimated native memory used by all decoders which are not released yet (in bytes)
+     */
+    public static long getTotalNativeMemoryUsage() {
+        return sNativeMemory.get();
+    }
+
+    /**
+     * @return    number of decoders which are not released yet
+     */
+    public static int getLiveDecoderCount() {
+        return sRefs.size();
+    }
+
     private final AtomicReference<WeakReference<Thread>> mThreadRef     = new AtomicReference<>();
     private final AtomicBoolean mReleased      = new AtomicBoolean();
     private final AtomicLong mHandlePointer = new AtomicLong();
+    private final AtomicLong mNativeMemory  = new AtomicLong();
 
     @Nonnull private final Callback mCallback;
-    @Nonnull private final String mAbsoluteFilePath;
+    @Nonnull private final AnimationSource mSource;
+
+    @Nonnull private final MyReference mReference;
+
+    @Nonnull private DecodeQuality mQuality = DecodeQuality.FULL;
 
     public AnimationDecoder(@Nonnull File file, @Nonnull Callback listener) {
-        this(file.getAbsolutePath(), listener);
+        this(AnimationSource.of(file), listener);
     }
 
     /**
@@ -95,9 +173,19 @@ public class AnimationDecoder {
      * @param filePath Absolute file path
      */
     public AnimationDecoder(@Nonnull String filePath, @Nonnull Callback listener) {
-        mAbsoluteFilePath = filePath;
+        this(new File(filePath), listener);
+    }
+
+    /**
+     * Creates a decoder which reads animation data from the given source.
+     *
+     * @param source    animation data source
+     */
+    public AnimationDecoder(@Nonnull AnimationSource source, @Nonnull Callback listener) {
+        mSource = source;
         mCallback = listener;
-        sRefs.add(new MyReference(this));
+        mReference = new MyReference(this);
+        sRefs.add(mReference);
     }
 
     /**
@@ -127,22 +215,89 @@ public class AnimationDecoder {
                     Thread.currentThread(), previousThread));
         }
         try {
-            mHandlePointer.set(nativeInit(mAbsoluteFilePath));
+            mHandlePointer.set(mSource.open());
         } catch (Exception e) {
-            Logger.w(AnimationDecoder.class, "Can't initialize animation decoder for file %s", mAbsoluteFilePath);
-            mReleased.set(true);
+            Logger.w(AnimationDecoder.class, "Can't initialize animation decoder for %s", e, mSource);
+            mReference.release();
+            mReference.clear();
             return null;
         }
+        recordStreamInfo();
+        updateNativeMemoryUsage();
         return getDimensions();
     }
 
+    /**
+     * @return    estimated native memory used by the decoder (codec buffers, reference frames etc, in bytes); zero if it's not
+     *            initialized or is already released
+     */
+    public long getNativeMemoryUsage() {
+        return mNativeMemory.get();
+    }
+
+    /**
+     * Allows to get the animation's dimensions without {@link #init() initialization}, that is possible if the animation
+     * has been initialized before and its {@link StreamInfo stream info} is persisted.
+     *
+     * @return    full (not {@link DecodeQuality reduced}) dimensions of the animation if they are known; <code>null</code> otherwise
+     */
+    @Nullable
+    public Dimensions peekDimensions() {
+        File file = mSource.getStreamInfoFile();
+        StreamInfo info = file == null ? null : StreamInfo.read(file);
+        return info == null ? null : info.getDimensions();
+    }
+
+    /**
+     * Persists stream info of a source which is opened for the first time (or which stored info is unreadable, e.g. of an
+     * older format), so subsequent openings are cheaper.
+     */
+    private void recordStreamInfo() {
+        File file = mSource.getStreamInfoFile();
+        if (file == null || (file.isFile() && StreamInfo.read(file) != null)) {
+            return;
+        }
+        StreamInfo info = StreamInfo.of(nativeGetStreamInfo(mHandlePointer.get()));
+        if (info == null) {
+            return;
+        }
+        try {
+            info.write(file);
+        } catch (IOException e) {
+            Logger.w(AnimationDecoder.class, "Unable to store stream info of %s", e, mSource);
+        }
+    }
+
     public boolean isReleased() {
         return mReleased.get() // Already released
-               || (mHandlePointer.get() == 0 && !new File(mAbsoluteFilePath).isFile()); // Not initialized yet and can not be already
+               || (mHandlePointer.get() == 0 && !mSource.isAvailable()); // Not initialized yet and can not be already
+    }
+
+    /**
+     * Changes decoding cost/quality trade-off. Resolution reduction is applied only if the quality is changed before the first
+     * frame is decoded ({@link #getDimensions() dimensions} reflect it then), other settings might be changed at any time.
+     * <p/>
+     * Is expected to be called from the decoding thread after successful {@link #init() initialization}.
+     */
+    public void setQuality(@Nonnull DecodeQuality quality) {
+        if (mReleased.get() || mHandlePointer.get() == 0 || quality == mQuality) {
+            return;
+        }
+        nativeSetQuality(mHandlePointer.get(), quality.ordinal());
+        mQuality = quality;
+        updateNativeMemoryUsage();
     }
 
     @Nonnull
-    private Dimensions getDimensions() {
+    public DecodeQuality getQuality() {
+        return mQuality;
+    }
+
+    /**
+     * @return    dimensions of decoded frames, they are smaller than the animation's ones for reduced {@link #setQuality(DecodeQuality) quality}
+     */
+    @Nonnull
+    public Dimensions getDimensions() {
         int[] data = nativeGetDimensions(mHandlePointer.get());
         return new Dimensions(data[0], data[1]);
     }
@@ -164,6 +319,38 @@ public class AnimationDecoder {
         return result;
     }
 
+    /**
+     * Asks the decoder to catch up when playback falls behind the wall clock. Frames with offsets before the given one are
+     * decoded only as far as needed for further decoding (non-reference frames are dropped) and are not returned from
+     * {@link #fillNextFrame(Bitmap)}. Skipping stops at the first frame at or after the given offset, or when the animation
+     * is {@link #reset() reset}.
+     * <p/>
+     * Is expected to be called from the decoding thread.
+     *
+     * @param frameOffset    time offset since the animation's beginning (in milliseconds)
+     */
+    public void skipUntil(long frameOffset) {
+        if (mReleased.get() || mHandlePointer.get() == 0) {
+            return;
+        }
+        nativeSkipUntil(mHandlePointer.get(), frameOffset);
+    }
+
+    /**
+     * Copies cumulative costs of the native decoding stages (see <code>STATS_*</code> indices) into the given array. They are
+     * counted since the decoder is {@link #init() initialized}, all of them are zero if it's not initialized or is already
+     * released.
+     * <p/>
+     * Is expected to be called from the decoding thread.
+     */
+    void getStageStats(@Nonnull long[] stats) {
+        if (mReleased.get() || mHandlePointer.get() == 0) {
+            Arrays.fill(stats, 0);
+            return;
+        }
+        nativeGetStats(mHandlePointer.get(), stats);
+    }
+
     public void reset() {
         if (mReleased.get()) {
             return;
@@ -173,14 +360,26 @@ public class AnimationDecoder {
     }
 
     public void release() {
-        if (!mReleased.compareAndSet(false, true)) {
+        if (!mReference.release()) {
             Logger.w(AnimationDecoder.class, "release called second time for (%d)", System.identityHashCode(this));
             return;
         }
+        // The reference is not needed anymore, so the cleanup thread doesn't process it.
+        mReference.clear();
+    }
+
+    /**
+     * Is called from the thread which owns the decoder, i.e. there is no race with {@link #release()} (and the cleanup thread
+     * doesn't process reachable decoders).
+     */
+    private void updateNativeMemoryUsage() {
         long handle = mHandlePointer.get();
-        if (handle != 0) { // There is a possible case that the decoder was created but not initialized
-            nativeRelease(handle);
+        if (handle == 0 || mReleased.get()) {
+            return;
         }
+        long usage = nativeGetMemoryUsage(handle);
+        long delta = usage - mNativeMemory.getAndSet(usage);
+        sNativeMemory.addAndGet(delta);
     }
 
     private void checkState() {
@@ -201,10 +400,75 @@ public class AnimationDecoder {
 
     @Override
     public String toString() {
-        return mAbsoluteFilePath + ", released: " + mReleased.get();
+        return mSource + ", released: " + mReleased.get();
     }
 
-    private static native long nativeInit(@Nonnull String absoluteFilePath);
+    static native long nativeInit(@Nonnull String absoluteFilePath);
+
+    /**
+     * Same as {@link #nativeInit(String)} but uses minimal container probing seeded with the given stream info (it's ignored
+     * if it doesn't match the file).
+     *
+     * @param streamInfo    {@link StreamInfo#toArray() stream info} recorded at a previous initialization of the same file
+     */
+    static native long nativeInitWithStreamInfo(@Nonnull String absoluteFilePath, @Nonnull long[] streamInfo);
+
+    /**
+     * @return    {@link StreamInfo#toArray() stream info} of the animation opened by the given decoder
+     */
+    static native long[] nativeGetStreamInfo(long handle);
+
+    /**
+     * @param buffer    direct buffer which holds animation data between its start and capacity
+     */
+    static native long nativeInitFromBuffer(@Nonnull ByteBuffer buffer);
+
+    /**
+     * @param descriptor    file descriptor to read animation data from (duplicated by the native code)
+     * @param offset        animation data offset within the file
+     * @param length        animation data length, negative value means 'up to the end of file'
+     */
+    static native long nativeInitFromDescriptor(@Nonnull FileDescriptor descriptor, long offset, long length);
+
+    /**
+     * Creates a native download progress holder for a file which is still being written. Reads beyond the available data block until
+     * {@link #nativeUpdateStream(long, long, int) more data arrives} or the stream is finished.
+     *
+     * @param expectedSize    expected file size (if known); negative value otherwise
+     * @return                stream handle which holds a single reference
+     */
+    static native long nativeCreateStream(long expectedSize);
+
+    /**
+     * @param stream       stream handle
+     * @param available    number of bytes which can be read from the file's beginning
+     * @param state        one of the {@link StreamingAnimationSource} stream states
+     */
+    static native void nativeUpdateStream(long stream, long available, int state);
+
+    static native void nativeRetainStream(long stream);
+
+    static native void nativeReleaseStream(long stream);
+
+    /**
+     * @param descriptor    descriptor of the file being downloaded (duplicated by the native code)
+     * @param stream        stream handle, the decoder takes over a single {@link #nativeRetainStream(long) reference} to it
+     */
+    static native long nativeInitFromStream(@Nonnull FileDescriptor descriptor, long stream);
+
+    /**
+     * Stream-copies given MP4 file to the output file with the <code>moov</code> atom moved to the beginning.
+     *
+     * @return    zero on success; negative FFmpeg error code otherwise
+     */
+    static native int nativeRemuxFaststart(@Nonnull String inputFilePath, @Nonnull String outputFilePath);
+
+    /**
+     * Re-encodes video stream of the given file to an MP4 file of the given (even) dimensions.
+     *
+     * @return    zero on success; negative FFmpeg error code otherwise
+     */
+    static native int nativeTranscode(@Nonnull String inputFilePath, @Nonnull String outputFilePath, int width, int height);
 
     /**
      * Point decoder to the animation's beginning.
@@ -219,4 +483,20 @@ public class AnimationDecoder {
     private static native void nativeRelease(long handle);
 
     private static native int[] nativeGetDimensions(long handle);
+
+    /**
+     * @param quality    {@link DecodeQuality#ordinal() ordinal} of the target quality
+     */
+    private static native void nativeSetQuality(long handle, int quality);
+
+    private static native void nativeSetThreadBudget(int threads);
+
+    private static native long nativeGetMemoryUsage(long handle);
+
+    private static native void nativeSkipUntil(long handle, long frameOffset);
+
+    /**
+     * @param stats    an array of {@link #STATS_SIZE} values to fill
+     */
+    private static native void nativeGetStats(long handle, @Nonnull long[] stats);
 }
\ No newline at end of file
@@ -0,0 +1,185 @@
+package bo.pic.android.media.content.animation;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.nio.ByteBuffer;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import bo.pic.android.media.cache.BaseDiskCache;
+
+/**
+ * Stands for a place where {@link AnimationDecoder} reads animation data from.
+ * <p/>
+ * The general idea is to allow an animation to start from whatever tier currently holds its bytes:
+ * <ul>
+ *      <li>a {@link #of(File) file} (e.g. an entry of the disk cache);</li>
+ *      <li>a {@link #of(ByteBuffer) memory region} (e.g. downloaded data or a {@link java.nio.MappedByteBuffer mmapped} file);</li>
+ *      <li>a {@link #of(FileDescriptor, long, long) file descriptor range} (e.g. a slice of a packed blob store or an asset);</li>
+ * </ul>
+ * Non-file sources are backed by the custom AVIO read/seek callbacks at the native decoder.
+ */
+public abstract class AnimationSource {
+
+    AnimationSource() {
+    }
+
+    @Nonnull
+    public static AnimationSource of(@Nonnull File file) {
+        return new FileSource(file);
+    }
+
+    /**
+     * @param data    animation data, the array is copied, so it's safe to modify it after this method returns
+     */
+    @Nonnull
+    public static AnimationSource of(@Nonnull byte[] data) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+        buffer.put(data);
+        buffer.flip();
+        return new BufferSource(buffer);
+    }
+
+    /**
+     * @param buffer    animation data located between the buffer's position and limit. Non-direct buffers are copied, direct
+     *                  (and mmapped) buffers are used as-is and must not be modified while the decoder is alive
+     */
+    @Nonnull
+    public static AnimationSource of(@Nonnull ByteBuffer buffer) {
+        if (buffer.isDirect()) {
+            return new BufferSource(buffer.slice());
+        }
+        ByteBuffer copy = ByteBuffer.allocateDirect(buffer.remaining());
+        copy.put(buffer.duplicate());
+        copy.flip();
+        return new BufferSource(copy);
+    }
+
+    /**
+     * @param descriptor    file descriptor to read from. It's duplicated during decoder initialization, so the caller is free to close it
+     *                      as soon as {@link AnimationDecoder#init()} returns
+     * @param offset        animation data offset within the file
+     * @param length        animation data length; negative value means 'up to the end of file'
+     */
+    @Nonnull
+    public static AnimationSource of(@Nonnull FileDescriptor descriptor, long offset, long length) {
+        return new DescriptorSource(descriptor, offset, length);
+    }
+
+    /**
+     * @return    native decoder handle
+     * @throws Exception    if the native decoder can't be initialized for the current source
+     */
+    abstract long open() throws Exception;
+
+    /**
+     * @return    <code>false</code> if it's known that the current source can't be {@link #open() opened} anymore
+     */
+    abstract boolean isAvailable();
+
+    /**
+     * @return    a file to persist the source's {@link StreamInfo stream info} at; <code>null</code> if the source is not a
+     *            disk cache entry (there is no reliable way to tell whether other sources have changed between openings)
+     */
+    @Nullable
+    File getStreamInfoFile() {
+        return null;
+    }
+
+    /**
+     * Opens the given file with the minimal probing if its {@link StreamInfo stream info} is known.
+     *
+     * @return    native decoder handle
+     */
+    static long openFile(@Nonnull File file) throws Exception {
+        StreamInfo info = StreamInfo.read(BaseDiskCache.getSidecarFile(file));
+        if (info == null) {
+            return AnimationDecoder.nativeInit(file.getAbsolutePath());
+        }
+        return AnimationDecoder.nativeInitWithStreamInfo(file.getAbsolutePath(), info.toArray());
+    }
+
+    private static class FileSource extends AnimationSource {
+
+        @Nonnull private final String mAbsoluteFilePath;
+
+        FileSource(@Nonnull File file) {
+            mAbsoluteFilePath = file.getAbsolutePath();
+        }
+
+        @Override
+        long open() throws Exception {
+            return openFile(new File(mAbsoluteFilePath));
+        }
+
+        @Override
+        boolean isAvailable() {
+            return new File(mAbsoluteFilePath).isFile();
+        }
+
+        @Nullable
+        @Override
+        File getStreamInfoFile() {
+            return BaseDiskCache.getSidecarFile(new File(mAbsoluteFilePath));
+        }
+
+        @Override
+        public String toString() {
+            return mAbsoluteFilePath;
+        }
+    }
+
+    private static class BufferSource extends AnimationSource {
+
+        @Nonnull private final ByteBuffer mBuffer;
+
+        BufferSource(@Nonnull ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        long open() throws Exception {
+            return AnimationDecoder.nativeInitFromBuffer(mBuffer);
+        }
+
+        @Override
+        boolean isAvailable() {
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return "buffer of " + mBuffer.capacity() + " bytes";
+        }
+    }
+
+    private static class DescriptorSource extends AnimationSource {
+
+        @Nonnull private final FileDescriptor mDescriptor;
+
+        private final long mOffset;
+        private final long mLength;
+
+        DescriptorSource(@Nonnull FileDescriptor descriptor, long offset, long length) {
+            mDescriptor = descriptor;
+            mOffset = offset;
+            mLength = length;
+        }
+
+        @Override
+        long open() throws Exception {
+            return AnimationDecoder.nativeInitFromDescriptor(mDescriptor, mOffset, mLength);
+        }
+
+        @Override
+        boolean isAvailable() {
+            return mDescriptor.valid();
+        }
+
+        @Override
+        public String toString() {
+            return "descriptor " + mDescriptor + " [" + mOffset + ", " + (mLength < 0 ? "EOF" : mOffset + mLength) + ")";
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package bo.pic.android.media.content.animation;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import bo.pic.android.media.Dimensions;
+import bo.pic.android.media.cache.BaseDiskCache;
+import bo.pic.android.media.cache.CacheKey;
+import bo.pic.android.media.cache.DiskCache;
+import bo.pic.android.media.util.Logger;
+
+/**
+ * Animations are often served at a resolution much higher than the one they are displayed at, so every frame is decoded and
+ * converted at full size only to be downscaled on draw.
+ * <p/>
+ * This class re-encodes such animations in background to display-sized variants which are stored alongside the originals at the
+ * disk cache. Variants are bucketed by the longer side of requested dimensions (see {@link #BUCKET_SIZE}), each variant covers
+ * a square of its bucket size, so it can be shown in any {@link bo.pic.android.media.util.ScaleMode scale mode}
+ * without upscaling.
+ * <p/>
+ * When an animation is requested at multiple sizes at once, the original is probed once and all variants are transcoded from
+ * it in parallel. Variants are never derived from other variants: those are lossy re-encodes themselves (a second generation
+ * of artifacts would be visible at thumbnail sizes) and might be evicted from the cache meanwhile.
+ * <p/>
+ * Thread-safe.
+ */
+public class AnimationTranscoder {
+
+    public static final float DEFAULT_THRESHOLD = 1.5f;
+
+    private static final int    BUCKET_SIZE          = 64;
+    private static final String VARIANT_KEY_SEPARATOR = "#variant-";
+
+    @Nonnull private final DiskCache<CacheKey<String>> mDiskCache;
+    @Nonnull private final Executor                    mExecutor;
+
+    /**
+     * Variant keys which are either scheduled for transcoding, produced or known to be unnecessary. Keys of failed variants are
+     * removed, so they are retried on the next request.
+     */
+    private final Set<CacheKey<String>> mProcessedVariants = Collections.newSetFromMap(new ConcurrentHashMap<CacheKey<String>, Boolean>());
+
+    private final float mThreshold;
+
+    /**
+     * @param diskCache    disk cache which holds original animations and where variants are put to
+     * @param executor     executor to perform transcoding at; it's expected to run tasks with a background priority
+     * @param threshold    an animation is transcoded only if its shorter side exceeds the requested bucket size at least this number
+     *                     of times (see {@link #DEFAULT_THRESHOLD})
+     */
+    public AnimationTranscoder(@Nonnull DiskCache<CacheKey<String>> diskCache, @Nonnull Executor executor, float threshold) {
+        if (threshold < 1) {
+            throw new IllegalArgumentException("Transcoding threshold must not be less than 1, but is " + threshold);
+        }
+        mDiskCache = diskCache;
+        mExecutor = executor;
+        mThreshold = threshold;
+    }
+
+    /**
+     * @param key           disk cache key of the original animation
+     * @param dimensions    requested dimensions
+     * @return              previously transcoded variant of the given animation suitable for the given dimensions (if any);
+     *                      <code>null</code> otherwise
+     */
+    @Nullable
+    public File getVariant(@Nonnull CacheKey<String> key, @Nonnull Dimensions dimensions) {
+        CacheKey<String> variantKey = getVariantKey(key, dimensions);
+        if (variantKey == null) {
+            return null;
+        }
+        File file = mDiskCache.getFile(variantKey);
+        return file.isFile() ? file : null;
+    }
+
+    /**
+     * Schedules transcoding of the given animation to a variant suitable for the given dimensions. The animation is checked in
+     * background and is transcoded only if it's oversized, subsequent calls for the same variant do nothing unless the previous
+     * attempt has failed.
+     *
+     * @param key           disk cache key of the original animation, it's expected to be already stored
+     * @param dimensions    requested dimensions
+     */
+    public void transcodeIfOversized(@Nonnull CacheKey<String> key, @Nonnull Dimensions dimensions) {
+        transcodeIfOversized(key, Collections.singletonList(dimensions));
+    }
+
+    /**
+     * Same as {@link #transcodeIfOversized(CacheKey, Dimensions)} for multiple dimensions of the same animation, the original
+     * is probed once for all of them.
+     */
+    public void transcodeIfOversized(@Nonnull final CacheKey<String> key, @Nonnull Collection<Dimensions> dimensions) {
+        final List<Integer> buckets = new ArrayList<>();
+        for (Dimensions d : dimensions) {
+            CacheKey<String> variantKey = getVariantKey(key, d);
+            if (variantKey != null && mProcessedVariants.add(variantKey)) {
+                buckets.add(getBucket(d));
+            }
+        }
+        if (buckets.isEmpty()) {
+            return;
+        }
+        Collections.sort(buckets, Collections.reverseOrder());
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                transcode(key, buckets);
+            }
+        });
+    }
+
+    /**
+     * @param buckets    buckets of the variants to produce, the largest one goes first
+     */
+    private void transcode(@Nonnull final CacheKey<String> key, @Nonnull List<Integer> buckets) {
+        final File original = mDiskCache.getFile(key);
+        final Dimensions size = original.isFile() ? probe(original) : null;
+        if (size == null) {
+            // E.g. the original is evicted, it might be downloaded again.
+            for (int bucket : buckets) {
+                mProcessedVariants.remove(getVariantKey(key, bucket));
+            }
+            return;
+        }
+        for (int i = 1; i < buckets.size(); i++) {
+            final int bucket = buckets.get(i);
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    transcodeOrForget(key, bucket, size, original);
+                }
+            });
+        }
+        transcodeOrForget(key, buckets.get(0), size, original);
+    }
+
+    /**
+     * Same as {@link #transcode(CacheKey, int, Dimensions, File)}, but a failed variant is forgotten to be retried later.
+     */
+    private void transcodeOrForget(@Nonnull CacheKey<String> key, int bucket, @Nonnull Dimensions size, @Nonnull File original) {
+        try {
+            transcode(key, bucket, size, original);
+        } catch (Exception e) {
+            Logger.w(AnimationTranscoder.class, "Can't transcode %s to the variant of size %d", e, key, bucket);
+            mProcessedVariants.remove(getVariantKey(key, bucket));
+        }
+    }
+
+    /**
+     * @param size        dimensions of the original animation
+     * @param original    the original animation to transcode from
+     */
+    private void transcode(@Nonnull CacheKey<String> key, int bucket, @Nonnull Dimensions size, @Nonnull File original)
+            throws IOException
+    {
+        int shorterSide = Math.min(size.getWidth(), size.getHeight());
+        if (shorterSide < bucket * mThreshold) {
+            return;
+        }
+        CacheKey<String> variantKey = getVariantKey(key, bucket);
+        if (mDiskCache.getFile(variantKey).isFile()) {
+            return;
+        }
+        float scale = (float) bucket / shorterSide;
+        int width = toEven(Math.round(size.getWidth() * scale));
+        int height = toEven(Math.round(size.getHeight() * scale));
+
+        File output = mDiskCache.getPartialFile(variantKey);
+        try {
+            int result = AnimationDecoder.nativeTranscode(original.getAbsolutePath(), output.getAbsolutePath(), width, height);
+            if (result < 0) {
+                throw new IOException(String.format("Unable to transcode %s to %dx%d, error %d", original, width, height, result));
+            }
+            mDiskCache.commit(variantKey, output);
+            Logger.i(AnimationTranscoder.class, "Transcoded %s from %s to %dx%d", key, size, width, height);
+        } finally {
+            if (output.isFile() && !output.delete()) {
+                Logger.w(AnimationTranscoder.class, "Unable to delete transcoding output [%s]", output);
+            }
+        }
+    }
+
+    @Nullable
+    private static Dimensions probe(@Nonnull File file) {
+        StreamInfo info = StreamInfo.read(BaseDiskCache.getSidecarFile(file));
+        if (info != null) {
+            return info.getDimensions();
+        }
+        AnimationDecoder decoder = new AnimationDecoder(file, new AnimationDecoder.Callback() {
+            @Override
+            public void onDecoderReset() {
+            }
+        });
+        try {
+            return decoder.init();
+        } finally {
+            if (!decoder.isReleased()) {
+                decoder.release();
+            }
+        }
+    }
+
+    @Nullable
+    private static CacheKey<String> getVariantKey(@Nonnull CacheKey<String> key, @Nonnull Dimensions dimensions) {
+        int bucket = getBucket(dimensions);
+        return bucket <= 0 ? null : getVariantKey(key, bucket);
+    }
+
+    @Nonnull
+    private static CacheKey<String> getVariantKey(@Nonnull CacheKey<String> key, int bucket) {
+        return CacheKey.of(key.key + VARIANT_KEY_SEPARATOR + bucket, key.type);
+    }
+
+    private static int getBucket(@Nonnull Dimensions dimensions) {
+        int side = Math.max(dimensions.getWidth(), dimensions.getHeight());
+        return (side + BUCKET_SIZE - 1) / BUCKET_SIZE * BUCKET_SIZE;
+    }
+
+    private static int toEven(int value) {
+        return Math.max(2, value & ~1);
+    }
+}
@@ -0,0 +1,52 @@
+package bo.pic.android.media.content.animation;
+
+import javax.annotation.Nonnull;
+
+import bo.pic.android.media.Dimensions;
+
+/**
+ * Defines decoding cost/quality trade-off of an {@link AnimationDecoder}.
+ * <p/>
+ * Small views (e.g. thumbnails at a grid) show a heavily downscaled picture, so there is no point in decoding it at full
+ * quality - lowres decoding (for codecs which support it), skipped loop filter and skipped IDCT for non-reference frames
+ * are not noticeable there but make decoding several times cheaper.
+ * <p/>
+ * <b>Note:</b> the order of constants is shared with the native decoder.
+ */
+public enum DecodeQuality {
+
+    /** Regular decoding */
+    FULL,
+
+    /** Half resolution (if supported by the codec), no loop filter for non-reference frames */
+    REDUCED,
+
+    /** Quarter resolution (if supported by the codec), no loop filter, no IDCT for non-reference frames */
+    LOW;
+
+    private static final int REDUCED_QUALITY_RATIO = 2;
+    private static final int LOW_QUALITY_RATIO     = 4;
+
+    /**
+     * @param video           animation dimensions
+     * @param viewWidth       width of the view the animation is shown at
+     * @param viewHeight      height of the view the animation is shown at
+     * @param fullyVisible    <code>false</code> if the view is partially hidden (e.g. is being scrolled off-screen)
+     * @return                the cheapest quality which is still good enough for the given view
+     */
+    @Nonnull
+    public static DecodeQuality choose(@Nonnull Dimensions video, int viewWidth, int viewHeight, boolean fullyVisible) {
+        if (viewWidth <= 0 || viewHeight <= 0) {
+            return FULL;
+        }
+        // The smaller ratio is used in order to not degrade cropped animations.
+        float ratio = Math.min((float) video.getWidth() / viewWidth, (float) video.getHeight() / viewHeight);
+        if (ratio >= LOW_QUALITY_RATIO) {
+            return LOW;
+        }
+        if (ratio >= REDUCED_QUALITY_RATIO || !fullyVisible) {
+            return REDUCED;
+        }
+        return FULL;
+    }
+}
@@ -1,6 +1,6 @@
 package bo.pic.android.media.content.animation;
 
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -21,19 +21,30 @@ public class DecodeQueue {
         }
     };
 
-    @Nonnull private final ExecutorService[] mExecutors;
+    @Nonnull private final Executor[] mExecutors;
 
     public DecodeQueue(int numDecodeThreads) {
-        mExecutors = new ExecutorService[numDecodeThreads];
+        mExecutors = new Executor[numDecodeThreads];
         for (int i = 0; i < numDecodeThreads; i++) {
             mExecutors[i] = Executors.newSingleThreadExecutor(sThreadFactory);
         }
     }
 
-    public void add(final Task task) {
-        mExecutors[task.getThreadId() % mExecutors.length].execute(task);
+    /**
+     * @param executors    serial executors (e.g. manually driven ones) which take the place of decode threads, i.e. tasks
+     *                     with the same {@link Task#getThreadId() thread id} must be executed one by one in order
+     */
+    public DecodeQueue(@Nonnull Executor... executors) {
+        if (executors.length == 0) {
+            throw new IllegalArgumentException("At least one executor is expected");
+        }
+        mExecutors = executors.clone();
     }
 
+    public void add(final Task task) {
+        // Thread ids might be negative (e.g. hash codes).
+        mExecutors[(task.getThreadId() & Integer.MAX_VALUE) % mExecutors.length].execute(task);
+    }
 
     public interface Task extends Runnable {
         int getThreadId();
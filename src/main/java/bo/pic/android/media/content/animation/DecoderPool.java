@@ -0,0 +1,171 @@
+package bo.pic.android.media.content.animation;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import bo.pic.android.media.util.Logger;
+
+/**
+ * Manages decoder lifecycle of all {@link AnimatedImageContent animations}.
+ * <p/>
+ * Opening a decoder (probing the container, allocating codec context and threads) and closing it are relatively expensive
+ * operations, so they are performed at dedicated lifecycle threads instead of the playback ones - an animation which is being
+ * opened doesn't delay frames of already playing animations. A freshly opened decoder is handed over to the playback thread
+ * of its animation, which owns it since then.
+ * <p/>
+ * Decoders of stopped animations are not closed immediately but are kept open in a small LRU, so an animation which is
+ * started again soon (e.g. when the user scrolls back) resumes without re-opening. Decoders which don't fit into the LRU are
+ * closed, their animations keep showing the last frame and re-open decoders when started again.
+ * <p/>
+ * Decoders hold codec buffers and reference frames in native memory which is not visible to the java heap. Their total
+ * {@link AnimationDecoder#getTotalNativeMemoryUsage() usage} might be limited by a {@link #setNativeMemoryBudget(long) budget},
+ * idle decoders are closed first (the least recently stopped ones) when it's exceeded.
+ */
+public class DecoderPool {
+
+    public static final int DEFAULT_MAX_IDLE_DECODERS = 4;
+
+    private static final DecoderPool sInstance = new DecoderPool();
+
+    @Nonnull private final DecodeQueue mLifecycleQueue;
+
+    /** Opening a {@link StreamingAnimationSource streaming} decoder might block until the header is downloaded */
+    @Nonnull private final DecodeQueue mStreamingLifecycleQueue;
+
+    /** Stopped animations with open decoders, the eldest (least recently stopped) one goes first */
+    private final LinkedHashMap<AnimatedImageContent, Boolean> mIdle = new LinkedHashMap<>();
+
+    private int  mMaxIdleDecoders    = DEFAULT_MAX_IDLE_DECODERS;
+    private long mNativeMemoryBudget = Long.MAX_VALUE;
+
+    private DecoderPool() {
+        this(new DecodeQueue(1), new DecodeQueue(2));
+    }
+
+    /**
+     * Allows to execute decoder lifecycle tasks at other queues (e.g. ones which are driven manually).
+     */
+    DecoderPool(@Nonnull DecodeQueue lifecycleQueue, @Nonnull DecodeQueue streamingLifecycleQueue) {
+        mLifecycleQueue = lifecycleQueue;
+        mStreamingLifecycleQueue = streamingLifecycleQueue;
+    }
+
+    @Nonnull
+    public static DecoderPool getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * @param maxIdleDecoders    maximum number of decoders of stopped animations which are kept open; zero means 'close decoders
+     *                           as soon as animations are stopped'
+     */
+    public void setMaxIdleDecoders(int maxIdleDecoders) {
+        if (maxIdleDecoders < 0) {
+            throw new IllegalArgumentException("Max number of idle decoders must not be negative, but is " + maxIdleDecoders);
+        }
+        List<AnimatedImageContent> evicted;
+        synchronized (this) {
+            mMaxIdleDecoders = maxIdleDecoders;
+            evicted = trim();
+        }
+        evict(evicted);
+    }
+
+    /**
+     * @param bytes    native memory which all decoders might use together; idle decoders are closed when it's exceeded. There is
+     *                 no limit by default
+     */
+    public void setNativeMemoryBudget(long bytes) {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("Native memory budget must be positive, but is " + bytes);
+        }
+        List<AnimatedImageContent> evicted;
+        synchronized (this) {
+            mNativeMemoryBudget = bytes;
+            evicted = trim();
+        }
+        evict(evicted);
+    }
+
+    /**
+     * @return    number of stopped animations which keep their decoders open
+     */
+    public synchronized int getIdleCount() {
+        return mIdle.size();
+    }
+
+    /**
+     * Executes the given decoder open or close task at a lifecycle thread.
+     */
+    void execute(@Nonnull DecodeQueue.Task task, boolean streaming) {
+        (streaming ? mStreamingLifecycleQueue : mLifecycleQueue).add(task);
+    }
+
+    /**
+     * Notifies that the given animation is stopped but its decoder is open.
+     */
+    void onStopped(@Nonnull AnimatedImageContent content) {
+        List<AnimatedImageContent> evicted;
+        synchronized (this) {
+            mIdle.remove(content);
+            mIdle.put(content, Boolean.TRUE);
+            evicted = trim();
+        }
+        evict(evicted);
+    }
+
+    /**
+     * Notifies that a decoder is opened, i.e. the total native memory usage is increased.
+     */
+    void onOpened() {
+        List<AnimatedImageContent> evicted;
+        synchronized (this) {
+            evicted = trim();
+        }
+        evict(evicted);
+    }
+
+    /**
+     * Notifies that the given animation is started or released, i.e. its decoder is not idle anymore.
+     */
+    synchronized void onActive(@Nonnull AnimatedImageContent content) {
+        mIdle.remove(content);
+    }
+
+    private List<AnimatedImageContent> trim() {
+        List<AnimatedImageContent> result = null;
+        // Decoders are closed asynchronously, so the usage is adjusted here to not close more decoders than necessary.
+        long excess = AnimationDecoder.getTotalNativeMemoryUsage() - mNativeMemoryBudget;
+        Iterator<AnimatedImageContent> iterator = mIdle.keySet().iterator();
+        while (iterator.hasNext() && (mIdle.size() > mMaxIdleDecoders || excess > 0)) {
+            if (result == null) {
+                result = new ArrayList<>();
+            }
+            AnimatedImageContent content = iterator.next();
+            excess -= content.getNativeMemoryUsage();
+            result.add(content);
+            iterator.remove();
+        }
+        if (excess > 0) {
+            Logger.d(DecoderPool.class, "Native memory budget is exceeded by %d bytes by active decoders", excess);
+        }
+        return result;
+    }
+
+    private static void evict(List<AnimatedImageContent> contents) {
+        if (contents != null) {
+            for (AnimatedImageContent content : contents) {
+                content.closeIdleDecoder();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "idle decoders: " + getIdleCount() + ", native memory: " + AnimationDecoder.getTotalNativeMemoryUsage();
+    }
+}
@@ -0,0 +1,42 @@
+package bo.pic.android.media.content.animation;
+
+import java.io.File;
+import java.io.IOException;
+
+import javax.annotation.Nonnull;
+
+import bo.pic.android.media.cache.CacheEntryProcessor;
+import bo.pic.android.media.util.FileUtil;
+import bo.pic.android.media.util.ImageUtil;
+import bo.pic.android.media.util.Logger;
+
+/**
+ * Many MP4 files have the <code>moov</code> atom at the end. The decoder has to seek to the file's tail and back during
+ * initialization then, which increases open latency and makes {@link StreamingAnimationSource progressive playback} impossible.
+ * <p/>
+ * This {@link CacheEntryProcessor ingest step} remuxes such files with the <code>moov</code> atom first (no re-encoding), so that
+ * later opens are a single sequential read. Files which are not MP4 or already have the <code>moov</code> atom first are left intact.
+ */
+public class FaststartRemuxer implements CacheEntryProcessor {
+
+    private static final String OUTPUT_FILE_SUFFIX = ".faststart.tmp";
+
+    @Override
+    public void process(@Nonnull byte[] data, @Nonnull File file) throws IOException {
+        if (!ImageUtil.isMp4(data) || ImageUtil.isFaststartMp4(data)) {
+            return;
+        }
+        File output = new File(file.getPath() + OUTPUT_FILE_SUFFIX);
+        try {
+            int result = AnimationDecoder.nativeRemuxFaststart(file.getAbsolutePath(), output.getAbsolutePath());
+            if (result < 0) {
+                throw new IOException(String.format("Unable to remux %s, error %d", file, result));
+            }
+            FileUtil.move(output, file);
+        } finally {
+            if (output.isFile() && !output.delete()) {
+                Logger.w(FaststartRemuxer.class, "Unable to delete remux output [%s]", output);
+            }
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package bo.pic.android.media.content.animation;
+
+/**
+ * Frame scheduling algorithm of {@link AnimatedImageContent}: computes when a decoded frame is due and whether the decoder
+ * should skip frames to catch up with the wall clock or to respect a frame rate cap.
+ * <p/>
+ * Frames are scheduled against the wall clock (not against the previous frame's actual draw time), so the lateness accumulates
+ * when decoding falls behind and we can catch up instead of slowing the animation down.
+ * <p/>
+ * Has neither threads nor clocks of its own, so the algorithm is deterministic and might be replayed in virtual time.
+ * Is accessed from a single (decoding) thread.
+ */
+class FramePacer {
+
+    /** Playback which is late less than this is not corrected - the lateness is absorbed by the subsequent frames' delays */
+    static final long MAX_LATENESS_MILLIS = 50;
+
+    /**
+     * Playback which is late more than this is not caught up but is re-synchronized with the wall clock instead, that is the
+     * case for e.g. animation restart after a stop.
+     */
+    static final long MAX_CATCH_UP_MILLIS = 1000;
+
+    private long    mLastFrameDrawTime;
+    private long    mLastFrameOffset;
+    private long    mSkipUntil = -1;
+
+    /** Source frame interval estimated from the last scheduled frames (frames skipped in between are evenly spaced) */
+    private long    mFrameInterval;
+    /** Frames the decoder skipped since the last scheduled frame */
+    private long    mSkippedFrames;
+    /** <code>true</code> if the decoder is {@link #onDecoderReset() reset} since the last scheduled frame */
+    private boolean mReset;
+
+    /**
+     * Offset the next frame is due at according to the frame rate cap, it advances by exact cap periods (not from the actual
+     * offsets of shown frames, which lie on the source's frame grid), so the cap is what limits the frame rate. Negative if
+     * the cadence is not started yet.
+     */
+    private double  mNextCappedOffset = -1;
+    private boolean mStarted;
+    private boolean mCatchingUp;
+
+    /**
+     * @param now             current clock time
+     * @param frameOffset     time offset of the decoded frame since the animation's beginning (in milliseconds)
+     * @param maxFrameRate    frame rate cap; zero means 'source frame rate'
+     * @return                clock time when the frame is due; the first frame is due immediately
+     */
+    long schedule(long now, long frameOffset, float maxFrameRate) {
+        long skipUntil = getNextAllowedFrameOffset(frameOffset, maxFrameRate);
+        long frameDrawTime;
+        mCatchingUp = false;
+        if (!mStarted) {
+            mStarted = true;
+            frameDrawTime = now;
+        } else {
+            frameDrawTime = mLastFrameDrawTime + frameOffset - mLastFrameOffset;
+            long lateness = now - frameDrawTime;
+            if (lateness > MAX_CATCH_UP_MILLIS) {
+                frameDrawTime = now;
+            } else if (lateness > MAX_LATENESS_MILLIS) {
+                skipUntil = Math.max(skipUntil, frameOffset + lateness);
+                mCatchingUp = true;
+            }
+        }
+        if (!mReset && frameOffset > mLastFrameOffset) {
+            mFrameInterval = (frameOffset - mLastFrameOffset) / (mSkippedFrames + 1);
+        }
+        mSkippedFrames = 0;
+        mReset = false;
+        mLastFrameDrawTime = frameDrawTime;
+        mLastFrameOffset = frameOffset;
+        mSkipUntil = skipUntil > frameOffset ? skipUntil : -1;
+        return frameDrawTime;
+    }
+
+    /**
+     * @return    offset which the decoder should skip frames until (see {@link AnimationDecoder#skipUntil(long)}) after the last
+     *            {@link #schedule(long, long, float) scheduled} frame; negative value if no frames should be skipped
+     */
+    long getSkipUntil() {
+        return mSkipUntil;
+    }
+
+    /**
+     * @return    <code>true</code> if the {@link #getSkipUntil() skipped frames} are dropped because playback fell behind (not only
+     *            because of a frame rate cap)
+     */
+    boolean isCatchingUp() {
+        return mCatchingUp;
+    }
+
+    /**
+     * @return    offset of the last scheduled (or {@link #onStillFrame(long) shown}) frame; negative right after
+     *            {@link #onDecoderReset() decoder reset}
+     */
+    long getLastFrameOffset() {
+        return mLastFrameOffset;
+    }
+
+    /**
+     * Calls when the decoder reports frames it skipped (as asked by {@link #getSkipUntil()}) before the frame which is scheduled
+     * next.
+     */
+    void onFramesSkipped(long count) {
+        mSkippedFrames += count;
+    }
+
+    /**
+     * Calls when a frame is shown without playback.
+     */
+    void onStillFrame(long frameOffset) {
+        mLastFrameOffset = frameOffset;
+    }
+
+    /**
+     * Calls when the decoder starts from the animation's beginning again. The last frame of the loop lasts one source frame
+     * interval (its real duration is not known), so the first frame of the next loop is due after that.
+     */
+    void onDecoderReset() {
+        mLastFrameOffset = -mFrameInterval;
+        mNextCappedOffset = -1;
+        mReset = true;
+    }
+
+    /**
+     * E.g. a 25 fps source capped at 12 fps shows frames at 0, 120, 200, 280, 360... ms (every second or third frame, 12 fps
+     * on average) instead of every third frame which is a full cap period after the previous one (8.3 fps).
+     *
+     * @return    minimum offset of the next frame allowed by the frame rate cap
+     */
+    private long getNextAllowedFrameOffset(long frameOffset, float maxFrameRate) {
+        if (maxFrameRate <= 0) {
+            mNextCappedOffset = -1;
+            return frameOffset;
+        }
+        double period = 1000.0 / maxFrameRate;
+        double base = mNextCappedOffset;
+        if (base < 0 || frameOffset < base - period || frameOffset >= base + period) {
+            // Not started, rewound or fell a whole period behind (e.g. after catching up) - the cadence starts from this frame.
+            base = frameOffset;
+        }
+        mNextCappedOffset = base + period;
+        return (long) mNextCappedOffset;
+    }
+}
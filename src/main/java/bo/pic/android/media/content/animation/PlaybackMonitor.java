@@ -0,0 +1,124 @@
+package bo.pic.android.media.content.animation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import bo.pic.android.media.util.Function;
+
+/**
+ * Aggregates {@link PlaybackStats playback stats} of all {@link AnimatedImageContent animations} by groups, e.g. by sticker
+ * packs, so janky content can be spotted at production builds.
+ * <p/>
+ * Animations are assigned to groups by their content uris via a {@link #setGroupFunction(Function) group function}. Stats of
+ * released animations are folded into their groups, so memory usage depends on the number of groups only.
+ */
+public class PlaybackMonitor {
+
+    /** Group of all animations if there is no {@link #setGroupFunction(Function) group function} */
+    public static final String DEFAULT_GROUP = "";
+
+    private static final PlaybackMonitor sInstance = new PlaybackMonitor();
+
+    /** Animations which are not released yet, their stats are still being updated */
+    private final WeakHashMap<AnimatedImageContent, Boolean> mLive = new WeakHashMap<>();
+
+    /** Folded stats of released animations by groups */
+    private final Map<String, PlaybackStats> mReleased = new HashMap<>();
+
+    @Nullable private Function<String, String> mGroupFunction;
+
+    @Nonnull
+    public static PlaybackMonitor getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * @param groupFunction    maps an animation's content uri to its group (e.g. a sticker pack id), <code>null</code> puts all
+     *                         animations into the {@link #DEFAULT_GROUP default group}. Stats of already released animations
+     *                         keep their groups
+     */
+    public synchronized void setGroupFunction(@Nullable Function<String, String> groupFunction) {
+        mGroupFunction = groupFunction;
+    }
+
+    /**
+     * @return    current stats of all groups, i.e. copies which are not updated afterwards
+     */
+    @Nonnull
+    public Map<String, PlaybackStats> getStats() {
+        List<AnimatedImageContent> live;
+        Map<String, PlaybackStats> result = new HashMap<>();
+        synchronized (this) {
+            live = new ArrayList<>(mLive.keySet());
+            for (Map.Entry<String, PlaybackStats> entry : mReleased.entrySet()) {
+                getOrCreate(result, entry.getKey()).add(entry.getValue());
+            }
+        }
+        for (AnimatedImageContent content : live) {
+            getOrCreate(result, getGroup(content)).add(content.getPlaybackStats());
+        }
+        return result;
+    }
+
+    /**
+     * @return    a copy of the current stats of the given group; empty stats if there were no animations of the group
+     */
+    @Nonnull
+    public PlaybackStats getStats(@Nonnull String group) {
+        PlaybackStats result = getStats().get(group);
+        return result == null ? new PlaybackStats() : result;
+    }
+
+    /**
+     * Starts counting from scratch, e.g. after the stats are reported.
+     */
+    public void reset() {
+        List<AnimatedImageContent> live;
+        synchronized (this) {
+            mReleased.clear();
+            live = new ArrayList<>(mLive.keySet());
+        }
+        for (AnimatedImageContent content : live) {
+            content.getPlaybackStats().reset();
+        }
+    }
+
+    synchronized void onCreated(@Nonnull AnimatedImageContent content) {
+        mLive.put(content, Boolean.TRUE);
+    }
+
+    void onReleased(@Nonnull AnimatedImageContent content) {
+        String group = getGroup(content);
+        synchronized (this) {
+            if (mLive.remove(content) != null) {
+                getOrCreate(mReleased, group).add(content.getPlaybackStats());
+            }
+        }
+    }
+
+    @Nonnull
+    private String getGroup(@Nonnull AnimatedImageContent content) {
+        Function<String, String> groupFunction;
+        synchronized (this) {
+            groupFunction = mGroupFunction;
+        }
+        String group = groupFunction == null ? null : groupFunction.apply(content.getContentUri());
+        return group == null ? DEFAULT_GROUP : group;
+    }
+
+    @Nonnull
+    private static PlaybackStats getOrCreate(@Nonnull Map<String, PlaybackStats> stats, @Nonnull String group) {
+        PlaybackStats result = stats.get(group);
+        if (result == null) {
+            result = new PlaybackStats();
+            stats.put(group, result);
+        }
+        return result;
+    }
+}
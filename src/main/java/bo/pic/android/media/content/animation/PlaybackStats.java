@@ -0,0 +1,189 @@
+package bo.pic.android.media.content.animation;
+
+import java.util.Locale;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Cheap running statistics of an {@link AnimatedImageContent animation} playback (or of a {@link PlaybackMonitor group} of
+ * them): costs of the native decoding stages, presented and dropped frames and presentation lateness.
+ * <p/>
+ * Stage costs are moving averages per converted frame, i.e. they reflect the recent playback. Frame counters and the lateness
+ * distribution are cumulative since the playback start (or the last {@link #reset() reset}). Lateness is measured as the
+ * difference between the display frame which actually presents an animation frame and the frame's due time, it's kept in a
+ * fixed histogram, so recording is allocation-free and {@link #getLatenessPercentile(float) percentiles} are approximate
+ * (they are upper bounds of histogram buckets).
+ * <p/>
+ * Is thread-safe: it's updated from decoding and clock threads and might be read from any thread.
+ */
+public class PlaybackStats {
+
+    /** Inclusive upper bounds of the lateness histogram buckets (in milliseconds), the last bucket is unbounded */
+    private static final long[] LATENESS_BUCKETS = {0, 4, 8, 17, 25, 34, 50, 67, 100, 150, 250, 500, 1000};
+
+    /** Weight of the newest sample at the stage cost moving averages */
+    private static final float STAGE_SMOOTHING = 0.1f;
+
+    private final long[] mLatenessHistogram = new long[LATENESS_BUCKETS.length + 1];
+
+    private float mDemuxMicros;
+    private float mDecodeMicros;
+    private float mConvertMicros;
+    private long  mConvertedFrames;
+    private long  mPresentedFrames;
+    private long  mDroppedFrames;
+    private long  mMaxLatenessMillis;
+
+    /**
+     * Calls from the decoding thread per decoded frame, the costs are deltas of the native {@link AnimationDecoder#getStageStats(long[])
+     * stage stats} since the previous frame.
+     *
+     * @param droppedFrames    frames which are skipped to catch up with the wall clock since the previous frame
+     */
+    synchronized void onFrameDecoded(long demuxNanos, long decodeNanos, long convertNanos, long droppedFrames) {
+        float weight = mConvertedFrames == 0 ? 1 : STAGE_SMOOTHING;
+        mDemuxMicros += (demuxNanos / 1000f - mDemuxMicros) * weight;
+        mDecodeMicros += (decodeNanos / 1000f - mDecodeMicros) * weight;
+        mConvertMicros += (convertNanos / 1000f - mConvertMicros) * weight;
+        mConvertedFrames++;
+        mDroppedFrames += droppedFrames;
+    }
+
+    /**
+     * Calls from the clock thread per presented frame.
+     *
+     * @param latenessMillis    time between the frame's due time and the display frame which presents it
+     */
+    synchronized void onFramePresented(long latenessMillis) {
+        long lateness = Math.max(0, latenessMillis);
+        int bucket = 0;
+        while (bucket < LATENESS_BUCKETS.length && lateness > LATENESS_BUCKETS[bucket]) {
+            bucket++;
+        }
+        mLatenessHistogram[bucket]++;
+        mMaxLatenessMillis = Math.max(mMaxLatenessMillis, lateness);
+        mPresentedFrames++;
+    }
+
+    /**
+     * Adds the given stats to this one. Stage costs are averaged weighted by the number of converted frames.
+     */
+    void add(@Nonnull PlaybackStats other) {
+        float demuxMicros, decodeMicros, convertMicros;
+        long convertedFrames, presentedFrames, droppedFrames, maxLatenessMillis;
+        long[] histogram;
+        synchronized (other) {
+            demuxMicros = other.mDemuxMicros;
+            decodeMicros = other.mDecodeMicros;
+            convertMicros = other.mConvertMicros;
+            convertedFrames = other.mConvertedFrames;
+            presentedFrames = other.mPresentedFrames;
+            droppedFrames = other.mDroppedFrames;
+            maxLatenessMillis = other.mMaxLatenessMillis;
+            histogram = other.mLatenessHistogram.clone();
+        }
+        synchronized (this) {
+            long total = mConvertedFrames + convertedFrames;
+            if (total > 0) {
+                mDemuxMicros = (mDemuxMicros * mConvertedFrames + demuxMicros * convertedFrames) / total;
+                mDecodeMicros = (mDecodeMicros * mConvertedFrames + decodeMicros * convertedFrames) / total;
+                mConvertMicros = (mConvertMicros * mConvertedFrames + convertMicros * convertedFrames) / total;
+            }
+            mConvertedFrames = total;
+            mPresentedFrames += presentedFrames;
+            mDroppedFrames += droppedFrames;
+            mMaxLatenessMillis = Math.max(mMaxLatenessMillis, maxLatenessMillis);
+            for (int i = 0; i < histogram.length; i++) {
+                mLatenessHistogram[i] += histogram[i];
+            }
+        }
+    }
+
+    public synchronized void reset() {
+        mDemuxMicros = 0;
+        mDecodeMicros = 0;
+        mConvertMicros = 0;
+        mConvertedFrames = 0;
+        mPresentedFrames = 0;
+        mDroppedFrames = 0;
+        mMaxLatenessMillis = 0;
+        for (int i = 0; i < mLatenessHistogram.length; i++) {
+            mLatenessHistogram[i] = 0;
+        }
+    }
+
+    /**
+     * @return    average cost of reading a frame from the container (in microseconds)
+     */
+    public synchronized float getDemuxMicros() {
+        return mDemuxMicros;
+    }
+
+    /**
+     * @return    average cost of decoding a frame, including frames which are decoded only as references of the following ones
+     *            (in microseconds)
+     */
+    public synchronized float getDecodeMicros() {
+        return mDecodeMicros;
+    }
+
+    /**
+     * @return    average cost of converting (scaling and color conversion) a frame into a bitmap (in microseconds)
+     */
+    public synchronized float getConvertMicros() {
+        return mConvertMicros;
+    }
+
+    public synchronized long getConvertedFrames() {
+        return mConvertedFrames;
+    }
+
+    public synchronized long getPresentedFrames() {
+        return mPresentedFrames;
+    }
+
+    /**
+     * @return    number of frames which are not shown because playback fell behind the wall clock (frames which are not shown
+     *            due to a {@link AnimatedImageContent#setMaxFrameRate(bo.pic.android.media.content.RepaintContext, float)
+     *            frame rate cap} are not counted)
+     */
+    public synchronized long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    /**
+     * @param percentile    a value within [0; 1], e.g. 0.99 for the 99th percentile
+     * @return              presentation lateness (in milliseconds) which the given fraction of presented frames doesn't exceed;
+     *                      zero if no frames are presented yet
+     */
+    public synchronized long getLatenessPercentile(float percentile) {
+        if (percentile < 0 || percentile > 1) {
+            throw new IllegalArgumentException("Percentile must be within [0; 1], but is " + percentile);
+        }
+        if (mPresentedFrames == 0) {
+            return 0;
+        }
+        long threshold = (long) Math.ceil(mPresentedFrames * (double) percentile);
+        long count = 0;
+        for (int i = 0; i < LATENESS_BUCKETS.length; i++) {
+            count += mLatenessHistogram[i];
+            if (count >= threshold) {
+                return Math.min(LATENESS_BUCKETS[i], mMaxLatenessMillis);
+            }
+        }
+        return mMaxLatenessMillis;
+    }
+
+    public synchronized long getMaxLatenessMillis() {
+        return mMaxLatenessMillis;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "demux %.0fus, decode %.0fus, convert %.0fus, frames: converted %d, presented %d, dropped %d, "
+                                        + "lateness: p50 %dms, p90 %dms, p99 %dms, max %dms",
+                             mDemuxMicros, mDecodeMicros, mConvertMicros, mConvertedFrames, mPresentedFrames, mDroppedFrames,
+                             getLatenessPercentile(0.5f), getLatenessPercentile(0.9f), getLatenessPercentile(0.99f),
+                             mMaxLatenessMillis);
+    }
+}
@@ -0,0 +1,256 @@
+package bo.pic.android.media.content.animation;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import bo.pic.android.media.Dimensions;
+import bo.pic.android.media.cache.CacheKey;
+import bo.pic.android.media.cache.DiskCache;
+import bo.pic.android.media.cache.ImageCacheUtils;
+import bo.pic.android.media.cache.MemoryCache;
+import bo.pic.android.media.content.MediaContent;
+import bo.pic.android.media.content.StaticImageContent;
+import bo.pic.android.media.util.BitmapUtil;
+import bo.pic.android.media.util.Logger;
+import bo.pic.android.media.util.ScaleMode;
+
+/**
+ * Extracts poster frames of animations which are already stored at the disk cache.
+ * <p/>
+ * An animation shows nothing until its decoder is opened and the first frame is decoded, so a grid of animations flashes
+ * placeholders even for content which is on disk. This class {@link #extract(Collection, Dimensions, ScaleMode, long) extracts}
+ * a single frame of every given animation in parallel at display size and stores it as a {@link StaticImageContent} at the
+ * memory cache and as a small JPEG at the disk cache. {@link AnimatedImageContent#setPoster(Bitmap) Animations} and views
+ * show the poster immediately and switch to live playback as soon as the first frame is decoded.
+ * <p/>
+ * Posters at the memory cache have exactly the requested dimensions (transparent bars are added for {@link ScaleMode#FIT}), so
+ * they can be drawn as is. Their bitmaps are shared and must not be modified or {@link bo.pic.android.media.bitmap.BitmapPool pooled}
+ * (see {@link StaticImageContent#isBitmapShared()}).
+ * <p/>
+ * Thread-safe.
+ */
+public class PosterFrameExtractor {
+
+    /** Frame offset of the animation's first frame */
+    public static final long FIRST_FRAME = 0;
+
+    private static final String POSTER_KEY_SEPARATOR = "#poster-";
+    private static final String SIZE_SEPARATOR       = "x";
+    private static final int    JPEG_QUALITY         = 85;
+
+    @Nonnull private final MemoryCache<CacheKey<String>, MediaContent> mMemoryCache;
+    @Nonnull private final DiskCache<CacheKey<String>>                 mDiskCache;
+    @Nonnull private final Executor                                    mExecutor;
+
+    /** Disk cache keys of posters which are being extracted */
+    private final Set<CacheKey<String>> mInFlight = Collections.newSetFromMap(new ConcurrentHashMap<CacheKey<String>, Boolean>());
+
+    /**
+     * @param memoryCache    memory cache to put extracted posters to
+     * @param diskCache      disk cache which holds animations and where encoded posters are put to
+     * @param executor       executor to extract posters at; posters are extracted in parallel if it has several threads
+     */
+    public PosterFrameExtractor(@Nonnull MemoryCache<CacheKey<String>, MediaContent> memoryCache,
+                                @Nonnull DiskCache<CacheKey<String>> diskCache,
+                                @Nonnull Executor executor)
+    {
+        mMemoryCache = memoryCache;
+        mDiskCache = diskCache;
+        mExecutor = executor;
+    }
+
+    /**
+     * Schedules poster extraction for the given animations. Animations which are not stored at the disk cache yet and the ones
+     * which already have posters of the given dimensions are skipped.
+     *
+     * @param keys           disk cache keys of animations
+     * @param dimensions     display size of the posters
+     * @param scaleMode      scale mode the animations are shown with
+     * @param frameOffset    offset of the frame to use (in milliseconds since the animation's beginning), e.g. {@link #FIRST_FRAME}
+     */
+    public void extract(@Nonnull Collection<CacheKey<String>> keys,
+                        @Nonnull final Dimensions dimensions,
+                        @Nonnull final ScaleMode scaleMode,
+                        final long frameOffset)
+    {
+        if (dimensions.getWidth() <= 0 || dimensions.getHeight() <= 0) {
+            return;
+        }
+        for (final CacheKey<String> key : keys) {
+            final CacheKey<String> posterKey = getPosterKey(key, dimensions);
+            if (mMemoryCache.get(getPosterMemoryKey(posterKey, dimensions)) != null || !mInFlight.add(posterKey)) {
+                continue;
+            }
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (getPoster(key, dimensions) == null) {
+                            extract(key, posterKey, dimensions, scaleMode, frameOffset);
+                        }
+                    } catch (Throwable e) {
+                        Logger.w(PosterFrameExtractor.class, "Can't extract poster of %s", e, key);
+                    } finally {
+                        mInFlight.remove(posterKey);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Returns previously extracted poster of the given animation. Posters which are found at the disk cache only are decoded
+     * and put to the memory cache, so the method is expected to be called from a background thread.
+     *
+     * @param key           disk cache key of the animation
+     * @param dimensions    display size of the poster
+     * @return              the animation's poster if any; <code>null</code> otherwise
+     */
+    @Nullable
+    public StaticImageContent getPoster(@Nonnull CacheKey<String> key, @Nonnull Dimensions dimensions) {
+        StaticImageContent poster = getCachedPoster(key, dimensions);
+        if (poster != null) {
+            return poster;
+        }
+        CacheKey<String> posterKey = getPosterKey(key, dimensions);
+        byte[] data = mDiskCache.get(posterKey);
+        if (data == null) {
+            return null;
+        }
+        Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
+        if (bitmap == null) {
+            mDiskCache.remove(posterKey);
+            return null;
+        }
+        return putToMemoryCache(posterKey, dimensions, bitmap);
+    }
+
+    /**
+     * Same as {@link #getPoster(CacheKey, Dimensions)} but doesn't touch the disk cache, i.e. is cheap enough for the main thread.
+     */
+    @Nullable
+    public StaticImageContent getCachedPoster(@Nonnull CacheKey<String> key, @Nonnull Dimensions dimensions) {
+        MediaContent content = mMemoryCache.get(getPosterMemoryKey(getPosterKey(key, dimensions), dimensions));
+        return content instanceof StaticImageContent ? (StaticImageContent) content : null;
+    }
+
+    private void extract(@Nonnull CacheKey<String> key,
+                         @Nonnull CacheKey<String> posterKey,
+                         @Nonnull Dimensions dimensions,
+                         @Nonnull ScaleMode scaleMode,
+                         long frameOffset)
+    {
+        File file = mDiskCache.getFile(key);
+        if (!file.isFile()) {
+            return;
+        }
+        Bitmap frame = decodeFrame(file, dimensions, scaleMode, frameOffset);
+        if (frame == null) {
+            return;
+        }
+        // Only the visible part of the frame is stored.
+        Bitmap scaled = BitmapUtil.createScaledBitmap(frame, dimensions.getWidth(), dimensions.getHeight(), scaleMode);
+        if (scaled != frame) {
+            frame.recycle();
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        if (scaled.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, output)) {
+            mDiskCache.put(posterKey, output.toByteArray());
+        }
+        putToMemoryCache(posterKey, dimensions, scaled);
+        Logger.d(PosterFrameExtractor.class, "Extracted poster of %s at %s", key, dimensions);
+    }
+
+    /**
+     * @return    the requested frame scaled to cover ({@link ScaleMode#CROP}) or to fit into ({@link ScaleMode#FIT}) the given
+     *            dimensions (or smaller if the animation is smaller); <code>null</code> if the animation can't be decoded
+     */
+    @Nullable
+    private static Bitmap decodeFrame(@Nonnull File file, @Nonnull Dimensions dimensions, @Nonnull ScaleMode scaleMode, long frameOffset) {
+        AnimationDecoder decoder = new AnimationDecoder(file, new AnimationDecoder.Callback() {
+            @Override
+            public void onDecoderReset() {
+            }
+        });
+        try {
+            Dimensions video = decoder.init();
+            if (video == null) {
+                return null;
+            }
+            decoder.setQuality(DecodeQuality.choose(video, dimensions.getWidth(), dimensions.getHeight(), true));
+            float wr = (float) dimensions.getWidth() / video.getWidth();
+            float hr = (float) dimensions.getHeight() / video.getHeight();
+            float scale = Math.min(1, scaleMode == ScaleMode.CROP ? Math.max(wr, hr) : Math.min(wr, hr));
+            int width = Math.max(1, Math.round(video.getWidth() * scale));
+            int height = Math.max(1, Math.round(video.getHeight() * scale));
+            Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            if (frameOffset > FIRST_FRAME) {
+                decoder.skipUntil(frameOffset);
+            }
+            if (decoder.fillNextFrame(bitmap) < 0) {
+                bitmap.recycle();
+                return null;
+            }
+            return bitmap;
+        } finally {
+            if (!decoder.isReleased()) {
+                decoder.release();
+            }
+        }
+    }
+
+    @Nonnull
+    private StaticImageContent putToMemoryCache(@Nonnull CacheKey<String> posterKey, @Nonnull Dimensions dimensions, @Nonnull Bitmap bitmap) {
+        Bitmap poster = toDisplaySize(bitmap, dimensions);
+        StaticImageContent content = new StaticImageContent(posterKey.key, poster, true);
+        mMemoryCache.put(getPosterMemoryKey(posterKey, dimensions), content);
+        content.incrementUsageCounter();
+        return content;
+    }
+
+    /**
+     * Centers the given bitmap within a transparent bitmap of the given dimensions, if it's smaller.
+     */
+    @Nonnull
+    private static Bitmap toDisplaySize(@Nonnull Bitmap bitmap, @Nonnull Dimensions dimensions) {
+        int width = dimensions.getWidth();
+        int height = dimensions.getHeight();
+        if (bitmap.getWidth() == width && bitmap.getHeight() == height) {
+            return bitmap;
+        }
+        float scale = Math.min((float) width / bitmap.getWidth(), (float) height / bitmap.getHeight());
+        int scaledWidth = Math.round(bitmap.getWidth() * scale);
+        int scaledHeight = Math.round(bitmap.getHeight() * scale);
+        int left = (width - scaledWidth) / 2;
+        int top = (height - scaledHeight) / 2;
+        Bitmap result = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(result);
+        canvas.drawBitmap(bitmap, null, new Rect(left, top, left + scaledWidth, top + scaledHeight), new Paint(Paint.FILTER_BITMAP_FLAG));
+        bitmap.recycle();
+        return result;
+    }
+
+    @Nonnull
+    private static CacheKey<String> getPosterKey(@Nonnull CacheKey<String> key, @Nonnull Dimensions dimensions) {
+        return CacheKey.of(key.key + POSTER_KEY_SEPARATOR + dimensions.getWidth() + SIZE_SEPARATOR + dimensions.getHeight(), key.type);
+    }
+
+    @Nonnull
+    private static CacheKey<String> getPosterMemoryKey(@Nonnull CacheKey<String> posterKey, @Nonnull Dimensions dimensions) {
+        return ImageCacheUtils.getMemoryCacheKey(posterKey.key, posterKey.type, dimensions);
+    }
+}
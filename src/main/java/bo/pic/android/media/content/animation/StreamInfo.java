@@ -0,0 +1,167 @@
+package bo.pic.android.media.content.animation;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import bo.pic.android.media.Dimensions;
+import bo.pic.android.media.util.FileUtil;
+import bo.pic.android.media.util.IoUtil;
+import bo.pic.android.media.util.Logger;
+
+/**
+ * Video stream parameters of an animation file recorded at its first decoder {@link AnimationDecoder#init() initialization}.
+ * <p/>
+ * The info is persisted in a small sidecar file next to the animation file (only for disk cache entries, which invalidate it
+ * when they are replaced or removed) and allows the following:
+ * <ul>
+ *      <li>
+ *          subsequent decoder initializations seed codec parameters from it and use minimal container probing instead of
+ *          reading and decoding frames just to find out what's already known;
+ *      </li>
+ *      <li>animation {@link AnimationDecoder#peekDimensions() dimensions} are available without opening the codec;</li>
+ * </ul>
+ */
+public class StreamInfo {
+
+    /** Indices at the native stream info array, keep in sync with STREAM_INFO_* at decoder_core.h */
+    private static final int CODEC_ID       = 0;
+    private static final int WIDTH          = 1;
+    private static final int HEIGHT         = 2;
+    private static final int PIXEL_FORMAT   = 3;
+    private static final int FRAME_COUNT    = 4;
+    private static final int DURATION       = 5;
+    private static final int SIZE           = 6;
+
+    /** Version 1 also recorded keyframe positions, they were never used (the container's own index is used for seeking) */
+    private static final int  FORMAT_VERSION = 2;
+    private static final int  MAGIC          = 0x53494e46; // 'SINF'
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    @Nonnull private final long[] mData;
+
+    private StreamInfo(@Nonnull long[] data) {
+        mData = data;
+    }
+
+    /**
+     * @param data    stream info array which is returned by the native decoder
+     * @return        parsed stream info; <code>null</code> if the data is malformed
+     */
+    @Nullable
+    static StreamInfo of(@Nullable long[] data) {
+        if (data == null || data.length != SIZE) {
+            return null;
+        }
+        return new StreamInfo(data);
+    }
+
+    /**
+     * @param file    a {@link bo.pic.android.media.cache.BaseDiskCache#getSidecarFile(File) sidecar file}, if any
+     * @return        stream info stored at the given file; <code>null</code> if there is no such file or it's corrupted
+     */
+    @Nullable
+    public static StreamInfo read(@Nullable File file) {
+        if (file == null || !file.isFile()) {
+            return null;
+        }
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(IoUtil.toBufferedInputStream(new FileInputStream(file)));
+            if (input.readInt() != MAGIC || input.readInt() != FORMAT_VERSION) {
+                return null;
+            }
+            int length = input.readInt();
+            if (length != SIZE) {
+                return null;
+            }
+            long[] data = new long[length];
+            for (int i = 0; i < length; i++) {
+                data[i] = input.readLong();
+            }
+            return of(data);
+        } catch (IOException e) {
+            Logger.w(StreamInfo.class, "Unable to read stream info from [%s]", e, file.getAbsolutePath());
+            return null;
+        } finally {
+            IoUtil.closeQuietly(input);
+        }
+    }
+
+    /**
+     * Stores the current info at the given file atomically, i.e. concurrent {@link #read(File) readers} never see partially
+     * written data. Every writer uses its own temp file, so concurrent writers (e.g. decoders of the same file which are opened
+     * simultaneously) don't interfere either.
+     */
+    public void write(@Nonnull File file) throws IOException {
+        File tempFile = File.createTempFile(file.getName(), TEMP_FILE_SUFFIX, file.getParentFile());
+        try {
+            DataOutputStream output = new DataOutputStream(IoUtil.toBufferedOutputStream(new FileOutputStream(tempFile)));
+            try {
+                output.writeInt(MAGIC);
+                output.writeInt(FORMAT_VERSION);
+                output.writeInt(mData.length);
+                for (long value : mData) {
+                    output.writeLong(value);
+                }
+            } finally {
+                IoUtil.closeQuietly(output);
+            }
+            FileUtil.move(tempFile, file);
+        } finally {
+            if (tempFile.exists() && !tempFile.delete()) {
+                Logger.w(StreamInfo.class, "Unable to delete [%s]", tempFile.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * @return    the info in the native decoder format
+     */
+    @Nonnull
+    long[] toArray() {
+        return mData;
+    }
+
+    public int getCodecId() {
+        return (int) mData[CODEC_ID];
+    }
+
+    /**
+     * @return    full (not {@link DecodeQuality reduced}) dimensions of the animation
+     */
+    @Nonnull
+    public Dimensions getDimensions() {
+        return new Dimensions((int) mData[WIDTH], (int) mData[HEIGHT]);
+    }
+
+    public int getPixelFormat() {
+        return (int) mData[PIXEL_FORMAT];
+    }
+
+    /**
+     * @return    number of frames; zero if it's unknown
+     */
+    public long getFrameCount() {
+        return mData[FRAME_COUNT];
+    }
+
+    /**
+     * @return    the animation's duration in milliseconds; negative value if it's unknown
+     */
+    public long getDurationMillis() {
+        return mData[DURATION];
+    }
+
+    @Override
+    public String toString() {
+        return getDimensions() + ", codec: " + getCodecId() + ", frames: " + getFrameCount() + ", duration: " + getDurationMillis()
+               + " ms";
+    }
+}
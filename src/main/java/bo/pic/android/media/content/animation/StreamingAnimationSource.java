@@ -0,0 +1,240 @@
+package bo.pic.android.media.content.animation;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import bo.pic.android.media.cache.BaseDiskCache;
+import bo.pic.android.media.util.IoUtil;
+import bo.pic.android.media.util.Logger;
+
+/**
+ * {@link AnimationSource} for an MP4 animation which is still being downloaded.
+ * <p/>
+ * The download {@link #append(byte[], int, int) writes} into a growing file and the native decoder reads from it through a blocking
+ * AVIO source which waits for more bytes. The source tracks top-level MP4 boxes in order to tell when the animation becomes
+ * {@link #isPlayable() playable}, i.e. when the <code>moov</code> atom and the first GOP are available.
+ * <p/>
+ * Thread-safe. The download is expected to be performed from a single thread, though.
+ */
+public class StreamingAnimationSource extends AnimationSource {
+
+    static final int STREAM_IN_PROGRESS = 0;
+    static final int STREAM_COMPLETE    = 1;
+    static final int STREAM_ABORTED     = 2;
+
+    /**
+     * We don't parse sample tables, so the amount of media data enough to show the first GOP is an estimation. There is no harm
+     * if it's wrong - the decoder just blocks until the data arrives.
+     */
+    private static final long MIN_MEDIA_DATA_TO_PLAY = 64 * 1024;
+
+    private static final int BOX_HEADER_SIZE       = 8;
+    private static final int LARGE_BOX_HEADER_SIZE = 16;
+
+    @Nonnull private final File mPartialFile;
+    @Nonnull private final File mCompleteFile;
+
+    private final byte[] mBoxHeader = new byte[LARGE_BOX_HEADER_SIZE];
+
+    @Nullable private FileOutputStream mOutput;
+
+    private long    mStreamHandle;
+    private long    mWritten;
+    private long    mNextBoxOffset;
+    private int     mBoxHeaderLength;
+    private long    mMoovEnd   = -1;
+    private long    mMediaDataStart = -1;
+    private int     mState     = STREAM_IN_PROGRESS;
+    private boolean mPlayable;
+
+    /**
+     * @param partialFile     a file to write the data being downloaded to
+     * @param completeFile    a file which holds the whole data when the download is complete
+     * @param expectedSize    expected data size (if known); negative value otherwise
+     * @throws IOException    if the partial file can't be created
+     */
+    public StreamingAnimationSource(@Nonnull File partialFile, @Nonnull File completeFile, long expectedSize) throws IOException {
+        mPartialFile = partialFile;
+        mCompleteFile = completeFile;
+        mOutput = new FileOutputStream(partialFile, false);
+        mStreamHandle = AnimationDecoder.nativeCreateStream(expectedSize);
+    }
+
+    /**
+     * Appends newly downloaded data to the current source.
+     *
+     * @return    <code>true</code> if the current source has become {@link #isPlayable() playable} during this call
+     */
+    public synchronized boolean append(@Nonnull byte[] data, int offset, int length) {
+        if (mState != STREAM_IN_PROGRESS || mOutput == null) {
+            return false;
+        }
+        try {
+            mOutput.write(data, offset, length);
+        } catch (IOException e) {
+            Logger.w(StreamingAnimationSource.class, "Can't write downloaded data to %s", e, mPartialFile);
+            abort();
+            return false;
+        }
+        long chunkStart = mWritten;
+        mWritten += length;
+        AnimationDecoder.nativeUpdateStream(mStreamHandle, mWritten, STREAM_IN_PROGRESS);
+        scanBoxes(data, offset, length, chunkStart);
+        return updatePlayable();
+    }
+
+    /**
+     * Notifies that the whole data is downloaded and {@link #mCompleteFile stored} (if possible).
+     *
+     * @return    <code>true</code> if the current source has become {@link #isPlayable() playable} during this call
+     */
+    public synchronized boolean complete() {
+        if (mState != STREAM_IN_PROGRESS) {
+            return false;
+        }
+        closeOutput();
+        mState = STREAM_COMPLETE;
+        finishStream();
+        if (mCompleteFile.isFile()) {
+            // Decoders which are already initialized keep reading from their (duplicated) descriptors.
+            deletePartialFile();
+        }
+        return updatePlayable();
+    }
+
+    /**
+     * Notifies that the download is failed or cancelled. All blocked reads fail then.
+     */
+    public synchronized void abort() {
+        if (mState != STREAM_IN_PROGRESS) {
+            return;
+        }
+        closeOutput();
+        mState = STREAM_ABORTED;
+        finishStream();
+        deletePartialFile();
+    }
+
+    /**
+     * @return    <code>true</code> if there is enough data to start animation playback
+     */
+    public synchronized boolean isPlayable() {
+        return mPlayable;
+    }
+
+    @Override
+    long open() throws Exception {
+        long streamHandle;
+        FileInputStream input;
+        synchronized (this) {
+            if (mState == STREAM_COMPLETE) {
+                // The partial file is kept if the complete one can't be stored.
+                File file = mCompleteFile.isFile() ? mCompleteFile : mPartialFile;
+                return openFile(file);
+            }
+            if (mState == STREAM_ABORTED) {
+                throw new IOException("Download of " + mCompleteFile + " is aborted");
+            }
+            input = new FileInputStream(mPartialFile);
+            streamHandle = mStreamHandle;
+            AnimationDecoder.nativeRetainStream(streamHandle);
+        }
+        try {
+            // The call blocks until the header is downloaded, that's why it's performed outside the lock.
+            return AnimationDecoder.nativeInitFromStream(input.getFD(), streamHandle);
+        } finally {
+            IoUtil.closeQuietly(input);
+        }
+    }
+
+    @Override
+    synchronized boolean isAvailable() {
+        return mState != STREAM_ABORTED;
+    }
+
+    @Nullable
+    @Override
+    synchronized File getStreamInfoFile() {
+        // Only the complete file is a cache entry, the partial one is removed as soon as the download is finished.
+        return mState == STREAM_COMPLETE && mCompleteFile.isFile() ? BaseDiskCache.getSidecarFile(mCompleteFile) : null;
+    }
+
+    private void scanBoxes(@Nonnull byte[] data, int offset, int length, long chunkStart) {
+        long chunkEnd = chunkStart + length;
+        while (true) {
+            int headerSize = mBoxHeaderLength >= BOX_HEADER_SIZE && readInt(mBoxHeader, 0) == 1 ? LARGE_BOX_HEADER_SIZE : BOX_HEADER_SIZE;
+            if (mBoxHeaderLength < headerSize) {
+                long position = mNextBoxOffset + mBoxHeaderLength;
+                if (position >= chunkEnd) {
+                    return;
+                }
+                int count = (int) Math.min(headerSize - mBoxHeaderLength, chunkEnd - position);
+                System.arraycopy(data, offset + (int) (position - chunkStart), mBoxHeader, mBoxHeaderLength, count);
+                mBoxHeaderLength += count;
+                continue;
+            }
+            long boxStart = mNextBoxOffset;
+            long boxSize = readInt(mBoxHeader, 0) & 0xFFFFFFFFL;
+            if (boxSize == 1) {
+                boxSize = ((long) readInt(mBoxHeader, 8) << 32) | (readInt(mBoxHeader, 12) & 0xFFFFFFFFL);
+            }
+            String type = new String(mBoxHeader, 4, 4);
+            if ("moov".equals(type)) {
+                mMoovEnd = boxSize == 0 ? Long.MAX_VALUE : boxStart + boxSize;
+            } else if ("mdat".equals(type) && mMediaDataStart < 0) {
+                mMediaDataStart = boxStart + headerSize;
+            }
+            mBoxHeaderLength = 0;
+            if (boxSize < headerSize) {
+                // Either 'up to the end of file' box or broken data, there is nothing to scan further.
+                mNextBoxOffset = Long.MAX_VALUE;
+                return;
+            }
+            mNextBoxOffset = boxStart + boxSize;
+        }
+    }
+
+    private boolean updatePlayable() {
+        if (mPlayable) {
+            return false;
+        }
+        if (mState == STREAM_COMPLETE) {
+            mPlayable = true;
+        } else if (mState == STREAM_IN_PROGRESS && mMoovEnd >= 0 && mWritten >= mMoovEnd && mMediaDataStart >= 0) {
+            // Media data located before the 'moov' atom is already downloaded at this point.
+            mPlayable = mMediaDataStart < mMoovEnd || mWritten >= mMediaDataStart + MIN_MEDIA_DATA_TO_PLAY;
+        }
+        return mPlayable;
+    }
+
+    private void finishStream() {
+        AnimationDecoder.nativeUpdateStream(mStreamHandle, mWritten, mState);
+        AnimationDecoder.nativeReleaseStream(mStreamHandle);
+        mStreamHandle = 0;
+    }
+
+    private void closeOutput() {
+        IoUtil.closeQuietly(mOutput);
+        mOutput = null;
+    }
+
+    private void deletePartialFile() {
+        if (mPartialFile.isFile() && !mPartialFile.delete()) {
+            Logger.w(StreamingAnimationSource.class, "Unable to delete partially downloaded file [%s]", mPartialFile);
+        }
+    }
+
+    private static int readInt(@Nonnull byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16) | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+    }
+
+    @Override
+    public String toString() {
+        return "stream " + mPartialFile + ", written: " + mWritten + ", state: " + mState;
+    }
+}
@@ -1,6 +1,8 @@
 package bo.pic.android.media.download;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
@@ -12,12 +14,17 @@ import javax.annotation.Nullable;
 import bo.pic.android.media.util.IoUtil;
 import bo.pic.android.media.util.Logger;
 import bo.pic.android.media.util.ProcessingCallback;
+import bo.pic.repackaged.org.apache.http.Header;
 import bo.pic.repackaged.org.apache.http.HttpEntity;
 import bo.pic.repackaged.org.apache.http.HttpResponse;
 import bo.pic.repackaged.org.apache.http.HttpStatus;
 import bo.pic.repackaged.org.apache.http.client.methods.HttpGet;
 import bo.pic.repackaged.org.apache.http.concurrent.FutureCallback;
 import bo.pic.repackaged.org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import bo.pic.repackaged.org.apache.http.nio.IOControl;
+import bo.pic.repackaged.org.apache.http.nio.client.methods.AsyncByteConsumer;
+import bo.pic.repackaged.org.apache.http.nio.client.methods.HttpAsyncMethods;
+import bo.pic.repackaged.org.apache.http.protocol.HttpContext;
 import org.apache.http.StatusLine;
 
 public class HttpAsyncClientImageDownloader implements ImageDownloader {
@@ -64,6 +71,9 @@ public class HttpAsyncClientImageDownloader implements ImageDownloader {
             callback.onFail(null);
             return NO_OP;
         }
+        if (callback instanceof ProgressCallback) {
+            return downloadWithProgress(imageUri, (ProgressCallback) callback);
+        }
         return mClient.execute(new HttpGet(imageUri), new FutureCallback<HttpResponse>() {
             @Override
             public void completed(HttpResponse result) {
@@ -94,4 +104,89 @@ public class HttpAsyncClientImageDownloader implements ImageDownloader {
             }
         });
     }
+
+    /**
+     * Default {@link HttpAsyncClientImageDownloader#download(String, ProcessingCallback) download} buffers the whole response before
+     * the callback is notified. This method streams response body chunks to the given callback as soon as they arrive.
+     */
+    @Nonnull
+    private Future<?> downloadWithProgress(@Nonnull final String imageUri, @Nonnull final ProgressCallback callback) {
+        return mClient.execute(HttpAsyncMethods.create(new HttpGet(imageUri)), new ProgressConsumer(callback), new FutureCallback<byte[]>() {
+            @Override
+            public void completed(@Nullable byte[] result) {
+                if (result != null) {
+                    callback.onSuccess(result);
+                }
+            }
+
+            @Override
+            public void failed(Exception ex) {
+                callback.onFail(ex);
+            }
+
+            @Override
+            public void cancelled() {
+                Logger.d(HttpAsyncClientImageDownloader.class, "Cancelled a request do download data from %s", imageUri);
+            }
+        });
+    }
+
+    private static class ProgressConsumer extends AsyncByteConsumer<byte[]> {
+
+        @Nonnull private final ProgressCallback mCallback;
+
+        @Nullable private ByteArrayOutputStream mData;
+        @Nullable private byte[]                mChunk;
+
+        ProgressConsumer(@Nonnull ProgressCallback callback) {
+            mCallback = callback;
+        }
+
+        @Override
+        protected void onResponseReceived(HttpResponse response) {
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode != HttpStatus.SC_OK) {
+                Logger.w(HttpAsyncClientImageDownloader.class, "Unexpected status code received %s", statusCode);
+                return;
+            }
+            long contentLength = -1;
+            Header header = response.getFirstHeader("Content-Length");
+            if (header != null) {
+                try {
+                    contentLength = Long.parseLong(header.getValue());
+                } catch (NumberFormatException ignore) {
+                    // Unknown content length.
+                }
+            }
+            mData = new ByteArrayOutputStream(contentLength > 0 && contentLength < Integer.MAX_VALUE ? (int) contentLength : 32);
+            mCallback.onStart(contentLength);
+        }
+
+        @Override
+        protected void onByteReceived(ByteBuffer buffer, IOControl ioControl) throws IOException {
+            if (mData == null) {
+                return;
+            }
+            int length = buffer.remaining();
+            if (mChunk == null || mChunk.length < length) {
+                mChunk = new byte[length];
+            }
+            buffer.get(mChunk, 0, length);
+            mData.write(mChunk, 0, length);
+            mCallback.onProgress(mChunk, 0, length);
+        }
+
+        @Nullable
+        @Override
+        protected byte[] buildResult(HttpContext context) {
+            return mData == null ? null : mData.toByteArray();
+        }
+
+        @Override
+        protected void releaseResources() {
+            super.releaseResources();
+            mData = null;
+            mChunk = null;
+        }
+    }
 }
@@ -12,6 +12,8 @@ public interface ImageDownloader {
      * Allows to trigger downloading from the given uri notifying given callback about the result.
      * <p/>
      * <b>Note:</b> the processing is expected to be asynchronous, i.e. calling thread is expected to be freed immediately.
+     * <p/>
+     * Implementations are encouraged to report intermediate progress if given callback is a {@link ProgressCallback}.
      *
      * @param imageUri    target uri to download from
      * @param callback    callback to notify about download result
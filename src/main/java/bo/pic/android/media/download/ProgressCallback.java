@@ -0,0 +1,33 @@
+package bo.pic.android.media.download;
+
+import javax.annotation.Nonnull;
+
+import bo.pic.android.media.util.ProcessingCallback;
+
+/**
+ * {@link ProcessingCallback} which is also interested in intermediate download progress, e.g. in order to start animation playback
+ * before the whole data is available.
+ * <p/>
+ * {@link ImageDownloader Downloaders} which are not able to report progress just call {@link #onSuccess(Object)} or
+ * {@link #onFail(Throwable)} as usual.
+ */
+public interface ProgressCallback extends ProcessingCallback<byte[]> {
+
+    /**
+     * Notifies that the download is started. Is called before any {@link #onProgress(byte[], int, int)} call.
+     *
+     * @param contentLength    expected data length if known; negative value otherwise
+     */
+    void onStart(long contentLength);
+
+    /**
+     * Notifies about next downloaded data chunk. The chunks are reported sequentially from the same thread.
+     * <p/>
+     * <b>Note:</b> the data is still passed to {@link #onSuccess(Object)} when the download is complete.
+     *
+     * @param data      data holder, its content must not be modified
+     * @param offset    chunk offset within the data holder
+     * @param length    chunk length
+     */
+    void onProgress(@Nonnull byte[] data, int offset, int length);
+}
@@ -1,5 +1,6 @@
 package bo.pic.android.media.util;
 
+import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
@@ -7,6 +8,7 @@ import android.graphics.Paint;
 import android.graphics.Rect;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 public class BitmapUtil {
 
@@ -29,8 +31,15 @@ public class BitmapUtil {
             int actualWidth = decodeOptions.outWidth;
             int actualHeight = decodeOptions.outHeight;
 
-            // Decode to the nearest power of two scaling factor.
             decodeOptions.inJustDecodeBounds = false;
+            if (canScaleWhileDecoding(actualWidth, actualHeight, desiredWidth, desiredHeight, decodeOptions)) {
+                bitmap = decodeScaled(data, actualWidth, actualHeight, desiredWidth, desiredHeight, scaleMode, decodeOptions, config);
+                if (bitmap != null) {
+                    return bitmap;
+                }
+            }
+
+            // Decode to the nearest power of two scaling factor.
             decodeOptions.inSampleSize = calculateSampleSize(actualWidth, actualHeight, desiredWidth, desiredHeight, scaleMode);
             bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, decodeOptions);
 
@@ -43,6 +52,96 @@ public class BitmapUtil {
         return bitmap;
     }
 
+    /**
+     * Decoder scales a bitmap by <code>inTargetDensity / inDensity</code> on its own, but it can't do that when decoding into a
+     * reused bitmap before KitKat.
+     */
+    private static boolean canScaleWhileDecoding(int actualWidth,
+                                                 int actualHeight,
+                                                 int desiredWidth,
+                                                 int desiredHeight,
+                                                 @Nonnull BitmapFactory.Options decodeOptions)
+    {
+        return actualWidth > 0 && actualHeight > 0 && desiredWidth > 0 && desiredHeight > 0
+               && (decodeOptions.inBitmap == null || DeviceUtil.hasKitKat());
+    }
+
+    /**
+     * Decodes a bitmap of the final size in a single pass: the decoder down-samples it by the power of two sample size and then
+     * scales the rest of the way using density scaling. A CROP result is cut out of the scaled bitmap without resampling.
+     *
+     * @return    a bitmap of the desired size; <code>null</code> if the data can't be decoded this way
+     */
+    @Nullable
+    private static Bitmap decodeScaled(@Nonnull byte[] data,
+                                       int actualWidth,
+                                       int actualHeight,
+                                       int desiredWidth,
+                                       int desiredHeight,
+                                       @Nonnull ScaleMode scaleMode,
+                                       @Nonnull BitmapFactory.Options decodeOptions,
+                                       @Nonnull Bitmap.Config config)
+    {
+        float wr = (float) desiredWidth / actualWidth;
+        float hr = (float) desiredHeight / actualHeight;
+        float scale = scaleMode == ScaleMode.CROP ? Math.max(wr, hr) : Math.min(wr, hr);
+        // The side which defines the scale comes out exact, the other one is scaled proportionally.
+        boolean byWidth = scale == wr;
+
+        int sampleSize = 1;
+        while (sampleSize * 2 * scale <= 1) {
+            sampleSize *= 2;
+        }
+        decodeOptions.inSampleSize = sampleSize;
+        decodeOptions.inScaled = true;
+        decodeOptions.inDensity = (byWidth ? actualWidth : actualHeight) / sampleSize;
+        decodeOptions.inTargetDensity = byWidth ? desiredWidth : desiredHeight;
+        decodeOptions.inPreferredConfig = config;
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, decodeOptions);
+        } finally {
+            decodeOptions.inScaled = false;
+            decodeOptions.inDensity = 0;
+            decodeOptions.inTargetDensity = 0;
+        }
+        if (bitmap == null) {
+            return null;
+        }
+        // The decoded bitmap is marked with the target density, so it would be scaled once more on drawing.
+        bitmap.setDensity(Resources.getSystem().getDisplayMetrics().densityDpi);
+
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        switch (scaleMode) {
+            case CROP:
+                if (width >= desiredWidth && height >= desiredHeight) {
+                    if (width == desiredWidth && height == desiredHeight) {
+                        return bitmap;
+                    }
+                    Bitmap cropped = Bitmap.createBitmap(bitmap,
+                                                         (width - desiredWidth) / 2,
+                                                         (height - desiredHeight) / 2,
+                                                         desiredWidth,
+                                                         desiredHeight);
+                    bitmap.recycle();
+                    return cropped;
+                }
+                break;
+            case FIT:
+                if (width <= desiredWidth && height <= desiredHeight && (width == desiredWidth || height == desiredHeight)) {
+                    return bitmap;
+                }
+                break;
+        }
+        // The decoder rounded the sampled size differently, the bitmap is off by a pixel or so - rescale it rather than decode again.
+        Bitmap result = createScaledBitmap(bitmap, desiredWidth, desiredHeight, scaleMode);
+        if (result != bitmap) {
+            bitmap.recycle();
+        }
+        return result;
+    }
+
     /**
      * Calculates down-sampling factor as the power of two (sample size) given the dimensions of a source, the desired dimensions and a
      * {@link ScaleMode scale mode}. This sample size is used at {@link android.graphics.BitmapFactory.Options bitmap options} during decoding bitmap.
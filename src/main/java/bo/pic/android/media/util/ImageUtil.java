@@ -16,6 +16,40 @@ public class ImageUtil {
                (data.length >= 8 && data[4] == 'f' && data[5] == 't' && data[6] == 'y' && data[7] == 'p');
     }
 
+    /**
+     * Checks top-level MP4 boxes of the given data.
+     *
+     * @param data    MP4 data
+     * @return        <code>true</code> if the <code>moov</code> atom is located before the media data (or there is no media data),
+     *                i.e. the animation can be played with a single sequential read;
+     *                <code>false</code> otherwise
+     */
+    public static boolean isFaststartMp4(@Nonnull byte[] data) {
+        long offset = 0;
+        while (offset + 8 <= data.length) {
+            int i = (int) offset;
+            long size = readUnsignedInt(data, i);
+            if (data[i + 4] == 'm' && data[i + 5] == 'o' && data[i + 6] == 'o' && data[i + 7] == 'v') {
+                return true;
+            }
+            if (data[i + 4] == 'm' && data[i + 5] == 'd' && data[i + 6] == 'a' && data[i + 7] == 't') {
+                return false;
+            }
+            if (size == 1 && offset + 16 <= data.length) {
+                size = (readUnsignedInt(data, i + 8) << 32) | readUnsignedInt(data, i + 12);
+            }
+            if (size < 8) {
+                break;
+            }
+            offset += size;
+        }
+        return true;
+    }
+
+    private static long readUnsignedInt(@Nonnull byte[] data, int offset) {
+        return ((data[offset] & 0xFFL) << 24) | ((data[offset + 1] & 0xFFL) << 16) | ((data[offset + 2] & 0xFFL) << 8) | (data[offset + 3] & 0xFFL);
+    }
+
     @Nonnull
     public static Bitmap decodeBitmap(byte[] data,
                                       int desiredWidth,
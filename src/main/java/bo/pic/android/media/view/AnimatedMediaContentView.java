@@ -4,10 +4,9 @@ import android.content.Context;
 import android.graphics.Canvas;
 import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
-import android.os.Handler;
-import android.os.Looper;
 import android.util.AttributeSet;
 import android.view.View;
+import android.view.ViewTreeObserver;
 
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
@@ -17,6 +16,7 @@ import javax.annotation.Nullable;
 
 import bo.pic.android.media.content.MediaContent;
 import bo.pic.android.media.content.RepaintContext;
+import bo.pic.android.media.content.animation.AnimatedImageContent;
 import bo.pic.android.media.util.Key;
 import bo.pic.android.media.view.effect.Effect;
 import bo.pic.android.media.view.effect.FadeInEffect;
@@ -33,19 +33,69 @@ import bo.pic.android.media.view.effect.FadeInEffect;
  */
 public class AnimatedMediaContentView extends View implements MediaContentView, RepaintContext {
 
-    private static final Handler sHandler = new Handler(Looper.getMainLooper());
+    private final ConcurrentMap<Key<?>, ?> mAdditionalData = new ConcurrentHashMap<>();
 
-    private final Runnable mRedrawTask = new Runnable() {
+    /**
+     * Animation playback is {@link AnimationGovernor governed}, i.e. the content is started only when the governor allows that.
+     */
+    private final AnimationGovernor.Candidate mCandidate = new AnimationGovernor.Candidate() {
         @Override
-        public void run() {
-            invalidate();
+        public float getVisibleFraction() {
+            int area = getArea();
+            if (area <= 0 || !isShown() || !getLocalVisibleRect(mVisibleRect)) {
+                return 0;
+            }
+            return Math.min(1f, (float) (mVisibleRect.width() * mVisibleRect.height()) / area);
+        }
+
+        @Override
+        public int getArea() {
+            return getWidth() * getHeight();
+        }
+
+        @Override
+        public float getEstimatedCpuLoad() {
+            MediaContent content = mContent;
+            return content instanceof AnimatedImageContent ? ((AnimatedImageContent) content).getEstimatedCpuLoad() : -1;
+        }
+
+        @Override
+        public void setAnimationAllowed(boolean allowed) {
+            MediaContent content = mContent;
+            if (content == null || !mAnimationRequested) {
+                return;
+            }
+            if (allowed) {
+                content.startDrawingFor(AnimatedMediaContentView.this);
+            } else {
+                content.stopDrawingFor(AnimatedMediaContentView.this);
+                if (content instanceof AnimatedImageContent) {
+                    ((AnimatedImageContent) content).showStillFrame(AnimatedMediaContentView.this);
+                }
+            }
+        }
+
+        @Override
+        public void setFrameRateCap(float fps) {
+            MediaContent content = mContent;
+            if (content instanceof AnimatedImageContent) {
+                ((AnimatedImageContent) content).setMaxFrameRate(AnimatedMediaContentView.this, fps);
+            }
         }
     };
 
-    private final ConcurrentMap<Key<?>, ?> mAdditionalData = new ConcurrentHashMap<>();
+    private final ViewTreeObserver.OnScrollChangedListener mScrollListener = new ViewTreeObserver.OnScrollChangedListener() {
+        @Override
+        public void onScrollChanged() {
+            if (mAnimationRequested) {
+                AnimationGovernor.getInstance().onCandidateChanged(mCandidate);
+            }
+        }
+    };
 
     private Effect mEffect = new FadeInEffect();
     private Rect   mBounds = new Rect();
+    private Rect   mVisibleRect = new Rect();
 
     @Nullable private volatile Drawable     mPlaceholder;
     @Nullable private          MediaContent mContent;
@@ -54,6 +104,7 @@ public class AnimatedMediaContentView extends View implements MediaContentView,
 
     private boolean mAttachedToWindow;
     private boolean mPendingStartDrawing;
+    private boolean mAnimationRequested;
     private boolean mPaused;
 
     public AnimatedMediaContentView(Context context, AttributeSet attrs) {
@@ -73,16 +124,12 @@ public class AnimatedMediaContentView extends View implements MediaContentView,
     @Override
     public void setPlaceholder(@Nullable Drawable placeholder) {
         mPlaceholder = placeholder;
-        if (Looper.myLooper() == Looper.getMainLooper()) {
-            mRedrawTask.run();
-        } else {
-            sHandler.post(mRedrawTask);
-        }
+        RepaintDispatcher.getInstance().requestRepaint(this);
     }
 
     @Override
     public void repaint(@Nonnull MediaContent content) {
-        sHandler.postAtFrontOfQueue(mRedrawTask);
+        RepaintDispatcher.getInstance().requestRepaint(this);
     }
 
     @Override
@@ -92,6 +139,11 @@ public class AnimatedMediaContentView extends View implements MediaContentView,
             drawPlaceholder(canvas);
             return;
         }
+        if (content instanceof AnimatedImageContent) {
+            boolean fullyVisible = getLocalVisibleRect(mVisibleRect)
+                                   && mVisibleRect.width() == getWidth() && mVisibleRect.height() == getHeight();
+            ((AnimatedImageContent) content).setViewport(this, getWidth(), getHeight(), fullyVisible);
+        }
         drawEffect(canvas, content);
     }
 
@@ -123,6 +175,7 @@ public class AnimatedMediaContentView extends View implements MediaContentView,
         }
 
         mEffect.onContentChange(content);
+        cancelAnimationRequest();
         final MediaContent oldContent = mContent;
         if (oldContent != null) {
             oldContent.removeRepaintContext(this);
@@ -152,27 +205,39 @@ public class AnimatedMediaContentView extends View implements MediaContentView,
         mEffect = effect;
     }
 
+    /**
+     * @return    <code>true</code> if the animation is started (or waits for the {@link AnimationGovernor governor} permission)
+     */
     public boolean isDrawingInProgress() {
         MediaContent content = mContent;
-        return content != null && content.isDrawingEnabledFor(this);
+        return content != null && (mAnimationRequested || content.isDrawingEnabledFor(this));
     }
 
     public void startDrawing() {
         mPendingStartDrawing = mPaused;
         MediaContent content = mContent;
-        if (content != null && mAttachedToWindow && !mPendingStartDrawing) {
-            content.startDrawingFor(this);
+        if (content != null && mAttachedToWindow && !mPendingStartDrawing && !mAnimationRequested) {
+            mAnimationRequested = true;
+            AnimationGovernor.getInstance().requestAnimation(mCandidate);
         }
     }
 
     public void stopDrawing() {
         mPendingStartDrawing = false;
+        cancelAnimationRequest();
         MediaContent content = mContent;
         if (content != null) {
             content.stopDrawingFor(this);
         }
     }
 
+    private void cancelAnimationRequest() {
+        if (mAnimationRequested) {
+            mAnimationRequested = false;
+            AnimationGovernor.getInstance().cancelAnimation(mCandidate);
+        }
+    }
+
     @Nullable
     public String getEmbeddedAnimationUri() {
         MediaContent content = mContent;
@@ -183,6 +248,7 @@ public class AnimatedMediaContentView extends View implements MediaContentView,
     public void onAttachedToWindow() {
         super.onAttachedToWindow();
         mAttachedToWindow = true;
+        getViewTreeObserver().addOnScrollChangedListener(mScrollListener);
         if (mContent != null) {
             startDrawing();
         }
@@ -192,6 +258,7 @@ public class AnimatedMediaContentView extends View implements MediaContentView,
     protected void onDetachedFromWindow() {
         super.onDetachedFromWindow();
         mAttachedToWindow = false;
+        getViewTreeObserver().removeOnScrollChangedListener(mScrollListener);
         setMediaContent(null, false);
     }
 
@@ -209,6 +276,14 @@ public class AnimatedMediaContentView extends View implements MediaContentView,
         }
     }
 
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        if (mAnimationRequested) {
+            AnimationGovernor.getInstance().onCandidateChanged(mCandidate);
+        }
+    }
+
     public void pause() {
         if (mPaused) {
             return;
@@ -0,0 +1,317 @@
+package bo.pic.android.media.view;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.PowerManager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+
+import bo.pic.android.media.util.DeviceUtil;
+
+/**
+ * Limits number of simultaneously playing animations.
+ * <p/>
+ * Every attached and visible animated view wants to play its animation, so a grid might play more animations than the device
+ * can sustain. Views {@link #requestAnimation(Candidate) request} playback here instead, the governor ranks them by visible
+ * area fraction and size and allows only the top ones which fit into the {@link #setMaxActiveAnimations(int) count limit} and
+ * the {@link #setCpuBudget(float) CPU budget}. The rest show a still frame. Candidates are re-ranked when they
+ * {@link #onCandidateChanged(Candidate) change} (e.g. on scroll), i.e. animations are promoted and demoted as the user scrolls.
+ * <p/>
+ * Allowed animations might also get {@link #setFrameRateCaps(float, float) frame rate caps}: the top ranked one is treated as
+ * a 'hero' content and the rest as thumbnails. The caps are lowered in {@link #setLowPowerMode(boolean) low power mode}.
+ * <p/>
+ * There are no limits by default - all requested animations are allowed immediately and play at their source frame rate.
+ * <p/>
+ * Is expected to be used from the main thread only.
+ */
+public class AnimationGovernor {
+
+    /**
+     * An entity which wants to play an animation.
+     */
+    public interface Candidate {
+
+        /**
+         * @return    visible fraction of the candidate's area, within <code>[0; 1]</code>
+         */
+        float getVisibleFraction();
+
+        /**
+         * @return    the candidate's area in pixels
+         */
+        int getArea();
+
+        /**
+         * @return    estimated CPU load of the animation playback (as a fraction of a single core); negative value if unknown
+         */
+        float getEstimatedCpuLoad();
+
+        /**
+         * Notifies the candidate that its animation might be played (or must be stopped).
+         */
+        void setAnimationAllowed(boolean allowed);
+
+        /**
+         * @param fps    maximum frame rate of the candidate's animation; zero means 'source frame rate'
+         */
+        void setFrameRateCap(float fps);
+    }
+
+    public static final float DEFAULT_HERO_FRAME_RATE      = 30;
+    public static final float DEFAULT_THUMBNAIL_FRAME_RATE = 12;
+
+    /** Frame rate caps are multiplied by this factor in low power mode */
+    private static final float LOW_POWER_FRAME_RATE_FACTOR = 0.5f;
+
+    /** Frame rate cap of all animations in low power mode if there are no explicit caps */
+    private static final float LOW_POWER_MAX_FRAME_RATE = 15;
+
+    /** CPU load assumed for animations which didn't report it yet */
+    private static final float DEFAULT_CPU_LOAD = 0.1f;
+
+    private static final AnimationGovernor sInstance = new AnimationGovernor();
+
+    private static final Comparator<Entry> sComparator = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry lhs, Entry rhs) {
+            int result = Float.compare(rhs.visibleFraction, lhs.visibleFraction);
+            return result == 0 ? (rhs.area < lhs.area ? -1 : (rhs.area == lhs.area ? 0 : 1)) : result;
+        }
+    };
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final Runnable mEvaluateTask = new Runnable() {
+        @Override
+        public void run() {
+            mEvaluationPosted = false;
+            evaluate();
+        }
+    };
+
+    private final Map<Candidate, Entry> mCandidates = new LinkedHashMap<>();
+    private final Set<Candidate>        mAllowed    = new HashSet<>();
+    private final List<Entry>           mRanked     = new ArrayList<>();
+
+    private int     mMaxActiveAnimations = Integer.MAX_VALUE;
+    private float   mCpuBudget           = Float.MAX_VALUE;
+    private float   mHeroFrameRate;
+    private float   mThumbnailFrameRate;
+    private boolean mLowPowerMode;
+    private boolean mEvaluationPosted;
+
+    @Nonnull
+    public static AnimationGovernor getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * @param maxActiveAnimations    maximum number of simultaneously playing animations
+     */
+    public void setMaxActiveAnimations(int maxActiveAnimations) {
+        if (maxActiveAnimations <= 0) {
+            throw new IllegalArgumentException("Max number of active animations must be positive, but is " + maxActiveAnimations);
+        }
+        mMaxActiveAnimations = maxActiveAnimations;
+        scheduleEvaluation();
+    }
+
+    /**
+     * @param cores    total CPU load of all playing animations (as a number of cores, e.g. <code>1.5</code>). The top ranked
+     *                 animation is always allowed regardless of its load
+     */
+    public void setCpuBudget(float cores) {
+        if (cores <= 0) {
+            throw new IllegalArgumentException("CPU budget must be positive, but is " + cores);
+        }
+        mCpuBudget = cores;
+        scheduleEvaluation();
+    }
+
+    /**
+     * @param heroFps         maximum frame rate of the top ranked animation (e.g. {@link #DEFAULT_HERO_FRAME_RATE}); zero means 'no cap'
+     * @param thumbnailFps    maximum frame rate of other animations (e.g. {@link #DEFAULT_THUMBNAIL_FRAME_RATE}); zero means 'no cap'
+     */
+    public void setFrameRateCaps(float heroFps, float thumbnailFps) {
+        if (heroFps < 0 || thumbnailFps < 0) {
+            throw new IllegalArgumentException(String.format("Frame rate caps must not be negative, but are %f and %f", heroFps, thumbnailFps));
+        }
+        mHeroFrameRate = heroFps;
+        mThumbnailFrameRate = thumbnailFps;
+        scheduleEvaluation();
+    }
+
+    /**
+     * Lowers frame rate caps of all animations, is expected to be enabled when battery saver or thermal throttling is active.
+     */
+    public void setLowPowerMode(boolean lowPowerMode) {
+        if (mLowPowerMode != lowPowerMode) {
+            mLowPowerMode = lowPowerMode;
+            scheduleEvaluation();
+        }
+    }
+
+    /**
+     * Enables {@link #setLowPowerMode(boolean) low power mode} if battery saver is active (does nothing before Lollipop). Is
+     * expected to be called on {@link PowerManager#ACTION_POWER_SAVE_MODE_CHANGED} broadcast.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    public void updateLowPowerMode(@Nonnull Context context) {
+        if (DeviceUtil.hasLollipop()) {
+            PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+            setLowPowerMode(powerManager != null && powerManager.isPowerSaveMode());
+        }
+    }
+
+    public void requestAnimation(@Nonnull Candidate candidate) {
+        if (mCandidates.containsKey(candidate)) {
+            return;
+        }
+        mCandidates.put(candidate, new Entry(candidate));
+        if (isUnlimited()) {
+            setAllowed(candidate, true);
+        } else {
+            scheduleEvaluation();
+        }
+    }
+
+    /**
+     * Removes the given candidate from consideration. The candidate is expected to stop its animation by itself, so it's not
+     * notified.
+     */
+    public void cancelAnimation(@Nonnull Candidate candidate) {
+        if (mCandidates.remove(candidate) != null) {
+            if (mAllowed.remove(candidate)) {
+                // A slot is freed, another candidate might be promoted.
+                scheduleEvaluation();
+            }
+        }
+    }
+
+    /**
+     * Notifies that the candidate's visibility or size is changed.
+     */
+    public void onCandidateChanged(@Nonnull Candidate candidate) {
+        // Without limits the ranking doesn't matter unless some candidates are still demoted (e.g. since the limits were lifted).
+        if (mCandidates.containsKey(candidate) && (!isUnlimited() || mAllowed.size() < mCandidates.size())) {
+            scheduleEvaluation();
+        }
+    }
+
+    public int getCandidateCount() {
+        return mCandidates.size();
+    }
+
+    public int getActiveCount() {
+        return mAllowed.size();
+    }
+
+    private boolean isUnlimited() {
+        return mMaxActiveAnimations == Integer.MAX_VALUE && mCpuBudget == Float.MAX_VALUE && mHeroFrameRate == 0
+               && mThumbnailFrameRate == 0 && !mLowPowerMode;
+    }
+
+    private float getFrameRateCap(boolean hero) {
+        float cap = hero ? mHeroFrameRate : mThumbnailFrameRate;
+        if (!mLowPowerMode) {
+            return cap;
+        }
+        return cap == 0 ? LOW_POWER_MAX_FRAME_RATE : cap * LOW_POWER_FRAME_RATE_FACTOR;
+    }
+
+    private void scheduleEvaluation() {
+        if (!mEvaluationPosted) {
+            mEvaluationPosted = true;
+            mHandler.post(mEvaluateTask);
+        }
+    }
+
+    private void evaluate() {
+        if (isUnlimited()) {
+            // All candidates are allowed at their source frame rate, including ones which are not visible yet.
+            for (Entry entry : mCandidates.values()) {
+                setAllowed(entry.candidate, true);
+                setFrameRateCap(entry, 0);
+            }
+            return;
+        }
+        mRanked.clear();
+        for (Entry entry : mCandidates.values()) {
+            entry.update();
+            mRanked.add(entry);
+        }
+        Collections.sort(mRanked, sComparator);
+        int active = 0;
+        float load = 0;
+        for (Entry entry : mRanked) {
+            boolean allowed = false;
+            if (entry.visibleFraction > 0 && active < mMaxActiveAnimations) {
+                float entryLoad = entry.cpuLoad < 0 ? DEFAULT_CPU_LOAD : entry.cpuLoad;
+                if (active == 0 || load + entryLoad <= mCpuBudget) {
+                    allowed = true;
+                    active++;
+                    load += entryLoad;
+                }
+            }
+            setAllowed(entry.candidate, allowed);
+            if (allowed) {
+                setFrameRateCap(entry, getFrameRateCap(active == 1));
+            }
+        }
+        mRanked.clear();
+    }
+
+    private static void setFrameRateCap(@Nonnull Entry entry, float cap) {
+        if (cap != entry.frameRateCap) {
+            entry.frameRateCap = cap;
+            entry.candidate.setFrameRateCap(cap);
+        }
+    }
+
+    private void setAllowed(@Nonnull Candidate candidate, boolean allowed) {
+        boolean changed = allowed ? mAllowed.add(candidate) : mAllowed.remove(candidate);
+        if (changed) {
+            candidate.setAnimationAllowed(allowed);
+        }
+    }
+
+    /**
+     * Snapshot of a candidate's ranking data, it's taken once per evaluation as candidates might compute it on every call.
+     */
+    private static class Entry {
+
+        @Nonnull final Candidate candidate;
+
+        float visibleFraction;
+        int   area;
+        float cpuLoad;
+        float frameRateCap = -1;
+
+        Entry(@Nonnull Candidate candidate) {
+            this.candidate = candidate;
+        }
+
+        void update() {
+            visibleFraction = candidate.getVisibleFraction();
+            area = candidate.getArea();
+            cpuLoad = candidate.getEstimatedCpuLoad();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "candidates: " + getCandidateCount() + ", active: " + getActiveCount();
+    }
+}
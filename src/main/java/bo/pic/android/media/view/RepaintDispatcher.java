@@ -0,0 +1,173 @@
+package bo.pic.android.media.view;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.View;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+
+import bo.pic.android.media.content.animation.AnimationClock;
+
+/**
+ * Coalesces view invalidation requests of all {@link bo.pic.android.media.content.RepaintContext repaint contexts}.
+ * <p/>
+ * Many animated views on screen used to post a separate main looper message per view per frame, which floods the main
+ * looper queue and delays real input events. This dispatcher guarantees the following instead:
+ * <ul>
+ *      <li>
+ *          {@link #requestRepaint(View) repaint requests} from the main thread invalidate views immediately (that doesn't post
+ *          any message - the framework performs a single traversal for all invalidated views);
+ *      </li>
+ *      <li>repaint requests from other threads are collected and processed by a single posted message;</li>
+ *      <li>
+ *          {@link #requestRepaintOnNextFrame(View) next frame repaint requests} are collected and processed by a single
+ *          {@link AnimationClock animation clock} tick;
+ *      </li>
+ * </ul>
+ * Counters ({@link #getRequestCount()}, {@link #getPostCount()} etc) allow to check that the main looper queue stays short.
+ */
+public class RepaintDispatcher {
+
+    private static final RepaintDispatcher sInstance = new RepaintDispatcher();
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            mFlushPosted.set(false);
+            mBatchCount.incrementAndGet();
+            for (Iterator<View> iterator = mDirtyViews.iterator(); iterator.hasNext(); ) {
+                View view = iterator.next();
+                iterator.remove();
+                invalidate(view);
+            }
+        }
+    };
+
+    private final AnimationClock.Client mNextFrameClient = new AnimationClock.Client() {
+        @Override
+        public long getDueTime() {
+            return Long.MIN_VALUE;
+        }
+
+        @Override
+        public void onTick(long frameTime) {
+            mNextFramePosted = false;
+            mBatchCount.incrementAndGet();
+            // Views usually request the next frame again while they are being drawn, so the list is swapped before processing.
+            List<View> views = mNextFrameViews;
+            mNextFrameViews = mSpareNextFrameViews;
+            mSpareNextFrameViews = views;
+            for (int i = 0, size = views.size(); i < size; i++) {
+                invalidate(views.get(i));
+            }
+            views.clear();
+        }
+    };
+
+    private final Set<View>     mDirtyViews  = Collections.newSetFromMap(new ConcurrentHashMap<View, Boolean>());
+    private final AtomicBoolean mFlushPosted = new AtomicBoolean();
+
+    private final AtomicLong mRequestCount      = new AtomicLong();
+    private final AtomicLong mInvalidationCount = new AtomicLong();
+    private final AtomicLong mPostCount         = new AtomicLong();
+    private final AtomicLong mBatchCount        = new AtomicLong();
+
+    /** Accessed only from the main thread */
+    private List<View> mNextFrameViews      = new ArrayList<>();
+    private List<View> mSpareNextFrameViews = new ArrayList<>();
+    private boolean    mNextFramePosted;
+
+    @Nonnull
+    public static RepaintDispatcher getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Asks to redraw the given view as soon as possible. Might be called from any thread.
+     */
+    public void requestRepaint(@Nonnull View view) {
+        mRequestCount.incrementAndGet();
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            invalidate(view);
+            return;
+        }
+        mDirtyViews.add(view);
+        if (mFlushPosted.compareAndSet(false, true)) {
+            mPostCount.incrementAndGet();
+            mHandler.postAtFrontOfQueue(mFlushTask);
+        }
+    }
+
+    /**
+     * Asks to redraw the given view at the next display frame (e.g. to continue an effect). Calls from the main thread.
+     */
+    public void requestRepaintOnNextFrame(@Nonnull View view) {
+        mRequestCount.incrementAndGet();
+        if (!mNextFrameViews.contains(view)) {
+            mNextFrameViews.add(view);
+        }
+        if (!mNextFramePosted) {
+            mNextFramePosted = true;
+            mPostCount.incrementAndGet();
+            AnimationClock.getInstance().schedule(mNextFrameClient);
+        }
+    }
+
+    /**
+     * @return    total number of repaint requests
+     */
+    public long getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    /**
+     * @return    total number of {@link View#invalidate() invalidations} performed, it's less than {@link #getRequestCount()}
+     *            when requests are coalesced
+     */
+    public long getInvalidationCount() {
+        return mInvalidationCount.get();
+    }
+
+    /**
+     * @return    total number of messages and frame callbacks posted to the main thread
+     */
+    public long getPostCount() {
+        return mPostCount.get();
+    }
+
+    /**
+     * @return    total number of processed batches (posted messages and frame callbacks)
+     */
+    public long getBatchCount() {
+        return mBatchCount.get();
+    }
+
+    /**
+     * @return    number of views which wait to be invalidated (approximate if called not from the main thread)
+     */
+    public int getPendingCount() {
+        return mDirtyViews.size() + mNextFrameViews.size();
+    }
+
+    private void invalidate(@Nonnull View view) {
+        mInvalidationCount.incrementAndGet();
+        view.invalidate();
+    }
+
+    @Override
+    public String toString() {
+        return "requests: " + getRequestCount() + ", invalidations: " + getInvalidationCount() + ", posts: " + getPostCount()
+               + ", batches: " + getBatchCount();
+    }
+}
@@ -4,13 +4,13 @@ import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Rect;
 import android.os.SystemClock;
-import android.support.v4.view.ViewCompat;
 import android.view.View;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
 import bo.pic.android.media.content.MediaContent;
+import bo.pic.android.media.view.RepaintDispatcher;
 
 public abstract class AbstractEffect implements Effect {
     public static final long DURATION_MILLIS = 300;
@@ -62,7 +62,7 @@ public abstract class AbstractEffect implements Effect {
         }
 
         onDraw(canvas, content, contentView, elapsed);
-        ViewCompat.postInvalidateOnAnimation(contentView);
+        RepaintDispatcher.getInstance().requestRepaintOnNextFrame(contentView);
     }
 
     protected abstract void doOnContentChange(@Nullable MediaContent newContent);